@@ -0,0 +1,153 @@
+package no.nlb.quickbase.dump;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import no.nlb.quickbase.dump.QuickbaseTableDump.QuickbaseClient;
+
+/**
+ * Dumps all the tables in an application, each to its own file, using a single authenticated client.
+ * The files are named after the table aliases, with the output format as the suffix, and ".gz"
+ * after it if the output is compressed.
+ *
+ * The tables are dumped concurrently. The largest tables are started first, so that they are not
+ * left running alone at the end. The total number of concurrent requests is limited by the client,
+ * no matter how many tables are being dumped at the same time.
+ */
+class ApplicationDump {
+    
+    /**
+     * @param client a client for the application
+     * @param tables the tables in the application, as returned by getTablesInApplicationSchema
+     * @param selection comma separated names or ids of the tables to dump, or null to dump all tables
+     * @param outputDir the directory to write the dumps to
+     * @param concurrency the number of tables to dump at the same time
+     */
+    public static void run(QuickbaseClient client, Map<String,String> tables, String selection, File outputDir, int concurrency) throws IOException {
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            throw new IOException("Unable to create output directory: " + outputDir);
+        }
+        
+        Map<String,String> selected = select(tables, selection);
+        
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        Map<String,Future<?>> dumps = new LinkedHashMap<String,Future<?>>();
+        try {
+            // count the records in each table, and start with the largest tables
+            Map<String,Future<Integer>> counts = new LinkedHashMap<String,Future<Integer>>();
+            for (String name : selected.keySet()) {
+                QuickbaseClient tableClient = client.forTable(selected.get(name));
+                counts.put(name, executor.submit(() -> countRecords(tableClient)));
+            }
+            Map<String,Integer> sizes = new LinkedHashMap<String,Integer>();
+            for (String name : counts.keySet()) {
+                sizes.put(name, get(counts.get(name)));
+            }
+            List<String> names = new ArrayList<String>(selected.keySet());
+            names.sort((a, b) -> Integer.compare(sizes.get(b), sizes.get(a)));
+            
+            for (String name : names) {
+                String table = selected.get(name);
+                File file = new File(outputDir, fileName(name));
+                System.err.println("Dumping " + name + " (" + table + ", " + sizes.get(name) + " records) to " + file);
+                dumps.put(name, executor.submit(() -> {
+                    dumpTable(client.forTable(table), file);
+                    return null;
+                }));
+            }
+            
+            List<String> failed = new ArrayList<String>();
+            for (String name : dumps.keySet()) {
+                try {
+                    dumps.get(name).get();
+                    
+                } catch (ExecutionException e) {
+                    System.err.println("Unable to dump " + name + ":");
+                    e.getCause().printStackTrace();
+                    failed.add(name);
+                    
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted while dumping " + name, e);
+                }
+            }
+            if (!failed.isEmpty()) {
+                throw new IOException("Unable to dump " + failed.size() + " of " + names.size() + " tables: " + String.join(", ", failed));
+            }
+            
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    private static <T> T get(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException(e);
+        }
+    }
+    
+    private static Map<String,String> select(Map<String,String> tables, String selection) throws IOException {
+        if (selection == null || "".equals(selection.trim())) {
+            return tables;
+        }
+        
+        Set<String> wanted = new HashSet<String>(Arrays.asList(selection.trim().split("\\s*,\\s*")));
+        Map<String,String> selected = new LinkedHashMap<String,String>();
+        for (String name : tables.keySet()) {
+            if (wanted.remove(name) | wanted.remove(alias(name)) | wanted.remove(tables.get(name))) {
+                selected.put(name, tables.get(name));
+            }
+        }
+        if (!wanted.isEmpty()) {
+            throw new IOException("No such tables in the application: " + String.join(", ", wanted));
+        }
+        return selected;
+    }
+    
+    private static int countRecords(QuickbaseClient client) throws IOException {
+        QuickbaseTableDump.QuickbaseRequest request = client.newRequest("API_DoQueryCount");
+        request.setParameter("query", "");
+        String numMatches = request.send().get("numMatches");
+        return numMatches == null || !numMatches.matches("[0-9]+") ? 0 : Integer.parseInt(numMatches);
+    }
+    
+    private static void dumpTable(QuickbaseClient client, File file) throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+        try {
+            try (OutputStream out = QuickbaseTableDump.compress(new FileOutputStream(tempFile))) {
+                QuickbaseTableDump.dump(client, out);
+            }
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            
+        } finally {
+            tempFile.delete();
+        }
+    }
+    
+    /**
+     * The table names in the application schema are on the form "_dbid_alias".
+     */
+    private static String alias(String name) {
+        return name.startsWith("_dbid_") ? name.substring("_dbid_".length()) : name;
+    }
+    
+    private static String fileName(String name) {
+        return alias(name).replaceAll("[^A-Za-z0-9._-]", "_") + "." + QuickbaseTableDump.FORMAT + (QuickbaseTableDump.COMPRESS == null ? "" : ".gz");
+    }
+}
@@ -0,0 +1,338 @@
+package no.nlb.quickbase.dump;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import no.nlb.quickbase.dump.QuickbaseTableDump.QuickbaseResponse;
+
+/**
+ * Downloads the files in the file attachment fields (field_type "file") of a dump, and stores them
+ * by their content.
+ *
+ * Each file is stored once, named by the SHA-256 of its content, in a subdirectory named by the
+ * first two characters of the hash. The index, attachments.txt, lists the attachments in record id
+ * order, one line per record and field: record id, field id, Date Modified of the record, SHA-256,
+ * size and the URL-encoded file name (or URL) from the record.
+ *
+ * An attachment in a record that has not been modified since the last run is not downloaded again,
+ * as long as its file is still there. Other attachments are downloaded, and the file is only kept
+ * if it is not stored already, so a file that is attached to many records, or that has not changed
+ * although the record has, takes no more space.
+ *
+ * The files are downloaded in parallel over the connections and with the ticket of the client,
+ * and each file is streamed to a temporary file before it is linked into place. The records are
+ * fetched as the downloads go on, and the previous index is read alongside them, so the memory
+ * needed does not depend on the number of attachments.
+ */
+class AttachmentDownloader {
+    
+    static final String INDEX = "attachments.txt";
+    
+    /**
+     * An attachment in the index.
+     */
+    static class Attachment {
+        final int rid;
+        final int fid;
+        final String modified;
+        final String sha256;
+        final long size;
+        final String name;
+        
+        Attachment(int rid, int fid, String modified, String sha256, long size, String name) {
+            this.rid = rid;
+            this.fid = fid;
+            this.modified = modified;
+            this.sha256 = sha256;
+            this.size = size;
+            this.name = name;
+        }
+        
+        int compareTo(int rid, int fid) {
+            return this.rid != rid ? Integer.compare(this.rid, rid) : Integer.compare(this.fid, fid);
+        }
+        
+        String line() {
+            return rid + " " + fid + " " + modified + " " + sha256 + " " + size + " " + encode(name) + "\n";
+        }
+        
+        static Attachment parse(String line) {
+            String[] parts = line.split(" ", 6);
+            return new Attachment(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), parts[2], parts[3], Long.parseLong(parts[4]), decode(parts[5]));
+        }
+    }
+    
+    private final TableDump dump;
+    private final File dir;
+    private final int concurrency;
+    private final AtomicLong downloaded = new AtomicLong();
+    private final AtomicLong stored = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private long unchanged = 0;
+    
+    /**
+     * @param dir the directory to store the files and the index in
+     * @param concurrency the number of files to download in parallel
+     */
+    AttachmentDownloader(TableDump dump, File dir, int concurrency) {
+        this.dump = dump;
+        this.dir = dir;
+        this.concurrency = Math.max(1, concurrency);
+    }
+    
+    /**
+     * @return The ids of the file attachment fields among the given fields, in field id order.
+     */
+    static List<String> fileFields(Map<String,Map<String,String>> fields) {
+        List<String> fileFields = new ArrayList<String>();
+        for (String id : fields.keySet()) {
+            if ("file".equals(fields.get(id).get("field_type"))) {
+                fileFields.add(id);
+            }
+        }
+        fileFields.sort((a, b) -> Long.compare(Long.parseLong(a), Long.parseLong(b)));
+        return fileFields;
+    }
+    
+    /**
+     * Download the attachments that are new or may have changed, and write the index.
+     */
+    public void run() throws IOException {
+        List<String> fileFields = fileFields(dump.getFields());
+        if (fileFields.isEmpty()) {
+            System.err.println("There are no file attachment fields in " + dump.getClient().getTable());
+            return;
+        }
+        Files.createDirectories(dir.toPath());
+        String modifiedId = dump.getSchema().getDateModifiedId();
+        String clist = dump.getRecordIdId() + (modifiedId == null ? "" : "." + modifiedId) + "." + String.join(".", fileFields);
+        
+        File indexFile = new File(dir, INDEX);
+        File tempFile = File.createTempFile(INDEX + "-", ".tmp", dir);
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        try (Writer index = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8"));
+             PreviousIndex previous = new PreviousIndex(indexFile, dump.getClient().getTable());
+             PageFetcher pages = pages(clist)) {
+            index.write("table=" + dump.getClient().getTable() + "\n");
+            
+            // the index lines of the attachments being downloaded, in record order
+            Deque<Future<String>> pending = new ArrayDeque<Future<String>>();
+            while (pages != null && pages.hasNext()) {
+                for (QuickbaseResponse response : pages.next().responses) {
+                    Iterator<QuickbaseRecord> records = response.records();
+                    while (records.hasNext()) {
+                        QuickbaseRecord record = records.next();
+                        int rid = Integer.parseInt(record.getRid());
+                        String modified = modifiedId == null ? null : record.getValues().get(modifiedId);
+                        for (String fid : fileFields) {
+                            String name = record.getValues().get(fid);
+                            if (name == null || "".equals(name)) {
+                                continue;
+                            }
+                            Attachment known = previous.find(rid, Integer.parseInt(fid));
+                            if (known != null && modified != null && modified.equals(known.modified) && name.equals(known.name) && object(known.sha256).isFile()) {
+                                unchanged++;
+                                pending.add(CompletableFuture.completedFuture(known.line()));
+                            } else {
+                                pending.add(executor.submit(() -> download(rid, fid, modified, name).line()));
+                            }
+                            while (pending.size() > 2 * concurrency) {
+                                index.write(QuickbaseTableDump.join(pending.removeFirst()));
+                            }
+                        }
+                    }
+                }
+            }
+            while (!pending.isEmpty()) {
+                index.write(QuickbaseTableDump.join(pending.removeFirst()));
+            }
+            
+        } catch (IOException | RuntimeException e) {
+            tempFile.delete();
+            throw e;
+            
+        } finally {
+            executor.shutdownNow();
+        }
+        Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        
+        System.err.println("Attachments: " + downloaded + " downloaded (" + bytes + " bytes, " + stored + " new files), " + unchanged + " unchanged");
+    }
+    
+    public long getDownloadedCount() {
+        return downloaded.get();
+    }
+    
+    /**
+     * @return The number of downloaded files that were not stored already.
+     */
+    public long getStoredCount() {
+        return stored.get();
+    }
+    
+    public long getUnchangedCount() {
+        return unchanged;
+    }
+    
+    /**
+     * @return The file with the given SHA-256.
+     */
+    File object(String sha256) {
+        return new File(new File(dir, sha256.substring(0, 2)), sha256);
+    }
+    
+    private PageFetcher pages(String clist) {
+        Integer startRecordId = dump.getStartRecordId();
+        Integer endRecordId = dump.getEndRecordId();
+        if (startRecordId == null || endRecordId == null) {
+            return null;
+        }
+        RangeController rangeController = new RangeController(dump.getPageSize(), dump.getMaxPageSize());
+        return new PageFetcher(dump.getClient(), dump.getRecordIdId(), QuickbaseTableDump.windows(startRecordId, endRecordId, rangeController), endRecordId - (long)startRecordId + 1,
+                               dump.getFilter(), clist, rangeController, dump.getConcurrency());
+    }
+    
+    /**
+     * Download an attachment to a temporary file, and store it unless a file with the same content is stored already.
+     */
+    private Attachment download(int rid, String fid, String modified, String name) throws IOException {
+        // the value is the file name, or the URL of the file. v0 is the current version.
+        String url = name.startsWith("https://") || name.startsWith("http://") ? name : "/up/" + dump.getClient().getTable() + "/a/r" + rid + "/e" + fid + "/v0";
+        File tempFile = File.createTempFile("download-", ".tmp", dir);
+        try {
+            dump.getClient().download(url, tempFile);
+            String sha256 = sha256(tempFile);
+            long size = tempFile.length();
+            downloaded.incrementAndGet();
+            bytes.addAndGet(size);
+            
+            File object = object(sha256);
+            if (!object.isFile()) {
+                Files.createDirectories(object.getParentFile().toPath());
+                try {
+                    // another download of the same content may get there first. Unlike a move, a link
+                    // is never made over an existing file, so the file is only counted once.
+                    Files.createLink(object.toPath(), tempFile.toPath());
+                    stored.incrementAndGet();
+                } catch (FileAlreadyExistsException e) {
+                }
+            }
+            return new Attachment(rid, Integer.parseInt(fid), modified == null ? "-" : modified, sha256, size, name);
+            
+        } finally {
+            tempFile.delete();
+        }
+    }
+    
+    private static String sha256(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] buffer = new byte[65536];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+    
+    /**
+     * Reads the index of the last run alongside the records, which come in the same order.
+     */
+    private static class PreviousIndex implements Closeable {
+        private final BufferedReader reader;
+        private Attachment next = null;
+        
+        PreviousIndex(File indexFile, String table) throws IOException {
+            BufferedReader reader = indexFile.isFile() ? new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), "UTF-8")) : null;
+            if (reader != null && !("table=" + table).equals(reader.readLine())) {
+                System.err.println("The attachments in " + indexFile.getParent() + " are not from " + table + ", and will be downloaded again");
+                reader.close();
+                reader = null;
+            }
+            this.reader = reader;
+            advance();
+        }
+        
+        /**
+         * @return The attachment in the given record and field, or null if there was none. The
+         *         attachments must be looked up in record id and field id order.
+         */
+        Attachment find(int rid, int fid) throws IOException {
+            while (next != null && next.compareTo(rid, fid) < 0) {
+                advance();
+            }
+            return next != null && next.compareTo(rid, fid) == 0 ? next : null;
+        }
+        
+        private void advance() throws IOException {
+            String line = reader == null ? null : reader.readLine();
+            try {
+                next = line == null ? null : Attachment.parse(line);
+            } catch (IndexOutOfBoundsException | NumberFormatException e) {
+                System.err.println("Unable to read the attachment index: " + e.getMessage());
+                next = null;
+            }
+        }
+        
+        @Override
+        public void close() throws IOException {
+            if (reader != null) {
+                reader.close();
+            }
+        }
+    }
+    
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    private static String decode(String value) {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
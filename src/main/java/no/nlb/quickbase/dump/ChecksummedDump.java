@@ -0,0 +1,655 @@
+package no.nlb.quickbase.dump;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import no.nlb.quickbase.dump.QuickbaseTableDump.QuickbaseClient;
+import no.nlb.quickbase.dump.QuickbaseTableDump.QuickbaseRequest;
+import no.nlb.quickbase.dump.QuickbaseTableDump.QuickbaseResponse;
+
+/**
+ * Keeps a dump file up to date by only fetching the ranges of record ids that have changed since
+ * the last run, for tables without a reliable Date Modified field.
+ *
+ * The record ids are divided into leaves: equally wide ranges, starting at the lowest record id of
+ * the first dump. For each leaf, the number of records and the highest value of the check field
+ * (the fingerprint) and a SHA-256 hash of the records in the dump are stored next to the dump, in a
+ * file with the suffix ".checksums". The leaves are the bottom of a binary tree, where each node
+ * covers the ranges of its children, and has their combined fingerprint and a hash of their hashes.
+ *
+ * On the next run, the previous dump is checked against the hashes, and the fingerprints are
+ * compared from the root down: a node whose fingerprint is the same in Quickbase (one API_DoQueryCount
+ * and one small API_DoQuery) has not changed, and neither have any of the ranges below it. Only the
+ * leaves that have changed are fetched, and they replace the same ranges in the previous dump. If
+ * there is no previous dump, or it does not match its checksums, a full dump is made.
+ *
+ * A changed record is only noticed if the change also changes the fingerprint of its leaf: use a
+ * check field that grows when a record is changed, like a timestamp or a version number. Without a
+ * check field, only records that are added or deleted are noticed.
+ */
+class ChecksummedDump {
+    
+    /**
+     * The number of records in a range, and the highest value of the check field ("" if there is none).
+     */
+    static class Fingerprint {
+        final long count;
+        final String max;
+        
+        Fingerprint(long count, String max) {
+            this.count = count;
+            this.max = max == null ? "" : max;
+        }
+        
+        /**
+         * @return The fingerprint of two neighbouring ranges together.
+         */
+        Fingerprint plus(Fingerprint other) {
+            return new Fingerprint(count + other.count, compare(max, other.max) >= 0 ? max : other.max);
+        }
+        
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Fingerprint && count == ((Fingerprint)other).count && max.equals(((Fingerprint)other).max);
+        }
+        
+        @Override
+        public int hashCode() {
+            return Long.hashCode(count) * 31 + max.hashCode();
+        }
+        
+        @Override
+        public String toString() {
+            return count + " records" + ("".equals(max) ? "" : ", max " + max);
+        }
+    }
+    
+    /**
+     * A range of record ids in the tree, [from,to).
+     */
+    static class Node {
+        final int from;
+        final int to;
+        final Fingerprint fingerprint;
+        final String hash;
+        
+        Node(int from, int to, Fingerprint fingerprint, String hash) {
+            this.from = from;
+            this.to = to;
+            this.fingerprint = fingerprint;
+            this.hash = hash;
+        }
+    }
+    
+    /**
+     * The leaves of a dump, as stored in the checksums file.
+     */
+    static class Checksums {
+        final String selection;
+        final int start;
+        final int width;
+        final List<Node> leaves;
+        
+        Checksums(String selection, int start, int width, List<Node> leaves) {
+            this.selection = selection;
+            this.start = start;
+            this.width = width;
+            this.leaves = leaves;
+        }
+        
+        /**
+         * @return The node that covers the leaves [lo,hi): a leaf, or a node with the combined fingerprint and hash of its children.
+         */
+        Node node(int lo, int hi) {
+            if (hi - lo == 1) {
+                return leaves.get(lo);
+            }
+            int mid = (lo + hi) >>> 1;
+            Node left = node(lo, mid);
+            Node right = node(mid, hi);
+            return new Node(left.from, right.to, left.fingerprint.plus(right.fingerprint), sha256(left.hash + right.hash));
+        }
+        
+        /**
+         * @return The hash of all the records in the dump. Two dumps with the same root have the same records.
+         */
+        String root() {
+            return leaves.isEmpty() ? sha256("") : node(0, leaves.size()).hash;
+        }
+    }
+    
+    /**
+     * @param dump the table, the fields and the filter to dump
+     * @param checkField the id or label of the field whose highest value is part of the fingerprint,
+     *        or null to use the Date Modified field, if the table has one
+     */
+    public static void run(TableDump dump, File dumpFile, String checkField) throws IOException {
+        QuickbaseClient client = dump.getClient();
+        String recordIdId = dump.getRecordIdId();
+        String clist = dump.getClist();
+        String filter = dump.getFilter();
+        String field = checkField(dump, checkField);
+        String selection = "table=" + encode(client.getTable()) + " clist=" + encode(clist) + " field=" + encode(field) + " query=" + encode(filter);
+        
+        File checksumsFile = new File(dumpFile.getPath() + ".checksums");
+        Checksums previous = dumpFile.isFile() ? readChecksums(checksumsFile) : null;
+        if (previous != null && (!selection.equals(previous.selection) || previous.width != dump.getPageSize())) {
+            System.err.println("The checksums were made with other fields, another filter or another page size; making a full dump");
+            previous = null;
+        } else if (previous != null && !verify(dumpFile, previous)) {
+            System.err.println("The dump does not match its checksums; making a full dump");
+            previous = null;
+        }
+        
+        // records created since the start of the dump must be within the leaves we compare
+        Integer endRecordId = QuickbaseTableDump.getRecordIdBound(client, recordIdId, true);
+        Checksums checksums = null;
+        File directory = dumpFile.getAbsoluteFile().getParentFile();
+        File tempFile = File.createTempFile(dumpFile.getName() + "-", ".tmp", directory);
+        try {
+            try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8"))) {
+                if (endRecordId == null || previous == null && dump.getStartRecordId() == null) {
+                    // the table is empty
+                    dump.writeXml(null, null, out);
+                } else {
+                    checksums = update(dump, field, selection, previous, previous == null ? dump.getStartRecordId() : previous.start, endRecordId, dumpFile, out);
+                }
+            }
+            Files.move(tempFile.toPath(), dumpFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            
+        } finally {
+            tempFile.delete();
+        }
+        
+        // only update the checksums when the dump has been written
+        if (checksums == null) {
+            checksumsFile.delete();
+            return;
+        }
+        writeChecksums(checksumsFile, dumpFile.getName(), checksums);
+        if (QuickbaseTableDump.DEBUG) {
+            System.err.println("Root checksum: " + checksums.root());
+        }
+    }
+    
+    /**
+     * Find the leaves that have changed since the previous dump, and write the previous dump with
+     * those leaves fetched again.
+     *
+     * @param previous the checksums of the previous dump, or null to fetch everything
+     * @param start the lowest record id of the first leaf
+     * @param endRecordId the highest record id in the table
+     * @return The checksums of the new dump.
+     */
+    private static Checksums update(TableDump dump, String field, String selection, Checksums previous, int start, int endRecordId, File dumpFile, Writer out) throws IOException {
+        QuickbaseClient client = dump.getClient();
+        String recordIdId = dump.getRecordIdId();
+        String clist = dump.getClist();
+        String filter = dump.getFilter();
+        int width = dump.getPageSize();
+        List<Node> leaves = new ArrayList<Node>();
+        if (previous != null) {
+            leaves.addAll(previous.leaves);
+        }
+        for (long from = start + (long)width * leaves.size(); from <= endRecordId; from += width) {
+            leaves.add(new Node((int)from, (int)Math.min(Integer.MAX_VALUE, from + width), null, null));
+        }
+        
+        Fingerprint[] fresh = new Fingerprint[leaves.size()];
+        boolean[] changed = new boolean[leaves.size()];
+        if (previous == null) {
+            Arrays.fill(changed, true);
+        } else {
+            compare(client, recordIdId, filter, field, leaves, previous.leaves.size(), dump.getConcurrency(), fresh, changed);
+        }
+        
+        // the fingerprints are either taken from the fetched records, or counted before they are fetched
+        boolean fromRecords = field == null || "a".equals(clist) || Arrays.asList(clist.split("\\.")).contains(field);
+        if (!fromRecords) {
+            List<Integer> missing = new ArrayList<Integer>();
+            for (int i = 0; i < leaves.size(); i++) {
+                if (changed[i] && fresh[i] == null) {
+                    missing.add(i);
+                }
+            }
+            fingerprints(client, recordIdId, filter, field, leaves, missing, dump.getConcurrency(), fresh);
+        }
+        
+        if (previous != null) {
+            int changedLeaves = 0;
+            for (boolean leafChanged : changed) {
+                changedLeaves += leafChanged ? 1 : 0;
+            }
+            System.err.println(changedLeaves + " of " + leaves.size() + " ranges of " + width + " record ids have changed");
+        }
+        
+        List<Node> newLeaves = patch(dump, previous == null ? null : dumpFile, leaves, changed, fresh, field, fromRecords, out);
+        return new Checksums(selection, start, width, newLeaves);
+    }
+    
+    /**
+     * @return The id of the check field, or null if there is none.
+     */
+    private static String checkField(TableDump dump, String checkField) {
+        if (checkField == null || "".equals(checkField.trim())) {
+            String dateModifiedId = dump.getSchema().getDateModifiedId();
+            if (dateModifiedId == null) {
+                System.err.println("The table does not have a Date Modified field, and no check field is given; only added and deleted records will be noticed");
+            }
+            return dateModifiedId;
+        }
+        String id = QuickbaseTableDump.clist(dump.getSchema().getFields(), checkField);
+        if ("a".equals(id) || id.contains(".")) {
+            throw new IllegalArgumentException("The check field must be a single field: " + checkField);
+        }
+        return id;
+    }
+    
+    /**
+     * Compare the fingerprints of the stored leaves with Quickbase, from the root down, and mark the
+     * leaves that have changed. Leaves that are not stored are new, and have always changed. All the
+     * nodes at the same level are compared in parallel.
+     *
+     * @param stored the number of leaves that are stored
+     * @param fresh the fingerprints of the leaves that are compared in Quickbase are set here
+     */
+    private static void compare(QuickbaseClient client, String recordIdId, String filter, String field, List<Node> leaves, int stored, int concurrency, Fingerprint[] fresh, boolean[] changed) throws IOException {
+        Checksums previous = new Checksums(null, 0, 0, leaves.subList(0, stored));
+        int requests = 0;
+        List<int[]> level = new ArrayList<int[]>();
+        level.add(new int[]{ 0, leaves.size() });
+        
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, concurrency));
+        try {
+            while (!level.isEmpty()) {
+                List<int[]> compared = new ArrayList<int[]>();
+                List<Future<Fingerprint>> fingerprints = new ArrayList<Future<Fingerprint>>();
+                List<int[]> next = new ArrayList<int[]>();
+                for (int[] node : level) {
+                    if (node[0] >= stored) {
+                        Arrays.fill(changed, node[0], node[1], true);
+                    } else if (node[1] > stored) {
+                        // partly new, so there is nothing to compare it with as a whole
+                        split(node, next);
+                    } else {
+                        int from = leaves.get(node[0]).from;
+                        int to = leaves.get(node[1] - 1).to;
+                        compared.add(node);
+                        fingerprints.add(executor.submit(() -> fingerprint(client, recordIdId, filter, field, from, to)));
+                    }
+                }
+                
+                for (int i = 0; i < compared.size(); i++) {
+                    int[] node = compared.get(i);
+                    Fingerprint fingerprint = QuickbaseTableDump.join(fingerprints.get(i));
+                    requests += field == null ? 1 : 2;
+                    if (fingerprint.equals(previous.node(node[0], node[1]).fingerprint)) {
+                        continue;
+                    }
+                    if (QuickbaseTableDump.DEBUG) {
+                        System.err.println("record id range [" + leaves.get(node[0]).from + "," + leaves.get(node[1] - 1).to + ") has changed: " + fingerprint);
+                    }
+                    if (node[1] - node[0] == 1) {
+                        changed[node[0]] = true;
+                        fresh[node[0]] = fingerprint;
+                    } else {
+                        split(node, next);
+                    }
+                }
+                level = next;
+            }
+            
+        } finally {
+            executor.shutdownNow();
+        }
+        if (QuickbaseTableDump.DEBUG) {
+            System.err.println("Compared the fingerprints with " + requests + " requests");
+        }
+    }
+    
+    private static void split(int[] node, List<int[]> next) {
+        int mid = (node[0] + node[1]) >>> 1;
+        next.add(new int[]{ node[0], mid });
+        next.add(new int[]{ mid, node[1] });
+    }
+    
+    /**
+     * Get the fingerprints of the given leaves from Quickbase, in parallel.
+     */
+    private static void fingerprints(QuickbaseClient client, String recordIdId, String filter, String field, List<Node> leaves, List<Integer> indexes, int concurrency, Fingerprint[] fresh) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, concurrency));
+        try {
+            List<Future<Fingerprint>> fingerprints = new ArrayList<Future<Fingerprint>>();
+            for (int i : indexes) {
+                Node leaf = leaves.get(i);
+                fingerprints.add(executor.submit(() -> fingerprint(client, recordIdId, filter, field, leaf.from, leaf.to)));
+            }
+            for (int i = 0; i < indexes.size(); i++) {
+                fresh[indexes.get(i)] = QuickbaseTableDump.join(fingerprints.get(i));
+            }
+            
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    /**
+     * @return The fingerprint of the records with ids in [from,to) in Quickbase.
+     */
+    static Fingerprint fingerprint(QuickbaseClient client, String recordIdId, String filter, String field, int from, int to) throws IOException {
+        String query = QuickbaseTableDump.rangeQuery(recordIdId, from, to, filter);
+        QuickbaseRequest request = client.newRequest("API_DoQueryCount");
+        request.setParameter("query", query);
+        QuickbaseResponse response = request.send();
+        String numMatches = response.get("numMatches");
+        if (numMatches == null || !numMatches.matches("[0-9]+")) {
+            throw QuickbaseException.fromResponse("Unable to count records in record id range [" + from + "," + to + ")", response);
+        }
+        if (field == null) {
+            return new Fingerprint(Long.parseLong(numMatches), null);
+        }
+        
+        request = client.newRequest("API_DoQuery");
+        request.setParameter("query", query);
+        request.setParameter("clist", field);
+        request.setParameter("slist", field);
+        request.setParameter("options", "sortorder-D.num-1");
+        request.setParameter("fmt", "structured");
+        response = request.send();
+        if (!"0".equals(response.get("errcode"))) {
+            throw QuickbaseException.fromResponse("Unable to get the highest value of field " + field + " in record id range [" + from + "," + to + ")", response);
+        }
+        Iterator<QuickbaseRecord> records = response.records();
+        return new Fingerprint(Long.parseLong(numMatches), records.hasNext() ? records.next().getValues().get(field) : null);
+    }
+    
+    /**
+     * Write the previous dump with the changed leaves fetched again, and hash the leaves as they are written.
+     *
+     * @param previousFile the previous dump, or null to fetch all the leaves
+     * @param field the check field, if the fingerprints are taken from the fetched records
+     * @return The new leaves.
+     */
+    private static List<Node> patch(TableDump dump, File previousFile, List<Node> leaves, boolean[] changed, Fingerprint[] fresh, String field, boolean fromRecords, Writer out) throws IOException {
+        List<int[]> ranges = new ArrayList<int[]>();
+        long ids = 0;
+        for (int i = 0; i < leaves.size(); i++) {
+            if (changed[i]) {
+                ranges.add(new int[]{ leaves.get(i).from, leaves.get(i).to });
+                ids += leaves.get(i).to - (long)leaves.get(i).from;
+            }
+        }
+        
+        Hasher hasher = new Hasher(leaves);
+        Fingerprint[] counted = new Fingerprint[leaves.size()];
+        try (DumpReader previous = previousFile == null ? null : new DumpReader(new BufferedReader(new InputStreamReader(new FileInputStream(previousFile), "UTF-8")));
+             CombinedResponseWriter combined = new CombinedResponseWriter(out);
+             PageFetcher pages = new PageFetcher(dump.getClient(), dump.getRecordIdId(), ranges.iterator(), ids, dump.getFilter(), dump.getClist(), new RangeController(dump.getPageSize(), dump.getMaxPageSize()), dump.getConcurrency())) {
+            if (previous != null && previous.getHead() != null) {
+                combined.start(previous.getHead(), previous.hasUsers());
+                for (Map.Entry<String,String> user : previous.getUsers().entrySet()) {
+                    combined.addUser(user.getKey(), user.getValue());
+                }
+            }
+            
+            DumpReader.Record record = previous == null ? null : previous.next();
+            while (pages.hasNext()) {
+                PageFetcher.Page page = pages.next();
+                
+                // keep the previous records before the range, and leave out the ones in it
+                for (; record != null && record.rid < page.to; record = previous.next()) {
+                    if (record.rid < page.from) {
+                        combined.addRecords(record.xml);
+                        hasher.addAll(record.rid, record.xml);
+                    }
+                }
+                
+                Fingerprint fingerprint = new Fingerprint(0, null);
+                for (QuickbaseResponse response : page.responses) {
+                    combined.startWith(response);
+                    combined.addUsers(response);
+                    try (DumpReader records = new DumpReader(new StringReader(response.responseString))) {
+                        DumpReader.Record fetched;
+                        while ((fetched = records.next()) != null) {
+                            combined.addRecords(fetched.xml);
+                            hasher.addAll(fetched.rid, fetched.xml);
+                        }
+                    }
+                    if (fromRecords) {
+                        Iterator<QuickbaseRecord> values = response.records();
+                        while (values.hasNext()) {
+                            QuickbaseRecord value = values.next();
+                            fingerprint = fingerprint.plus(new Fingerprint(1, field == null ? null : value.getValues().get(field)));
+                        }
+                    }
+                }
+                counted[leafIndex(leaves, page.from)] = fingerprint;
+            }
+            for (; record != null; record = previous.next()) {
+                combined.addRecords(record.xml);
+                hasher.addAll(record.rid, record.xml);
+            }
+            
+            combined.finish();
+            if (QuickbaseTableDump.DEBUG) {
+                System.err.println("Found a total of " + combined.getRecordCount() + " records");
+            }
+        }
+        
+        String[] hashes = hasher.finish();
+        List<Node> newLeaves = new ArrayList<Node>();
+        for (int i = 0; i < leaves.size(); i++) {
+            Node leaf = leaves.get(i);
+            Fingerprint fingerprint = !changed[i] ? leaf.fingerprint : fromRecords ? counted[i] : fresh[i];
+            newLeaves.add(new Node(leaf.from, leaf.to, fingerprint, hashes[i]));
+        }
+        return newLeaves;
+    }
+    
+    private static int leafIndex(List<Node> leaves, int recordId) {
+        long width = leaves.get(0).to - (long)leaves.get(0).from;
+        return (int)((recordId - (long)leaves.get(0).from) / width);
+    }
+    
+    /**
+     * Check that the records in the dump have the hashes in the checksums.
+     */
+    private static boolean verify(File dumpFile, Checksums checksums) throws IOException {
+        Hasher hasher = new Hasher(checksums.leaves);
+        try (DumpReader dump = new DumpReader(new BufferedReader(new InputStreamReader(new FileInputStream(dumpFile), "UTF-8")))) {
+            if (dump.getHead() == null) {
+                return false;
+            }
+            DumpReader.Record record;
+            while ((record = dump.next()) != null) {
+                if (!hasher.add(record.rid, record.xml)) {
+                    return false;
+                }
+            }
+        }
+        String[] hashes = hasher.finish();
+        for (int i = 0; i < hashes.length; i++) {
+            if (!hashes[i].equals(checksums.leaves.get(i).hash)) {
+                if (QuickbaseTableDump.DEBUG) {
+                    System.err.println("record id range [" + checksums.leaves.get(i).from + "," + checksums.leaves.get(i).to + ") does not match its checksum");
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Hashes the records of each leaf, given in record id order.
+     */
+    private static class Hasher {
+        private final List<Node> leaves;
+        private final String[] hashes;
+        private final MessageDigest digest = newDigest();
+        private int leaf = 0;
+        
+        Hasher(List<Node> leaves) {
+            this.leaves = leaves;
+            this.hashes = new String[leaves.size()];
+        }
+        
+        /**
+         * @return false if the record is not in any of the leaves, or is out of order
+         */
+        boolean add(int rid, String xml) {
+            if (leaf == leaves.size() || rid < leaves.get(leaf).from) {
+                return false;
+            }
+            while (rid >= leaves.get(leaf).to) {
+                hashes[leaf++] = hex(digest.digest());
+                if (leaf == leaves.size()) {
+                    return false;
+                }
+            }
+            // the whitespace around a record depends on the response it came in
+            digest.update(xml.trim().getBytes(StandardCharsets.UTF_8));
+            return true;
+        }
+        
+        void addAll(int rid, String xml) throws IOException {
+            if (!add(rid, xml)) {
+                throw new IOException("Record id " + rid + " is outside the checksummed record ids, or out of order");
+            }
+        }
+        
+        String[] finish() {
+            for (; leaf < leaves.size(); leaf++) {
+                hashes[leaf] = hex(digest.digest());
+            }
+            return hashes;
+        }
+    }
+    
+    /**
+     * @return The checksums in the file, or null if there is no such file or it can't be used.
+     */
+    static Checksums readChecksums(File checksumsFile) throws IOException {
+        if (!checksumsFile.isFile()) {
+            return null;
+        }
+        List<String> lines = Files.readAllLines(checksumsFile.toPath(), StandardCharsets.UTF_8);
+        try {
+            // # comment, then selection start width root, then the nodes
+            String[] header = lines.get(1).split(" ");
+            String selection = String.join(" ", Arrays.asList(header).subList(0, 4));
+            int start = Integer.parseInt(header[4].substring("start=".length()));
+            int width = Integer.parseInt(header[5].substring("width=".length()));
+            String root = header[6].substring("root=".length());
+            List<Node> leaves = new ArrayList<Node>();
+            for (String line : lines.subList(2, lines.size())) {
+                String[] node = line.split(" ", 6);
+                if ("leaf".equals(node[0])) {
+                    leaves.add(new Node(Integer.parseInt(node[1]), Integer.parseInt(node[2]), new Fingerprint(Long.parseLong(node[3]), decode(node[5])), node[4]));
+                }
+            }
+            Checksums checksums = new Checksums(selection, start, width, leaves);
+            if (!root.equals(checksums.root())) {
+                System.err.println("The checksums in " + checksumsFile + " are inconsistent");
+                return null;
+            }
+            return checksums;
+            
+        } catch (IndexOutOfBoundsException | NumberFormatException e) {
+            System.err.println("Unable to read the checksums in " + checksumsFile + ": " + e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * Write the whole tree, depth first: each node is followed by its children.
+     */
+    private static void writeChecksums(File checksumsFile, String dumpName, Checksums checksums) throws IOException {
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(checksumsFile), "UTF-8"))) {
+            writer.write("# Range checksums of " + dumpName + ": leaf or node, from, to (exclusive), records, SHA-256, highest value of the check field\n");
+            writer.write(checksums.selection + " start=" + checksums.start + " width=" + checksums.width + " root=" + checksums.root() + "\n");
+            if (!checksums.leaves.isEmpty()) {
+                writeNodes(writer, checksums, 0, checksums.leaves.size());
+            }
+        }
+    }
+    
+    private static void writeNodes(Writer writer, Checksums checksums, int lo, int hi) throws IOException {
+        Node node = checksums.node(lo, hi);
+        writer.write((hi - lo == 1 ? "leaf" : "node") + " " + node.from + " " + node.to + " " + node.fingerprint.count + " " + node.hash + " " + encode(node.fingerprint.max) + "\n");
+        if (hi - lo > 1) {
+            int mid = (lo + hi) >>> 1;
+            writeNodes(writer, checksums, lo, mid);
+            writeNodes(writer, checksums, mid, hi);
+        }
+    }
+    
+    /**
+     * Compare values of the check field: as numbers if both are integers (like timestamps), and otherwise as text.
+     */
+    static int compare(String a, String b) {
+        if (a.matches("-?[0-9]{1,18}") && b.matches("-?[0-9]{1,18}")) {
+            return Long.compare(Long.parseLong(a), Long.parseLong(b));
+        }
+        return a.compareTo(b);
+    }
+    
+    static String sha256(String value) {
+        return hex(newDigest().digest(value.getBytes(StandardCharsets.UTF_8)));
+    }
+    
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+    
+    private static String encode(String value) {
+        try {
+            return value == null ? "" : URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    private static String decode(String value) {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
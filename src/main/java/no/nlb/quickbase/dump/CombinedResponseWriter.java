@@ -0,0 +1,382 @@
+package no.nlb.quickbase.dump;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Combines the responses from a series of API_DoQuery requests into a single document, one response at a time.
+ *
+ * The common head is written to the output as soon as the first response arrives. The record bodies are
+ * spooled to a temporary file, since they have to come after the merged list of users, which is not
+ * known until all responses have been seen. Only the users are kept in memory. If all the users are
+ * known before the records, call startRecords, and the records are written directly to the output.
+ *
+ * The output is identical to what QuickbaseTableDump.combineResponses used to produce by matching
+ * regular expressions against the full response strings.
+ */
+class CombinedResponseWriter implements PageConsumer, Closeable {
+    
+    static final String XML_DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n";
+    static final String EMPTY_RESPONSE = XML_DECLARATION + "<qdbapi/>";
+    
+    private static final Pattern USER_ID = Pattern.compile("(?s)^.*id=\"([^\"]*)\".*$");
+    private static final Pattern USER_EMAIL = Pattern.compile("(?s)^.*>([^<]*)</luser.*$");
+    
+    private Writer out;
+    private boolean started = false;
+    private boolean withUsers = false;
+    private SortedMap<String,String> users = new TreeMap<String,String>();
+    private File spoolFile = null;
+    private Writer spool = null;
+    private boolean recordsStarted = false;
+    private long recordCount = 0;
+    private final RecordIdSet recordIds = new RecordIdSet();
+    private long duplicateCount = 0;
+    
+    public CombinedResponseWriter(Writer out) {
+        this.out = out;
+    }
+    
+    /**
+     * Add the next response. Responses must be added in the order they should appear in the output.
+     */
+    @Override
+    public void add(QuickbaseTableDump.QuickbaseResponse response) throws IOException {
+        String responseString = response.responseString;
+        startWith(response);
+        
+        if (withUsers && !parseUsers(responseString, users)) {
+            System.err.println("Response contains no users");
+        }
+        
+        addRecords(recordsBody(responseString));
+    }
+    
+    /**
+     * Write the common head of the response, unless a head has been written already. This is done
+     * automatically by add(response).
+     */
+    public void startWith(QuickbaseTableDump.QuickbaseResponse response) throws IOException {
+        if (started) {
+            return;
+        }
+        String head = head(response.responseString, "<lusers");
+        if (head != null) {
+            // common head with users
+            start(head, true);
+            
+        } else {
+            // common head without users
+            start(head(response.responseString, "<records"), false);
+        }
+    }
+    
+    /**
+     * Write the common head. This is done automatically by the first call to add(response).
+     *
+     * @param head the head, or null if there is none
+     * @param withUsers whether to write the merged users after the head
+     */
+    public void start(String head, boolean withUsers) throws IOException {
+        started = true;
+        this.withUsers = withUsers;
+        out.write(XML_DECLARATION);
+        if (head != null) {
+            out.write(head);
+        }
+    }
+    
+    /**
+     * Add a user to the merged list of users.
+     */
+    public void addUser(String id, String email) {
+        users.put(id, email);
+    }
+    
+    /**
+     * Add the users in the response to the merged list of users.
+     */
+    public void addUsers(QuickbaseTableDump.QuickbaseResponse response) {
+        parseUsers(response.responseString, users);
+    }
+    
+    /**
+     * Write the users that have been added, and write the records directly to the output from now
+     * on, instead of spooling them. No more users can be added.
+     */
+    public void startRecords() throws IOException {
+        writeUsersAndRecordsTag();
+        recordsStarted = true;
+    }
+    
+    /**
+     * Add records to the output. They are written after the users, when finish() is called, or
+     * right away if startRecords() has been called. Records with a record id that has been added
+     * already are dropped.
+     */
+    public void addRecords(String records) throws IOException {
+        if (records.length() == 0) {
+            return;
+        }
+        Writer target = out;
+        if (!recordsStarted) {
+            if (spool == null) {
+                spoolFile = File.createTempFile("quickbase-records-", ".xml");
+                spoolFile.deleteOnExit();
+                spool = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(spoolFile), "UTF-8"));
+            }
+            target = spool;
+        }
+        
+        // the part of the records up to this index has been written, or dropped
+        int written = 0;
+        int record = nextRecord(records, 0);
+        while (record >= 0) {
+            int next = nextRecord(records, record + "<record".length());
+            int rid = recordId(records, record);
+            if (rid < 0 || recordIds.add(rid)) {
+                recordCount++;
+                
+            } else {
+                // drop the duplicate, and the whitespace after it, or before it if it is the last record
+                int end = next;
+                int start = record;
+                if (next < 0) {
+                    end = records.length();
+                    while (start > written && isWhitespace(records.charAt(start - 1))) {
+                        start--;
+                    }
+                }
+                target.write(records, written, start - written);
+                written = end;
+                duplicateCount++;
+            }
+            record = next;
+        }
+        target.write(records, written, records.length() - written);
+    }
+    
+    /**
+     * Count records that have been written to the output without this writer, after startRecords().
+     */
+    public void recordsWritten(long records) {
+        recordCount += records;
+    }
+    
+    /**
+     * Write the merged users and all the spooled records to the output. The output is flushed but not closed.
+     */
+    public void finish() throws IOException {
+        if (!started) {
+            System.err.println("No responses to combine");
+            out.write(EMPTY_RESPONSE);
+            out.flush();
+            return;
+        }
+        
+        if (!recordsStarted) {
+            writeUsersAndRecordsTag();
+        }
+        if (spool != null) {
+            spool.close();
+            spool = null;
+            try (Reader reader = new BufferedReader(new InputStreamReader(new FileInputStream(spoolFile), "UTF-8"))) {
+                char[] buffer = new char[65536];
+                int read;
+                while ((read = reader.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            }
+        }
+        out.write("\n      </records>\n    </table>\n</qdbapi>\n");
+        out.flush();
+        if (duplicateCount > 0) {
+            System.err.println("Dropped " + duplicateCount + " duplicate records");
+        }
+    }
+    
+    private void writeUsersAndRecordsTag() throws IOException {
+        if (withUsers) {
+            out.write("<lusers>\n");
+            for (String userId : users.keySet()) {
+                out.write("<luser id=\"" + userId + "\">" + users.get(userId) + "</luser>\n");
+            }
+            out.write("</lusers>\n      ");
+        }
+        out.write("<records>");
+    }
+    
+    /**
+     * @return The number of records added so far.
+     */
+    public long getRecordCount() {
+        return recordCount;
+    }
+    
+    /**
+     * @return The number of records that have been dropped because their record id had been added already.
+     */
+    public long getDuplicateCount() {
+        return duplicateCount;
+    }
+    
+    @Override
+    public void close() throws IOException {
+        if (spool != null) {
+            spool.close();
+            spool = null;
+        }
+        if (spoolFile != null) {
+            spoolFile.delete();
+            spoolFile = null;
+        }
+    }
+    
+    /**
+     * Everything from the last &lt;qdbapi before the last occurrence of the given tag, up to that tag.
+     *
+     * @return the head, or null if the response does not contain the tag.
+     */
+    static String head(String responseString, String tag) {
+        int tagIndex = responseString.lastIndexOf(tag);
+        if (tagIndex < 0) {
+            return null;
+        }
+        int qdbapiIndex = responseString.lastIndexOf("<qdbapi", tagIndex - "<qdbapi".length());
+        if (qdbapiIndex < 0) {
+            return null;
+        }
+        return responseString.substring(qdbapiIndex, tagIndex);
+    }
+    
+    /**
+     * The content of the &lt;records&gt; element, with trailing whitespace removed.
+     *
+     * @return the records, or an empty string if the response does not contain any records.
+     */
+    static String recordsBody(String responseString) {
+        int open = responseString.lastIndexOf("<records");
+        if (open < 0) {
+            return "";
+        }
+        int start = responseString.indexOf('>', open) + 1;
+        if (start == 0 || responseString.charAt(start - 2) == '/') {
+            return "";
+        }
+        int end = responseString.indexOf("</records", start);
+        if (end < 0) {
+            System.err.println("Response contains an unterminated <records> element");
+            return "";
+        }
+        while (end > start && isWhitespace(responseString.charAt(end - 1))) {
+            end--;
+        }
+        return responseString.substring(start, end);
+    }
+    
+    /**
+     * Parse the &lt;lusers&gt; in a response or dump, and add them to the given map.
+     *
+     * @return false if there are no users
+     */
+    static boolean parseUsers(String responseString, Map<String,String> users) {
+        int open = responseString.lastIndexOf("<lusers");
+        int start = open < 0 ? -1 : responseString.indexOf('>', open) + 1;
+        int end = responseString.lastIndexOf("</lusers");
+        if (open < 0 || start == 0 || end < start) {
+            return false;
+        }
+        
+        for (String luser : responseString.substring(start, end).split("<luser")) {
+            if (!luser.contains("luser")) {
+                continue;
+            }
+            Matcher idMatcher = USER_ID.matcher(luser);
+            Matcher emailMatcher = USER_EMAIL.matcher(luser);
+            if (!idMatcher.matches()) {
+                System.err.println("Unable to parse user ID: " + luser.substring(0, Integer.min(100, luser.length())));
+                continue;
+            }
+            if (!emailMatcher.matches()) {
+                System.err.println("Unable to parse user e-mail: " + luser.substring(0, Integer.min(100, luser.length())));
+                continue;
+            }
+            
+            users.put(idMatcher.group(1), emailMatcher.group(1));
+        }
+        return true;
+    }
+    
+    static long countRecords(String records) {
+        long count = 0;
+        int index = nextRecord(records, 0);
+        while (index >= 0) {
+            count++;
+            index = nextRecord(records, index + "<record".length());
+        }
+        return count;
+    }
+    
+    /**
+     * @return The index of the next &lt;record start tag from the given index, or -1 if there is none.
+     */
+    static int nextRecord(String records, int fromIndex) {
+        int index = records.indexOf("<record", fromIndex);
+        while (index >= 0) {
+            int next = index + "<record".length();
+            if (next < records.length()) {
+                char c = records.charAt(next);
+                if (c == ' ' || c == '>' || c == '/' || c == '\n' || c == '\t' || c == '\r') {
+                    return index;
+                }
+            }
+            index = records.indexOf("<record", next);
+        }
+        return -1;
+    }
+    
+    /**
+     * @return The rid attribute of the &lt;record start tag at the given index, or -1 if it has none.
+     */
+    static int recordId(String records, int index) {
+        int end = records.indexOf('>', index);
+        int rid = index;
+        while (rid < end && !records.startsWith(" rid=\"", rid)) {
+            rid++;
+        }
+        if (rid >= end) {
+            return -1;
+        }
+        int id = 0;
+        int digits = 0;
+        for (int i = rid + " rid=\"".length(); i < end; i++) {
+            char c = records.charAt(i);
+            if (c == '"' && digits > 0) {
+                return id;
+            } else if (c < '0' || c > '9' || digits == 9) {
+                return -1;
+            }
+            id = id * 10 + (c - '0');
+            digits++;
+        }
+        return -1;
+    }
+    
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+}
@@ -0,0 +1,68 @@
+package no.nlb.quickbase.dump;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Removes control characters that are not allowed in the XML responses, while reading.
+ *
+ * The removed ranges are all in the Basic Multilingual Plane, so filtering individual chars
+ * gives the same result as filtering code points, and surrogate pairs pass through untouched.
+ */
+class ControlCharacterFilterReader extends FilterReader {
+    
+    public ControlCharacterFilterReader(Reader in) {
+        super(in);
+    }
+    
+    public static boolean isControlCharacter(int c) {
+        return c < 8 || c >= 14 && c <= 31 || c >= 128 && c <= 132 || c >= 134 && c <= 159;
+    }
+    
+    @Override
+    public int read() throws IOException {
+        int c;
+        do {
+            c = in.read();
+        } while (c != -1 && isControlCharacter(c));
+        return c;
+    }
+    
+    @Override
+    public int read(char[] buffer, int offset, int length) throws IOException {
+        while (true) {
+            int read = in.read(buffer, offset, length);
+            if (read <= 0) {
+                return read;
+            }
+            
+            // compact the buffer in place
+            int end = offset;
+            for (int i = offset; i < offset + read; i++) {
+                char c = buffer[i];
+                if (!isControlCharacter(c)) {
+                    buffer[end++] = c;
+                }
+            }
+            if (end > offset) {
+                return end - offset;
+            }
+            // everything was filtered; read some more rather than returning 0
+        }
+    }
+    
+    @Override
+    public long skip(long n) throws IOException {
+        char[] buffer = new char[(int)Math.min(n, 8192)];
+        long skipped = 0;
+        while (skipped < n) {
+            int read = read(buffer, 0, (int)Math.min(n - skipped, buffer.length));
+            if (read == -1) {
+                break;
+            }
+            skipped += read;
+        }
+        return skipped;
+    }
+}
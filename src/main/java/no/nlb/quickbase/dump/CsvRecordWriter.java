@@ -0,0 +1,64 @@
+package no.nlb.quickbase.dump;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+
+/**
+ * Writes the records as CSV (RFC 4180), with the field labels in the first line.
+ *
+ * Empty values are written as empty cells, and values are only quoted when they need to be.
+ */
+class CsvRecordWriter extends RecordWriter {
+    
+    public CsvRecordWriter(Writer out, Map<String,Map<String,String>> fields) {
+        super(out, fields);
+    }
+    
+    @Override
+    protected void writeHeader() throws IOException {
+        for (int i = 0; i < columns.size(); i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            writeValue(columns.get(i).label);
+        }
+        out.write("\r\n");
+    }
+    
+    @Override
+    protected void writeRecord(String[] values) throws IOException {
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            if (values[i] != null) {
+                writeValue(values[i]);
+            }
+        }
+        out.write("\r\n");
+    }
+    
+    private void writeValue(String value) throws IOException {
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            out.write(value);
+            return;
+        }
+        
+        out.write('"');
+        int start = 0;
+        int index;
+        while ((index = value.indexOf('"', start)) >= 0) {
+            out.write(value, start, index + 1 - start);
+            out.write('"');
+            start = index + 1;
+        }
+        out.write(value, start, value.length() - start);
+        out.write('"');
+    }
+}
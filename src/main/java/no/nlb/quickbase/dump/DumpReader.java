@@ -0,0 +1,198 @@
+package no.nlb.quickbase.dump;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Reads a dump (or a single API_DoQuery response) as text, one record at a time.
+ *
+ * The head and the users are read when the reader is created. The records are then returned
+ * as the raw XML of each &lt;record&gt; element, including the whitespace in front of it, so
+ * that they can be written to a new dump exactly as they were. Only the current record is
+ * kept in memory.
+ */
+class DumpReader implements Closeable {
+    
+    /**
+     * A record as it appears in the dump.
+     */
+    static class Record {
+        public final int rid;
+        public final String xml;
+        
+        public Record(int rid, String xml) {
+            this.rid = rid;
+            this.xml = xml;
+        }
+    }
+    
+    private static final int CHUNK_SIZE = 65536;
+    
+    private Reader reader;
+    private StringBuilder buffer = new StringBuilder();
+    private char[] chunk = new char[CHUNK_SIZE];
+    private int position = 0;
+    private boolean eof = false;
+    private boolean recordsDone = false;
+    
+    private String head = null;
+    private boolean withUsers = false;
+    private SortedMap<String,String> users = new TreeMap<String,String>();
+    
+    public DumpReader(Reader reader) throws IOException {
+        this.reader = reader;
+        
+        int qdbapi = find("<qdbapi");
+        int records = qdbapi < 0 ? -1 : find("<records");
+        if (records < 0) {
+            // empty dump, or not a dump at all
+            recordsDone = true;
+            return;
+        }
+        
+        String beforeRecords = buffer.substring(qdbapi, records);
+        int lusers = beforeRecords.lastIndexOf("<lusers");
+        if (lusers >= 0) {
+            withUsers = true;
+            head = beforeRecords.substring(0, lusers);
+            CombinedResponseWriter.parseUsers(beforeRecords, users);
+        } else {
+            head = beforeRecords;
+        }
+        
+        int recordsEnd = find(">", records);
+        if (recordsEnd < 0 || buffer.charAt(recordsEnd - 1) == '/') {
+            recordsDone = true;
+            return;
+        }
+        position = recordsEnd + 1;
+    }
+    
+    /**
+     * @return Everything from &lt;qdbapi up to the users (or the records, if there are no users). null for an empty dump.
+     */
+    public String getHead() {
+        return head;
+    }
+    
+    public boolean hasUsers() {
+        return withUsers;
+    }
+    
+    public SortedMap<String,String> getUsers() {
+        return users;
+    }
+    
+    /**
+     * @return The next record, or null if there are no more records.
+     */
+    public Record next() throws IOException {
+        if (recordsDone) {
+            return null;
+        }
+        
+        int start = position;
+        int open = find("<", start);
+        if (open < 0 || startsWith("</records", open)) {
+            recordsDone = true;
+            return null;
+        }
+        if (!startsWith("<record", open)) {
+            throw new IOException("Expected <record> but found: " + buffer.substring(open, Math.min(buffer.length(), open + 100)));
+        }
+        
+        int startTagEnd = find(">", open);
+        if (startTagEnd < 0) {
+            throw new IOException("Unterminated <record> element");
+        }
+        String startTag = buffer.substring(open, startTagEnd + 1);
+        int end;
+        if (buffer.charAt(startTagEnd - 1) == '/') {
+            end = startTagEnd + 1;
+        } else {
+            end = find("</record>", startTagEnd);
+            if (end < 0) {
+                throw new IOException("Unterminated <record> element");
+            }
+            end += "</record>".length();
+        }
+        
+        Record record = new Record(parseRid(startTag), buffer.substring(start, end));
+        position = end;
+        if (position > CHUNK_SIZE) {
+            buffer.delete(0, position);
+            position = 0;
+        }
+        return record;
+    }
+    
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+    
+    private static int parseRid(String startTag) throws IOException {
+        int ridIndex = startTag.indexOf(" rid=\"");
+        if (ridIndex < 0) {
+            throw new IOException("Record without rid: " + startTag);
+        }
+        int valueStart = ridIndex + " rid=\"".length();
+        int valueEnd = startTag.indexOf('"', valueStart);
+        try {
+            return Integer.parseInt(startTag.substring(valueStart, valueEnd));
+        } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+            throw new IOException("Unable to parse rid: " + startTag);
+        }
+    }
+    
+    private int find(String string) throws IOException {
+        return find(string, position);
+    }
+    
+    /**
+     * Find the string in the buffer, reading more from the reader as needed.
+     *
+     * @return the index in the buffer, or -1 if the end of the input is reached first
+     */
+    private int find(String string, int from) throws IOException {
+        int searchFrom = from;
+        while (true) {
+            int index = buffer.indexOf(string, searchFrom);
+            if (index >= 0) {
+                return index;
+            }
+            if (eof) {
+                return -1;
+            }
+            searchFrom = Math.max(from, buffer.length() - string.length() + 1);
+            fill();
+        }
+    }
+    
+    private boolean startsWith(String string, int index) throws IOException {
+        while (buffer.length() < index + string.length() && !eof) {
+            fill();
+        }
+        if (buffer.length() < index + string.length()) {
+            return false;
+        }
+        for (int i = 0; i < string.length(); i++) {
+            if (buffer.charAt(index + i) != string.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private void fill() throws IOException {
+        int read = reader.read(chunk);
+        if (read == -1) {
+            eof = true;
+        } else {
+            buffer.append(chunk, 0, read);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package no.nlb.quickbase.dump;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import no.nlb.quickbase.dump.QuickbaseTableDump.QuickbaseClient;
+import no.nlb.quickbase.dump.QuickbaseTableDump.QuickbaseRequest;
+
+/**
+ * Keeps a dump file up to date by only fetching the records that have changed since the last run.
+ *
+ * The watermark is the highest "Date Modified" value in the table when the dump was made, and is
+ * stored next to the dump in a file with the suffix ".watermark". On the next run, only the records
+ * modified on or after the watermark are fetched, and merged into the previous dump by record id.
+ * If there is no previous dump or watermark, a full dump is made.
+ *
+ * Records that are deleted from the table are not removed from the dump; make a full dump now and
+ * then to get rid of them. The same goes for records that no longer match the filter.
+ */
+class IncrementalDump {
+    
+    /**
+     * @param dump the table, the fields and the filter to dump
+     */
+    public static void run(TableDump dump, File dumpFile) throws IOException {
+        QuickbaseClient client = dump.getClient();
+        String recordIdId = dump.getRecordIdId();
+        String filter = dump.getFilter();
+        String clist = dump.getClist();
+        Integer startRecordId = dump.getStartRecordId();
+        Integer endRecordId = dump.getEndRecordId();
+        String dateModifiedId = dump.getSchema().getDateModifiedId();
+        if (dateModifiedId == null) {
+            throw new IOException("The table does not have a Date Modified field; unable to make an incremental dump");
+        }
+        
+        File watermarkFile = new File(dumpFile.getPath() + ".watermark");
+        String watermark = dumpFile.isFile() ? readWatermark(watermarkFile) : null;
+        
+        // determine the new watermark before fetching anything, so that records modified while we fetch are included next time
+        String newWatermark = getMaxDateModified(client, dateModifiedId);
+        
+        // records created before the watermark was determined must be within the range we fetch
+        Integer highestRecordId = QuickbaseTableDump.getRecordIdBound(client, recordIdId, true);
+        if (highestRecordId != null && (endRecordId == null || highestRecordId > endRecordId)) {
+            endRecordId = highestRecordId;
+        }
+        
+        File directory = dumpFile.getAbsoluteFile().getParentFile();
+        File tempFile = File.createTempFile(dumpFile.getName() + "-", ".tmp", directory);
+        try {
+            try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8"))) {
+                if (watermark == null || !merge(client, recordIdId, filter, clist, startRecordId, endRecordId, dateModifiedId, watermark, dumpFile, out)) {
+                    System.err.println("No previous dump with a watermark found; making a full dump");
+                    dump.writeXml(startRecordId, endRecordId, out);
+                }
+            }
+            Files.move(tempFile.toPath(), dumpFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            
+        } finally {
+            tempFile.delete();
+        }
+        
+        // only update the watermark when the dump has been written
+        writeWatermark(watermarkFile, newWatermark);
+    }
+    
+    /**
+     * Fetch the records modified on or after the watermark and merge them into the previous dump.
+     *
+     * @return false if the previous dump is empty, in which case nothing is written
+     */
+    private static boolean merge(QuickbaseClient client, String recordIdId, String filter, String clist, Integer startRecordId, Integer endRecordId, String dateModifiedId, String watermark, File dumpFile, Writer out) throws IOException {
+        try (DumpReader previous = new DumpReader(new BufferedReader(new InputStreamReader(new FileInputStream(dumpFile), "UTF-8")));
+             CombinedResponseWriter combined = new CombinedResponseWriter(out)) {
+            if (previous.getHead() == null || startRecordId == null || endRecordId == null) {
+                return false;
+            }
+            
+            SortedMap<Integer,String> changed = new TreeMap<Integer,String>();
+            Map<String,String> users = new TreeMap<String,String>(previous.getUsers());
+            String modified = "{'" + dateModifiedId + "'.OAF.'" + watermark + "'}";
+            String modifiedFilter = filter == null ? modified : "(" + filter + ")AND" + modified;
+            
+            // start with the whole table in a single request; the range controller splits it if the response is too large
+            int span = endRecordId - startRecordId + 1;
+            QuickbaseTableDump.getPages(client, recordIdId, startRecordId, endRecordId, modifiedFilter, clist, new RangeController(span, span), response -> {
+                String errcode = response.get("errcode");
+                if (errcode != null && !"0".equals(errcode)) {
+                    throw new IOException("Unable to get modified records: " + response.get("errtext") + " (errcode " + errcode + ")");
+                }
+                CombinedResponseWriter.parseUsers(response.responseString, users);
+                try (DumpReader records = new DumpReader(new StringReader(response.responseString))) {
+                    DumpReader.Record record;
+                    while ((record = records.next()) != null) {
+                        changed.put(record.rid, record.xml);
+                    }
+                }
+            });
+            if (QuickbaseTableDump.DEBUG) {
+                System.err.println("Found " + changed.size() + " records modified since " + watermark);
+            }
+            
+            combined.start(previous.getHead(), previous.hasUsers());
+            for (String id : users.keySet()) {
+                combined.addUser(id, users.get(id));
+            }
+            // all the users are known, so the records of the previous dump don't have to be spooled
+            combined.startRecords();
+            
+            Iterator<Integer> changedRids = changed.keySet().iterator();
+            Integer nextChanged = changedRids.hasNext() ? changedRids.next() : null;
+            DumpReader.Record record;
+            while ((record = previous.next()) != null) {
+                // insert new records that come before this one
+                while (nextChanged != null && nextChanged < record.rid) {
+                    combined.addRecords(changed.get(nextChanged));
+                    nextChanged = changedRids.hasNext() ? changedRids.next() : null;
+                }
+                if (nextChanged != null && nextChanged == record.rid) {
+                    // replace the record
+                    combined.addRecords(changed.get(nextChanged));
+                    nextChanged = changedRids.hasNext() ? changedRids.next() : null;
+                } else {
+                    combined.addRecords(record.xml);
+                }
+            }
+            while (nextChanged != null) {
+                combined.addRecords(changed.get(nextChanged));
+                nextChanged = changedRids.hasNext() ? changedRids.next() : null;
+            }
+            
+            combined.finish();
+            if (QuickbaseTableDump.DEBUG) {
+                System.err.println("Found a total of " + combined.getRecordCount() + " records");
+            }
+            return true;
+        }
+    }
+    
+    /**
+     * @return The highest Date Modified value in the table, in milliseconds since the epoch. "0" if the table is empty.
+     */
+    private static String getMaxDateModified(QuickbaseClient client, String dateModifiedId) throws IOException {
+        QuickbaseRequest request = client.newRequest("API_DoQuery");
+        request.setParameter("query", "");
+        request.setParameter("clist", dateModifiedId);
+        request.setParameter("slist", dateModifiedId);
+        request.setParameter("options", "sortorder-D.num-1");
+        request.setParameter("fmt", "structured");
+        Iterator<QuickbaseRecord> records = request.send().records();
+        String max = records.hasNext() ? records.next().getValues().get(dateModifiedId) : null;
+        return max == null ? "0" : max;
+    }
+    
+    private static String readWatermark(File watermarkFile) throws IOException {
+        if (!watermarkFile.isFile()) {
+            return null;
+        }
+        Properties properties = new Properties();
+        try (Reader reader = new InputStreamReader(new FileInputStream(watermarkFile), "UTF-8")) {
+            properties.load(reader);
+        }
+        String watermark = properties.getProperty("watermark");
+        return watermark == null || !watermark.matches("[0-9]+") ? null : watermark;
+    }
+    
+    private static void writeWatermark(File watermarkFile, String watermark) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("watermark", watermark);
+        // written next to the watermark and moved into place, so that it is never left half written
+        File tempFile = File.createTempFile(watermarkFile.getName() + "-", ".tmp", watermarkFile.getAbsoluteFile().getParentFile());
+        try {
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8")) {
+                properties.store(writer, "Highest Date Modified in the dump, in milliseconds since the epoch");
+            }
+            Files.move(tempFile.toPath(), watermarkFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            
+        } finally {
+            tempFile.delete();
+        }
+    }
+}
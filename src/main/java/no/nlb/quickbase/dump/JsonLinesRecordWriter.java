@@ -0,0 +1,84 @@
+package no.nlb.quickbase.dump;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Map;
+
+/**
+ * Writes the records as JSON Lines: one JSON object per record, keyed by the field labels.
+ *
+ * Empty values are written as null. Numbers and checkboxes are written as JSON numbers and booleans.
+ */
+class JsonLinesRecordWriter extends RecordWriter {
+    
+    private final String[] keys;
+    
+    public JsonLinesRecordWriter(Writer out, Map<String,Map<String,String>> fields) {
+        super(out, fields);
+        keys = new String[columns.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = quote(columns.get(i).label) + ":";
+        }
+    }
+    
+    @Override
+    protected void writeRecord(String[] values) throws IOException {
+        out.write('{');
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            out.write(keys[i]);
+            String value = values[i];
+            Type type = columns.get(i).type;
+            if (value == null) {
+                out.write("null");
+            } else if (type == Type.BOOLEAN || type == Type.NUMBER && isNumber(value)) {
+                out.write(value);
+            } else {
+                writeString(out, value);
+            }
+        }
+        out.write("}\n");
+    }
+    
+    private static String quote(String value) {
+        StringWriter quoted = new StringWriter();
+        try {
+            writeString(quoted, value);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // not thrown by StringWriter
+        }
+        return quoted.toString();
+    }
+    
+    private static void writeString(Writer out, String value) throws IOException {
+        out.write('"');
+        int start = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            String escape;
+            if (c == '"') {
+                escape = "\\\"";
+            } else if (c == '\\') {
+                escape = "\\\\";
+            } else if (c == '\n') {
+                escape = "\\n";
+            } else if (c == '\r') {
+                escape = "\\r";
+            } else if (c == '\t') {
+                escape = "\\t";
+            } else if (c < 0x20) {
+                escape = String.format("\\u%04x", (int)c);
+            } else {
+                continue;
+            }
+            out.write(value, start, i - start);
+            out.write(escape);
+            start = i + 1;
+        }
+        out.write(value, start, value.length() - start);
+        out.write('"');
+    }
+}
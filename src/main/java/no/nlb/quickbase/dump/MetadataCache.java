@@ -0,0 +1,156 @@
+package no.nlb.quickbase.dump;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Keeps the authentication ticket, the table schemas and the record id bounds on disk between runs,
+ * so that a dump does not have to start with API_Authenticate, API_GetSchema and two queries for the
+ * record id bounds every time.
+ *
+ * Each entry is a file, and expires when the file is older than the time to live for that kind of
+ * entry. The entries are kept per domain and user, since the ticket and the schema depend on them.
+ * Problems reading or writing the cache are reported, but never stop a dump; the values are then
+ * requested from Quickbase like they would be without a cache.
+ */
+class MetadataCache {
+    
+    private final File dir;
+    private final long ticketTtl;
+    private final long schemaTtl;
+    private final long highestIdTtl;
+    private final Set<String> used = Collections.synchronizedSet(new HashSet<String>());
+    
+    /**
+     * @param cacheDir the directory to keep the cache in
+     * @param ticketTtl how long to use a ticket, in milliseconds
+     * @param schemaTtl how long to use a schema and the lowest record id of a table, in milliseconds
+     * @param highestIdTtl how long to use the highest record id of a table, in milliseconds. 0 to always ask Quickbase.
+     */
+    public MetadataCache(File cacheDir, String domain, String username, long ticketTtl, long schemaTtl, long highestIdTtl) {
+        this.dir = new File(cacheDir, fileName(domain.replaceFirst("^[a-z]+://", "") + "-" + username));
+        this.ticketTtl = ticketTtl;
+        this.schemaTtl = schemaTtl;
+        this.highestIdTtl = highestIdTtl;
+    }
+    
+    /**
+     * @return The cached ticket, or null if there is none or it has expired.
+     */
+    public String getTicket() {
+        return read("ticket", ticketTtl);
+    }
+    
+    public void putTicket(String ticket) {
+        write("ticket", ticket);
+    }
+    
+    public void removeTicket() {
+        new File(dir, "ticket").delete();
+    }
+    
+    /**
+     * @return The cached API_GetSchema response for the table, or null if there is none or it has expired.
+     */
+    public String getSchema(String table) {
+        return read(fileName(table) + ".schema.xml", schemaTtl);
+    }
+    
+    public void putSchema(String table, String response) {
+        write(fileName(table) + ".schema.xml", response);
+    }
+    
+    /**
+     * @return The cached lowest or highest record id of the table, or null if there is none or it has expired.
+     */
+    public String getRecordIdBound(String table, boolean highest) {
+        return read(fileName(table) + (highest ? ".highest" : ".lowest"), highest ? highestIdTtl : schemaTtl);
+    }
+    
+    public void putRecordIdBound(String table, boolean highest, int recordId) {
+        if (!highest || highestIdTtl > 0) {
+            write(fileName(table) + (highest ? ".highest" : ".lowest"), "" + recordId);
+        }
+    }
+    
+    /**
+     * Remove the schema and the record id bounds of the table.
+     *
+     * @return true if any of them have been used in this run
+     */
+    public boolean removeTable(String table) {
+        boolean wasUsed = false;
+        for (String suffix : new String[]{ ".schema.xml", ".lowest", ".highest" }) {
+            String name = fileName(table) + suffix;
+            new File(dir, name).delete();
+            wasUsed |= used.contains(name);
+        }
+        return wasUsed;
+    }
+    
+    private String read(String name, long ttl) {
+        File file = new File(dir, name);
+        long age = System.currentTimeMillis() - file.lastModified();
+        if (ttl <= 0 || !file.isFile() || age > ttl) {
+            return null;
+        }
+        try {
+            String value = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+            used.add(name);
+            if (QuickbaseTableDump.DEBUG) System.err.println("Using the cached " + name + " (" + age / 1000 + " seconds old)");
+            return value;
+            
+        } catch (IOException e) {
+            System.err.println("Unable to read from the cache: " + e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * Replace the entry atomically, so that concurrent runs never see a partial entry. The entries
+     * are only readable by the owner, since the ticket gives access to everything the user can see.
+     */
+    private void write(String name, String value) {
+        try {
+            if (!dir.isDirectory()) {
+                if (!dir.mkdirs()) {
+                    throw new IOException("Unable to create " + dir);
+                }
+                ownerOnly(dir);
+            }
+            File tempFile = File.createTempFile(name + "-", ".tmp", dir);
+            try {
+                ownerOnly(tempFile);
+                Files.write(tempFile.toPath(), value.getBytes(StandardCharsets.UTF_8));
+                Files.move(tempFile.toPath(), new File(dir, name).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                
+            } finally {
+                tempFile.delete();
+            }
+            
+        } catch (IOException e) {
+            System.err.println("Unable to write to the cache: " + e.getMessage());
+        }
+    }
+    
+    private static void ownerOnly(File file) {
+        file.setReadable(false, false);
+        file.setReadable(true, true);
+        file.setWritable(false, false);
+        file.setWritable(true, true);
+        if (file.isDirectory()) {
+            file.setExecutable(false, false);
+            file.setExecutable(true, true);
+        }
+    }
+    
+    private static String fileName(String value) {
+        return value.replaceAll("[^A-Za-z0-9._@-]", "_");
+    }
+}
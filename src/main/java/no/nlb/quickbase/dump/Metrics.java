@@ -0,0 +1,310 @@
+package no.nlb.quickbase.dump;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects metrics for a run: the latency of each request by action, the bytes received, the time
+ * spent in each phase of the dump, the errcodes received, and the number of records and record ids done.
+ *
+ * At the end of the run, the metrics can be written as a JSON summary and as a Prometheus textfile
+ * (for the node_exporter textfile collector). While the dump is running, a progress line with an
+ * estimate of the time left can be printed to stderr at a fixed interval.
+ *
+ * All methods are thread safe. Times are measured with System.nanoTime.
+ */
+class Metrics {
+    
+    /** Time spent waiting for one of the QUICKBASE_CONCURRENCY request permits. */
+    static final String WAIT = "wait";
+    /** Time spent waiting because of the rate limit, or because Quickbase asked us to slow down. */
+    static final String THROTTLED = "throttled";
+    /** Time spent checking the responses for errors and counting the records. */
+    static final String PARSE = "parse";
+    /** Time spent combining the pages and writing the output, including parsing the records for the csv and jsonl formats. */
+    static final String WRITE = "write";
+    
+    /** The upper bounds of the latency histogram buckets, in seconds. */
+    static final double[] BUCKETS = { 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120, 300 };
+    
+    /**
+     * A latency histogram with fixed buckets, as used by Prometheus.
+     */
+    static class Histogram {
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS.length + 1);
+        private final LongAdder sumNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+        
+        void record(long nanos) {
+            double seconds = nanos / 1e9;
+            int bucket = 0;
+            while (bucket < BUCKETS.length && seconds > BUCKETS[bucket]) {
+                bucket++;
+            }
+            counts.incrementAndGet(bucket);
+            sumNanos.add(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+        
+        long getCount() {
+            long count = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                count += counts.get(i);
+            }
+            return count;
+        }
+        
+        /**
+         * @return The number of observations less than or equal to the upper bound of the bucket. The last bucket is +Inf.
+         */
+        long getCumulativeCount(int bucket) {
+            long count = 0;
+            for (int i = 0; i <= bucket; i++) {
+                count += counts.get(i);
+            }
+            return count;
+        }
+        
+        double getSumSeconds() {
+            return sumNanos.sum() / 1e9;
+        }
+        
+        double getMaxSeconds() {
+            return maxNanos.get() / 1e9;
+        }
+    }
+    
+    private final long startNanos = System.nanoTime();
+    private final ConcurrentMap<String,Histogram> requests = new ConcurrentHashMap<String,Histogram>();
+    private final ConcurrentMap<String,LongAdder> phaseNanos = new ConcurrentHashMap<String,LongAdder>();
+    private final ConcurrentMap<String,LongAdder> errcodes = new ConcurrentHashMap<String,LongAdder>();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder records = new LongAdder();
+    private final LongAdder tooLarge = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder idsPlanned = new LongAdder();
+    private final LongAdder idsDone = new LongAdder();
+    private volatile boolean completed = false;
+    
+    private final long progressIntervalNanos;
+    private final AtomicLong lastProgressNanos = new AtomicLong(System.nanoTime());
+    
+    /**
+     * @param progressInterval print a progress line to stderr at most this often, in seconds. 0 to not print progress.
+     */
+    Metrics(int progressInterval) {
+        this.progressIntervalNanos = progressInterval * 1000000000L;
+    }
+    
+    void request(String action, long nanos) {
+        requests.computeIfAbsent(action, a -> new Histogram()).record(nanos);
+    }
+    
+    void time(String phase, long nanos) {
+        phaseNanos.computeIfAbsent(phase, p -> new LongAdder()).add(nanos);
+    }
+    
+    void errcode(String errcode) {
+        errcodes.computeIfAbsent(errcode, e -> new LongAdder()).increment();
+    }
+    
+    void bytesReceived(long bytes) {
+        bytesReceived.add(bytes);
+    }
+    
+    void records(long count) {
+        records.add(count);
+    }
+    
+    void tooLarge() {
+        tooLarge.increment();
+    }
+    
+    void retry() {
+        retries.increment();
+    }
+    
+    /**
+     * Add record ids to the total that the progress is measured against.
+     */
+    void idsPlanned(long count) {
+        idsPlanned.add(count);
+    }
+    
+    /**
+     * Record ids that are done, whether or not there were records with those ids. Prints a progress line if it is time.
+     */
+    void idsDone(long count) {
+        idsDone.add(count);
+        if (progressIntervalNanos > 0) {
+            long now = System.nanoTime();
+            long last = lastProgressNanos.get();
+            if (now - last >= progressIntervalNanos && lastProgressNanos.compareAndSet(last, now)) {
+                System.err.println(progressLine());
+            }
+        }
+    }
+    
+    void completed() {
+        completed = true;
+    }
+    
+    Histogram getRequests(String action) {
+        return requests.get(action);
+    }
+    
+    long getRecords() {
+        return records.sum();
+    }
+    
+    double getElapsedSeconds() {
+        return (System.nanoTime() - startNanos) / 1e9;
+    }
+    
+    String progressLine() {
+        double elapsed = getElapsedSeconds();
+        long planned = idsPlanned.sum();
+        long done = Math.min(planned, idsDone.sum());
+        double fraction = planned == 0 ? 0 : (double)done / planned;
+        String eta = fraction <= 0 ? "unknown" : formatDuration((long)(elapsed / fraction - elapsed));
+        return String.format(Locale.ROOT, "Progress: %.1f%% of record ids, %d records (%.0f records/s), %.1f MB received, ETA %s",
+                fraction * 100, getRecords(), getRecords() / Math.max(elapsed, 0.001), bytesReceived.sum() / 1e6, eta);
+    }
+    
+    /**
+     * Write the metrics as JSON.
+     */
+    void writeJson(Writer out) throws IOException {
+        double elapsed = getElapsedSeconds();
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"completed\": ").append(completed).append(",\n");
+        json.append("  \"elapsedSeconds\": ").append(number(elapsed)).append(",\n");
+        json.append("  \"records\": ").append(getRecords()).append(",\n");
+        json.append("  \"recordsPerSecond\": ").append(number(getRecords() / Math.max(elapsed, 0.001))).append(",\n");
+        json.append("  \"bytesReceived\": ").append(bytesReceived.sum()).append(",\n");
+        json.append("  \"tooLargeSplits\": ").append(tooLarge.sum()).append(",\n");
+        json.append("  \"retries\": ").append(retries.sum()).append(",\n");
+        json.append("  \"recordIds\": { \"planned\": ").append(idsPlanned.sum()).append(", \"done\": ").append(idsDone.sum()).append(" },\n");
+        json.append("  \"errcodes\": {");
+        String separator = " ";
+        for (Map.Entry<String,LongAdder> errcode : new TreeMap<String,LongAdder>(errcodes).entrySet()) {
+            json.append(separator).append("\"").append(errcode.getKey()).append("\": ").append(errcode.getValue().sum());
+            separator = ", ";
+        }
+        json.append(errcodes.isEmpty() ? "},\n" : " },\n");
+        json.append("  \"phaseSeconds\": {");
+        separator = " ";
+        for (String phase : new String[]{ WAIT, THROTTLED, PARSE, WRITE }) {
+            LongAdder nanos = phaseNanos.get(phase);
+            json.append(separator).append("\"").append(phase).append("\": ").append(number(nanos == null ? 0 : nanos.sum() / 1e9));
+            separator = ", ";
+        }
+        json.append(" },\n");
+        json.append("  \"requests\": {");
+        separator = "\n";
+        for (Map.Entry<String,Histogram> request : new TreeMap<String,Histogram>(requests).entrySet()) {
+            Histogram histogram = request.getValue();
+            json.append(separator).append("    \"").append(request.getKey()).append("\": {");
+            json.append(" \"count\": ").append(histogram.getCount());
+            json.append(", \"sumSeconds\": ").append(number(histogram.getSumSeconds()));
+            json.append(", \"maxSeconds\": ").append(number(histogram.getMaxSeconds()));
+            json.append(", \"buckets\": {");
+            for (int i = 0; i <= BUCKETS.length; i++) {
+                json.append(i == 0 ? " " : ", ").append("\"").append(i < BUCKETS.length ? number(BUCKETS[i]) : "+Inf").append("\": ").append(histogram.getCumulativeCount(i));
+            }
+            json.append(" } }");
+            separator = ",\n";
+        }
+        json.append(requests.isEmpty() ? "}\n" : "\n  }\n");
+        json.append("}\n");
+        out.write(json.toString());
+    }
+    
+    /**
+     * Write the metrics in the Prometheus text format.
+     */
+    void writePrometheus(Writer out) throws IOException {
+        StringBuilder prom = new StringBuilder();
+        prom.append("# HELP quickbase_dump_request_duration_seconds Duration of Quickbase API requests, including reading the response.\n");
+        prom.append("# TYPE quickbase_dump_request_duration_seconds histogram\n");
+        for (Map.Entry<String,Histogram> request : new TreeMap<String,Histogram>(requests).entrySet()) {
+            String action = request.getKey();
+            Histogram histogram = request.getValue();
+            for (int i = 0; i <= BUCKETS.length; i++) {
+                prom.append("quickbase_dump_request_duration_seconds_bucket{action=\"").append(action).append("\",le=\"").append(i < BUCKETS.length ? number(BUCKETS[i]) : "+Inf").append("\"} ").append(histogram.getCumulativeCount(i)).append("\n");
+            }
+            prom.append("quickbase_dump_request_duration_seconds_sum{action=\"").append(action).append("\"} ").append(number(histogram.getSumSeconds())).append("\n");
+            prom.append("quickbase_dump_request_duration_seconds_count{action=\"").append(action).append("\"} ").append(histogram.getCount()).append("\n");
+        }
+        prom.append("# HELP quickbase_dump_phase_seconds_total Time spent in each phase of the dump.\n");
+        prom.append("# TYPE quickbase_dump_phase_seconds_total counter\n");
+        for (String phase : new String[]{ WAIT, THROTTLED, PARSE, WRITE }) {
+            LongAdder nanos = phaseNanos.get(phase);
+            prom.append("quickbase_dump_phase_seconds_total{phase=\"").append(phase).append("\"} ").append(number(nanos == null ? 0 : nanos.sum() / 1e9)).append("\n");
+        }
+        prom.append("# HELP quickbase_dump_errcode_total Responses with a non-zero errcode, or an HTTP error status.\n");
+        prom.append("# TYPE quickbase_dump_errcode_total counter\n");
+        for (Map.Entry<String,LongAdder> errcode : new TreeMap<String,LongAdder>(errcodes).entrySet()) {
+            prom.append("quickbase_dump_errcode_total{errcode=\"").append(errcode.getKey()).append("\"} ").append(errcode.getValue().sum()).append("\n");
+        }
+        appendMetric(prom, "quickbase_dump_received_bytes_total", "counter", "Bytes received in responses, after decompression.", "" + bytesReceived.sum());
+        appendMetric(prom, "quickbase_dump_records_total", "counter", "Records received.", "" + getRecords());
+        appendMetric(prom, "quickbase_dump_too_large_total", "counter", "Record id ranges that were split because the response was too large (errcode 75).", "" + tooLarge.sum());
+        appendMetric(prom, "quickbase_dump_retries_total", "counter", "Requests that were sent again after failing or being throttled.", "" + retries.sum());
+        appendMetric(prom, "quickbase_dump_elapsed_seconds", "gauge", "Duration of the run.", number(getElapsedSeconds()));
+        appendMetric(prom, "quickbase_dump_completed", "gauge", "1 if the run completed, 0 if it failed.", completed ? "1" : "0");
+        appendMetric(prom, "quickbase_dump_last_run_timestamp_seconds", "gauge", "When the run ended, in seconds since the epoch.", "" + System.currentTimeMillis() / 1000);
+        out.write(prom.toString());
+    }
+    
+    /**
+     * Write the summary files given by the environment. The files are replaced atomically, so that
+     * a collector never sees a partial file.
+     */
+    void writeSummary(String jsonFile, String prometheusFile) throws IOException {
+        if (jsonFile != null && !"".equals(jsonFile)) {
+            File file = new File(jsonFile);
+            File tempFile = new File(file.getPath() + ".tmp");
+            try (Writer out = new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8")) {
+                writeJson(out);
+            }
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        if (prometheusFile != null && !"".equals(prometheusFile)) {
+            File file = new File(prometheusFile);
+            File tempFile = new File(file.getPath() + ".tmp");
+            try (Writer out = new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8")) {
+                writePrometheus(out);
+            }
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+    
+    private static void appendMetric(StringBuilder prom, String name, String type, String help, String value) {
+        prom.append("# HELP ").append(name).append(" ").append(help).append("\n");
+        prom.append("# TYPE ").append(name).append(" ").append(type).append("\n");
+        prom.append(name).append(" ").append(value).append("\n");
+    }
+    
+    private static String number(double value) {
+        return String.format(Locale.ROOT, "%.6f", value).replaceAll("\\.?0+$", "");
+    }
+    
+    private static String formatDuration(long seconds) {
+        return String.format(Locale.ROOT, "%02d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+    }
+}
@@ -0,0 +1,21 @@
+package no.nlb.quickbase.dump;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Receives the API_DoQuery responses of a dump, one page at a time, in record id order.
+ */
+interface PageConsumer extends RangeConsumer {
+    void add(QuickbaseTableDump.QuickbaseResponse response) throws IOException;
+    
+    /**
+     * Adds the responses one after the other.
+     */
+    @Override
+    default void addRange(int from, int to, List<QuickbaseTableDump.QuickbaseResponse> responses) throws IOException {
+        for (QuickbaseTableDump.QuickbaseResponse response : responses) {
+            add(response);
+        }
+    }
+}
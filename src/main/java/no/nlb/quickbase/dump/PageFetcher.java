@@ -0,0 +1,168 @@
+package no.nlb.quickbase.dump;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import no.nlb.quickbase.dump.QuickbaseTableDump.QuickbaseClient;
+import no.nlb.quickbase.dump.QuickbaseTableDump.QuickbaseResponse;
+
+/**
+ * Fetches the pages of a dump in record id order, a few pages ahead of the consumer.
+ *
+ * Pages are only requested as the consumer takes them: at most twice the concurrency are being
+ * fetched or waiting to be taken, so a slow consumer slows down the fetching instead of filling up
+ * the memory. Close the fetcher to cancel the pages that are being fetched.
+ *
+ * With the blocking transport, each page is fetched on a thread of its own. With the async
+ * transport, the requests are sent without a thread per page, and the responses are handled on
+ * the I/O threads as they arrive.
+ *
+ * Record id ranges that could not be fetched at all are reported when the fetcher is closed.
+ */
+class PageFetcher implements Closeable {
+    
+    /**
+     * All the responses for the record id range [from,to). There may be more than one response if
+     * the range had to be split.
+     */
+    static class Page {
+        final int from;
+        final int to;
+        final List<QuickbaseResponse> responses;
+        
+        Page(int from, int to, List<QuickbaseResponse> responses) {
+            this.from = from;
+            this.to = to;
+            this.responses = responses;
+        }
+    }
+    
+    private static class PendingPage {
+        final int from;
+        final int to;
+        final Future<List<QuickbaseResponse>> responses;
+        
+        PendingPage(int from, int to, Future<List<QuickbaseResponse>> responses) {
+            this.from = from;
+            this.to = to;
+            this.responses = responses;
+        }
+    }
+    
+    private final QuickbaseClient client;
+    private final String recordIdId;
+    private final Iterator<int[]> ranges;
+    private final String filter;
+    private final String clist;
+    private final RangeController rangeController;
+    private final int concurrency;
+    private final ExecutorService executor;
+    private final Deque<PendingPage> pending = new ArrayDeque<PendingPage>();
+    
+    /**
+     * @param ranges the ranges, [from,to), in record id order. The next range is taken when its page is submitted.
+     * @param ids the number of record ids in the ranges, for the progress
+     * @param filter an additional query that the records must match, or null
+     * @param clist the fields to get, separated by periods, or "a" for all fields
+     * @param concurrency the number of pages to fetch in parallel
+     */
+    public PageFetcher(QuickbaseClient client, String recordIdId, Iterator<int[]> ranges, long ids, String filter, String clist, RangeController rangeController, int concurrency) {
+        this.client = client;
+        this.recordIdId = recordIdId;
+        this.ranges = ranges;
+        this.filter = filter;
+        this.clist = clist;
+        this.rangeController = rangeController;
+        this.concurrency = Math.max(1, concurrency);
+        this.executor = client.isAsync() ? null : Executors.newFixedThreadPool(this.concurrency);
+        client.getMetrics().idsPlanned(ids);
+    }
+    
+    public boolean hasNext() {
+        return !pending.isEmpty() || ranges.hasNext();
+    }
+    
+    /**
+     * Wait for the next page, and submit the ranges that there is room for now.
+     */
+    public Page next() throws IOException {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        fill();
+        PendingPage page = pending.removeFirst();
+        try {
+            List<QuickbaseResponse> responses = page.responses.get();
+            client.getMetrics().idsDone(page.to - (long)page.from);
+            // the page that was taken makes room for another one
+            fill();
+            return new Page(page.from, page.to, responses);
+            
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while fetching record id range [" + page.from + "," + page.to + ")");
+            
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException)e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException)e.getCause();
+            }
+            throw new IOException("Unable to fetch record id range [" + page.from + "," + page.to + ")", e.getCause());
+        }
+    }
+    
+    /**
+     * Give the rest of the pages to the consumer.
+     */
+    public void forEach(RangeConsumer consumer) throws IOException {
+        while (hasNext()) {
+            Page page = next();
+            long writeStart = System.nanoTime();
+            consumer.addRange(page.from, page.to, page.responses);
+            client.getMetrics().time(Metrics.WRITE, System.nanoTime() - writeStart);
+        }
+        if (QuickbaseTableDump.DEBUG) {
+            System.err.println("Responses too large: " + rangeController.getTooLargeCount() + ", final page size: " + rangeController.getWindowSize());
+        }
+    }
+    
+    @Override
+    public void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        for (PendingPage page : pending) {
+            page.responses.cancel(true);
+        }
+        List<int[]> dropped = rangeController.takeDroppedRanges();
+        if (!dropped.isEmpty()) {
+            System.err.println("Missing record id ranges, which could not be fetched: " + RecordIdSet.toString(dropped));
+        }
+    }
+    
+    private void fill() {
+        while (pending.size() < 2 * concurrency && ranges.hasNext()) {
+            int[] range = ranges.next();
+            int from = range[0];
+            int to = range[1];
+            Future<List<QuickbaseResponse>> responses;
+            if (executor == null) {
+                responses = QuickbaseTableDump.getRangeAsync(client, recordIdId, from, to, filter, clist, rangeController);
+            } else {
+                responses = executor.submit(() -> QuickbaseTableDump.getRange(client, recordIdId, from, to, filter, clist, rangeController));
+            }
+            pending.add(new PendingPage(from, to, responses));
+        }
+    }
+}
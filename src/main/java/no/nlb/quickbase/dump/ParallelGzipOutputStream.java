@@ -0,0 +1,219 @@
+package no.nlb.quickbase.dump;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses the output on several threads, like pigz. The output is cut into blocks, and each
+ * block is compressed on its own into a complete gzip member. Concatenated gzip members are a
+ * valid gzip file, and gunzip, zcat and GZIPInputStream read them as one stream. The blocks are
+ * written in order.
+ *
+ * At most a fixed number of blocks are being compressed or waiting to be written at the same time;
+ * when that many are pending, a write waits for the oldest block to be written.
+ */
+class ParallelGzipOutputStream extends OutputStream {
+    
+    static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+    
+    /** A minimal gzip header: deflate, no flags, no time, no extra flags, unknown OS. */
+    private static final byte[] HEADER = { 0x1f, (byte)0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte)0xff };
+    
+    private final OutputStream out;
+    private final ExecutorService executor;
+    private final boolean ownsExecutor;
+    private final int blockSize;
+    private final int maxPendingBlocks;
+    private final int level;
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+    
+    private byte[] block;
+    private int blockLength = 0;
+    private boolean anyMembers = false;
+    private boolean finished = false;
+    
+    /**
+     * Compress on the given number of threads, with blocks of the default size.
+     */
+    public ParallelGzipOutputStream(OutputStream out, int threads) {
+        this(out, Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "gzip");
+            thread.setDaemon(true);
+            return thread;
+        }), true, DEFAULT_BLOCK_SIZE, 2 * threads, Deflater.DEFAULT_COMPRESSION);
+    }
+    
+    /**
+     * @param executor compresses the blocks. It can be shared by several streams.
+     * @param blockSize the number of uncompressed bytes in each gzip member
+     * @param maxPendingBlocks the largest number of blocks that are compressed or waiting to be written at the same time
+     * @param level the compression level, 1-9, or Deflater.DEFAULT_COMPRESSION
+     */
+    public ParallelGzipOutputStream(OutputStream out, ExecutorService executor, int blockSize, int maxPendingBlocks, int level) {
+        this(out, executor, false, blockSize, maxPendingBlocks, level);
+    }
+    
+    private ParallelGzipOutputStream(OutputStream out, ExecutorService executor, boolean ownsExecutor, int blockSize, int maxPendingBlocks, int level) {
+        this.out = out;
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        this.blockSize = blockSize;
+        this.maxPendingBlocks = Math.max(1, maxPendingBlocks);
+        this.level = level;
+        this.block = new byte[blockSize];
+    }
+    
+    @Override
+    public void write(int b) throws IOException {
+        checkOpen();
+        if (blockLength == blockSize) {
+            submit();
+        }
+        block[blockLength++] = (byte)b;
+    }
+    
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        checkOpen();
+        while (len > 0) {
+            if (blockLength == blockSize) {
+                submit();
+            }
+            int length = Math.min(len, blockSize - blockLength);
+            System.arraycopy(b, off, block, blockLength, length);
+            blockLength += length;
+            off += length;
+            len -= length;
+        }
+    }
+    
+    /**
+     * Compress and write everything that has been written so far. This ends the current gzip
+     * member, so flushing often makes the compression worse.
+     */
+    @Override
+    public void flush() throws IOException {
+        checkOpen();
+        if (blockLength > 0) {
+            submit();
+        }
+        while (!pending.isEmpty()) {
+            writeOldest();
+        }
+        out.flush();
+    }
+    
+    /**
+     * Write the rest of the compressed data without closing the underlying stream.
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        try {
+            // an empty gzip file is not valid, so there is always at least one member
+            if (blockLength > 0 || !anyMembers) {
+                submit();
+            }
+            while (!pending.isEmpty()) {
+                writeOldest();
+            }
+            out.flush();
+            
+        } finally {
+            finished = true;
+            if (ownsExecutor) {
+                executor.shutdownNow();
+            }
+        }
+    }
+    
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+    
+    private void submit() throws IOException {
+        checkOpen();
+        byte[] data = block;
+        int length = blockLength;
+        pending.add(executor.submit(() -> compress(data, length, level)));
+        anyMembers = true;
+        block = new byte[blockSize];
+        blockLength = 0;
+        
+        // bound the memory used by blocks that are waiting
+        while (pending.size() >= maxPendingBlocks) {
+            writeOldest();
+        }
+    }
+    
+    private void writeOldest() throws IOException {
+        try {
+            out.write(pending.removeFirst().get());
+            
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing");
+            
+        } catch (ExecutionException e) {
+            throw new IOException("Unable to compress the output", e.getCause());
+        }
+    }
+    
+    private void checkOpen() throws IOException {
+        if (finished) {
+            throw new IOException("The stream is finished");
+        }
+    }
+    
+    /**
+     * @return A complete gzip member with the given data.
+     */
+    static byte[] compress(byte[] data, int length, int level) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            ByteArrayOutputStream member = new ByteArrayOutputStream(length / 2 + 64);
+            member.write(HEADER, 0, HEADER.length);
+            
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+            byte[] buffer = new byte[64 * 1024];
+            while (!deflater.finished()) {
+                int compressed = deflater.deflate(buffer);
+                member.write(buffer, 0, compressed);
+            }
+            
+            CRC32 crc = new CRC32();
+            crc.update(data, 0, length);
+            writeInt(member, (int)crc.getValue());
+            writeInt(member, length);
+            return member.toByteArray();
+            
+        } finally {
+            deflater.end();
+        }
+    }
+    
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        // little endian
+        out.write(value);
+        out.write(value >>> 8);
+        out.write(value >>> 16);
+        out.write(value >>> 24);
+    }
+}
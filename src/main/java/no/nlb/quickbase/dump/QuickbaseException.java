@@ -0,0 +1,40 @@
+package no.nlb.quickbase.dump;
+
+import java.io.IOException;
+
+/**
+ * A request to Quickbase failed: it could not be sent, the response could not be read, or Quickbase
+ * answered with an error code.
+ */
+public class QuickbaseException extends IOException {
+    
+    private static final long serialVersionUID = 1L;
+    
+    private final String errcode;
+    
+    public QuickbaseException(String message, String errcode) {
+        super(message);
+        this.errcode = errcode;
+    }
+    
+    public QuickbaseException(String message, Throwable cause) {
+        super(message, cause);
+        this.errcode = null;
+    }
+    
+    /**
+     * @param what what was being done, for instance "Unable to get the schema"
+     * @return An exception for the error in the response.
+     */
+    static QuickbaseException fromResponse(String what, QuickbaseTableDump.QuickbaseResponse response) {
+        String errcode = response.get("errcode");
+        return new QuickbaseException(what + ": " + response.get("errtext") + " (errcode " + errcode + ")", errcode);
+    }
+    
+    /**
+     * @return The errcode of the Quickbase response, or null if the request failed without one.
+     */
+    public String getErrcode() {
+        return errcode;
+    }
+}
@@ -0,0 +1,30 @@
+package no.nlb.quickbase.dump;
+
+import java.util.Map;
+
+/**
+ * A single record from a API_DoQuery response.
+ */
+public class QuickbaseRecord {
+    private final String rid;
+    private final Map<String,String> values;
+    
+    public QuickbaseRecord(String rid, Map<String,String> values) {
+        this.rid = rid;
+        this.values = values;
+    }
+    
+    /**
+     * @return The record id, as given in the rid attribute.
+     */
+    public String getRid() {
+        return rid;
+    }
+    
+    /**
+     * @return The field values, keyed by field id. Other simple elements in the record (like update_id) are keyed by element name.
+     */
+    public Map<String,String> getValues() {
+        return values;
+    }
+}
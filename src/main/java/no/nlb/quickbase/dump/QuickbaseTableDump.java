@@ -1,37 +1,74 @@
 package no.nlb.quickbase.dump;
 
-import java.io.ByteArrayInputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
+import org.apache.http.Header;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpHeaders;
 import org.apache.http.HttpResponse;
 import org.apache.http.ParseException;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.entity.DeflateDecompressingEntity;
+import org.apache.http.client.entity.GzipDecompressingEntity;
+import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.config.RequestConfig;
+import org.apache.http.concurrent.FutureCallback;
 import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.client.methods.ZeroCopyConsumer;
 import org.apache.http.util.EntityUtils;
-import org.w3c.dom.DOMException;
 import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
 /**
@@ -39,60 +76,491 @@ import org.xml.sax.SAXException;
  */
 public class QuickbaseTableDump {
     
-    private static final int MAX_ROWS_PER_REQUEST = 5000;
+    private static final int PAGE_SIZE = getIntegerEnv("QUICKBASE_PAGE_SIZE", 5000);
+    private static final int MAX_PAGE_SIZE = getIntegerEnv("QUICKBASE_MAX_PAGE_SIZE", 100000);
     private static final String ENCODING = "iso-8859-1";
-    private static final boolean DEBUG = !("".equals(System.getenv("QUICKBASE_DEBUG")) || System.getenv("QUICKBASE_DEBUG") == null);
+    static final boolean DEBUG = !("".equals(System.getenv("QUICKBASE_DEBUG")) || System.getenv("QUICKBASE_DEBUG") == null);
     private static final boolean DEBUG_DEBUG = "2".equals(System.getenv("QUICKBASE_DEBUG"));
+    private static final int CONCURRENCY = getIntegerEnv("QUICKBASE_CONCURRENCY", 1);
+    private static final String TRANSPORT = System.getenv("QUICKBASE_TRANSPORT") == null || "".equals(System.getenv("QUICKBASE_TRANSPORT")) ? "blocking" : System.getenv("QUICKBASE_TRANSPORT");
+    private static final int CONNECT_TIMEOUT = getIntegerEnv("QUICKBASE_CONNECT_TIMEOUT", 30000);
+    private static final int SOCKET_TIMEOUT = getIntegerEnv("QUICKBASE_SOCKET_TIMEOUT", 600000);
+    private static final int RATE_LIMIT = getIntegerEnv("QUICKBASE_RATE_LIMIT", 0, 0);
+    private static final int RETRIES = getIntegerEnv("QUICKBASE_RETRIES", 5, 0);
+    private static final int RETRY_DELAY = getIntegerEnv("QUICKBASE_RETRY_DELAY", 1000);
+    private static final String WORK_DIR = System.getenv("QUICKBASE_WORK_DIR");
+    private static final String SHARD = System.getenv("QUICKBASE_SHARD") == null || "".equals(System.getenv("QUICKBASE_SHARD")) ? null : System.getenv("QUICKBASE_SHARD");
+    private static final int PROGRESS = getIntegerEnv("QUICKBASE_PROGRESS", 0, 0);
+    
+    /** The metrics of the run started by main. Clients created elsewhere have their own. */
+    private static final Metrics METRICS = new Metrics(PROGRESS);
+    private static final boolean PLAN = System.getenv("QUICKBASE_PLAN") != null && !"".equals(System.getenv("QUICKBASE_PLAN"));
+    private static final boolean EXPLAIN = System.getenv("QUICKBASE_EXPLAIN") != null && !"".equals(System.getenv("QUICKBASE_EXPLAIN"));
+    private static final Pattern QUERY_FIELD_ID = Pattern.compile("\\{'?([0-9]+)'?\\.");
+    private static final String FIELDS = System.getenv("QUICKBASE_FIELDS");
+    private static final String QUERY = System.getenv("QUICKBASE_QUERY") == null || "".equals(System.getenv("QUICKBASE_QUERY")) ? null : System.getenv("QUICKBASE_QUERY");
+    static final String FORMAT = System.getenv("QUICKBASE_FORMAT") == null || "".equals(System.getenv("QUICKBASE_FORMAT")) ? "xml" : System.getenv("QUICKBASE_FORMAT");
+    static final String COMPRESS = System.getenv("QUICKBASE_COMPRESS") == null || "".equals(System.getenv("QUICKBASE_COMPRESS")) ? null : System.getenv("QUICKBASE_COMPRESS");
+    private static final int COMPRESS_THREADS = getIntegerEnv("QUICKBASE_COMPRESS_THREADS", Runtime.getRuntime().availableProcessors());
+    private static final String CACHE_DIR = System.getenv("QUICKBASE_CACHE_DIR");
+    private static final int CACHE_TTL = getIntegerEnv("QUICKBASE_CACHE_TTL", 3600, 0);
+    private static final int CACHE_HIGHEST_ID_TTL = getIntegerEnv("QUICKBASE_CACHE_HIGHEST_ID_TTL", 0, 0);
+    /** Tickets are requested for 24 hours; stop using them an hour before they expire. */
+    private static final long TICKET_TTL = 23 * 3600 * 1000L;
     
     public static class QuickbaseClient {
         private HttpClient client;
+        private CloseableHttpAsyncClient asyncClient;
+        private RequestConfig requestConfig;
         private String apptoken;
+        private String baseUrl;
         private String url;
-        private String ticket = null;
+        private String table;
+        private volatile String ticket = null;
+        private String cachedTicket = null;
+        private RequestScheduler scheduler;
+        private MetadataCache cache;
+        private QuickbaseClient session;
+        private String username;
+        private String password;
+        private Metrics metrics;
+        
+        public QuickbaseClient(String apptoken, String domain, String table, String username, String password) throws IOException {
+            this(apptoken, domain, table, username, password, cache(domain, username));
+        }
+        
+        /**
+         * @param cache keeps the ticket, the schemas and the record id bounds between runs, or null
+         */
+        public QuickbaseClient(String apptoken, String domain, String table, String username, String password, MetadataCache cache) throws IOException {
+            this(apptoken, domain, table, username, password, cache, TRANSPORT, CONCURRENCY);
+        }
+        
+        /**
+         * @param transport "blocking" to wait for each response on a thread of its own, or "async" to
+         *                  send the requests without waiting, and handle the responses as they arrive
+         * @param concurrency the number of requests that can be sent at the same time
+         */
+        public QuickbaseClient(String apptoken, String domain, String table, String username, String password, MetadataCache cache, String transport, int concurrency) throws IOException {
+            this(apptoken, domain, table, username, password, cache, transport, concurrency, new Metrics(PROGRESS));
+        }
         
-        public QuickbaseClient(String apptoken, String domain, String table, String username, String password) {
-            this.client = HttpClientBuilder.create().build();
+        /**
+         * @param metrics where the requests of this client and of the clients for other tables created from it are counted
+         */
+        QuickbaseClient(String apptoken, String domain, String table, String username, String password, MetadataCache cache, String transport, int concurrency, Metrics metrics) throws IOException {
+            if (!"blocking".equals(transport) && !"async".equals(transport)) {
+                throw new IllegalArgumentException("Unknown transport: " + transport + " (use blocking or async)");
+            }
+            
+            RequestConfig.Builder configBuilder = RequestConfig.custom()
+                                                               .setConnectTimeout(CONNECT_TIMEOUT)
+                                                               .setConnectionRequestTimeout(SOCKET_TIMEOUT)
+                                                               .setSocketTimeout(SOCKET_TIMEOUT)
+                                                               .setContentCompressionEnabled(true);
+            HttpHost proxy = parseProxy(System.getenv("http_proxy"));
+            if (proxy != null) configBuilder.setProxy(proxy);
+            this.requestConfig = configBuilder.build();
+            if (DEBUG) System.err.println("config is " + requestConfig.toString());
+            
+            // the connection pool and request config are shared by all requests from this client
+            if ("async".equals(transport)) {
+                // a few I/O threads handle all the connections, however many requests are sent at the same time
+                this.asyncClient = HttpAsyncClients.custom()
+                                                   .setMaxConnTotal(Math.max(20, concurrency))
+                                                   .setMaxConnPerRoute(Math.max(2, concurrency))
+                                                   .setDefaultRequestConfig(requestConfig)
+                                                   .setDefaultIOReactorConfig(IOReactorConfig.custom()
+                                                                                             .setConnectTimeout(CONNECT_TIMEOUT)
+                                                                                             .setSoTimeout(SOCKET_TIMEOUT)
+                                                                                             .build())
+                                                   .setKeepAliveStrategy(DefaultConnectionKeepAliveStrategy.INSTANCE)
+                                                   .setThreadFactory(runnable -> {
+                                                       Thread thread = new Thread(runnable, "quickbase-io");
+                                                       thread.setDaemon(true);
+                                                       return thread;
+                                                   })
+                                                   .build();
+                asyncClient.start();
+                
+            } else {
+                PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+                connectionManager.setMaxTotal(Math.max(20, concurrency));
+                connectionManager.setDefaultMaxPerRoute(Math.max(2, concurrency));
+                connectionManager.setValidateAfterInactivity(10000);
+                this.client = HttpClientBuilder.create()
+                                               .setConnectionManager(connectionManager)
+                                               .setDefaultRequestConfig(requestConfig)
+                                               .setKeepAliveStrategy(DefaultConnectionKeepAliveStrategy.INSTANCE)
+                                               .evictIdleConnections(60, TimeUnit.SECONDS)
+                                               .build();
+            }
             this.apptoken = apptoken;
-            this.url = "https://"+domain+"/db/main";
+            this.metrics = metrics;
+            this.scheduler = new RequestScheduler(concurrency, RATE_LIMIT, RETRIES, RETRY_DELAY, metrics);
+            
+            // the domain may include the scheme, for instance to use a local test server
+            this.baseUrl = domain.contains("://") ? domain : "https://"+domain;
+            this.cache = cache;
+            this.session = this;
+            this.username = username;
+            this.password = password;
+            
+            ticket = cache == null ? null : cache.getTicket();
+            cachedTicket = ticket;
+            if (ticket == null) {
+                authenticate();
+            }
             
-            QuickbaseRequest authRequest = newRequest("API_Authenticate");
+            this.url = baseUrl+"/db/"+table;
+            this.table = table;
+        }
+        
+        private void authenticate() throws IOException {
+            QuickbaseRequest authRequest = new QuickbaseRequest(client, requestConfig, scheduler, baseUrl+"/db/main", "API_Authenticate");
+            authRequest.asyncClient = asyncClient;
+            authRequest.setParameter("encoding", ENCODING);
+            authRequest.setParameter("apptoken", apptoken);
             authRequest.setParameter("username", username);
             authRequest.setParameter("password", password);
             authRequest.setParameter("hours", "24");
             QuickbaseResponse response = authRequest.send();
+            if (response.get("ticket") == null) {
+                throw QuickbaseException.fromResponse("Unable to authenticate", response);
+            }
             
             ticket = response.get("ticket");
-            
-            this.url = "https://"+domain+"/db/"+table;
+            if (cache != null) {
+                cache.putTicket(ticket);
+            }
+        }
+        
+        /**
+         * @return The cache configured by the environment, or null if QUICKBASE_CACHE_DIR is not set.
+         */
+        private static MetadataCache cache(String domain, String username) {
+            return CACHE_DIR == null || "".equals(CACHE_DIR) ? null
+                    : new MetadataCache(new File(CACHE_DIR), domain, username, TICKET_TTL, CACHE_TTL * 1000L, CACHE_HIGHEST_ID_TTL * 1000L);
+        }
+        
+        /**
+         * A client for another table, sharing the connections, the ticket, the request scheduler and the metrics with this client.
+         */
+        private QuickbaseClient(QuickbaseClient parent, String table) {
+            this.client = parent.client;
+            this.asyncClient = parent.asyncClient;
+            this.requestConfig = parent.requestConfig;
+            this.apptoken = parent.apptoken;
+            this.baseUrl = parent.baseUrl;
+            this.scheduler = parent.scheduler;
+            this.metrics = parent.metrics;
+            this.cache = parent.cache;
+            this.session = parent.session;
+            this.url = baseUrl+"/db/"+table;
+            this.table = table;
+        }
+        
+        public QuickbaseClient forTable(String table) {
+            return new QuickbaseClient(this, table);
+        }
+        
+        public String getTable() {
+            return table;
+        }
+        
+        /**
+         * @return true if requests are sent without waiting for them
+         */
+        public boolean isAsync() {
+            return asyncClient != null;
+        }
+        
+        /**
+         * Stop the I/O threads of the async transport. The clients for the other tables share them,
+         * so only close the client they were created from.
+         */
+        public void close() throws IOException {
+            if (asyncClient != null && session == this) {
+                asyncClient.close();
+            }
+        }
+        
+        /**
+         * @return The metrics of the requests sent by this client.
+         */
+        Metrics getMetrics() {
+            return metrics;
+        }
+        
+        /**
+         * @return The cache for the ticket, the schemas and the record id bounds, or null if there is none.
+         */
+        MetadataCache getCache() {
+            return cache;
         }
         
         public QuickbaseRequest newRequest(String action) {
-            QuickbaseRequest request = new QuickbaseRequest(client, url, action);
+            QuickbaseRequest request = new QuickbaseRequest(client, requestConfig, scheduler, url, action);
+            request.asyncClient = asyncClient;
+            request.owner = this;
             
             request.setParameter("encoding", ENCODING);
             request.setParameter("apptoken", apptoken);
+            String ticket = session.ticket;
             if (ticket != null) {
                 request.setParameter("ticket", ticket);
             }
             
             return request;
         }
+        
+        /**
+         * Download a file, like a file attachment, with the ticket of this client. The file is
+         * streamed to disk as it arrives. Downloads share the connections, the limits and the
+         * retries with the API requests, and a retried download writes the file from the start.
+         * 
+         * @param url the URL of the file, or a path on the Quickbase domain, like /up/...
+         * @throws QuickbaseException if the file can not be downloaded, also after retrying
+         */
+        public void download(String url, File file) throws IOException {
+            String fileUrl = url.contains("://") ? url : baseUrl + url;
+            String ticket = session.ticket;
+            // the ticket is only sent to Quickbase, not to other hosts in URLs from the records
+            String requestUrl = ticket != null && fileUrl.startsWith(baseUrl + "/")
+                    ? fileUrl + (fileUrl.contains("?") ? "&" : "?") + "ticket=" + URLEncoder.encode(ticket, "UTF-8")
+                    : fileUrl;
+            int[] status = new int[1];
+            try {
+                scheduler.send(RequestScheduler.DOWNLOAD, () -> {
+                    status[0] = downloadOnce(fileUrl, requestUrl, file);
+                    return null;
+                });
+                
+            } catch (QuickbaseException e) {
+                throw e;
+                
+            } catch (IOException e) {
+                throw new QuickbaseException("Unable to download " + fileUrl + ": " + e.getMessage(), e);
+            }
+            if (status[0] != 200) {
+                file.delete();
+                throw new QuickbaseException("Unable to download " + fileUrl + ": HTTP " + status[0], (String)null);
+            }
+        }
+        
+        /**
+         * Send a download request once.
+         * 
+         * @return The HTTP status
+         * @throws RequestScheduler.RetryableException if the server is overloaded or fails
+         */
+        private int downloadOnce(String fileUrl, String requestUrl, File file) throws IOException {
+            long timeBefore = System.nanoTime();
+            HttpResponse response;
+            if (asyncClient != null) {
+                // the async client writes the content to the file as it arrives, without a thread of its own
+                Future<HttpResponse> future = asyncClient.execute(HttpAsyncMethods.createGet(requestUrl), new ZeroCopyConsumer<HttpResponse>(file) {
+                    @Override
+                    protected HttpResponse process(HttpResponse response, File file, ContentType contentType) {
+                        return response;
+                    }
+                }, null);
+                response = join(future);
+                
+            } else {
+                HttpGet get = new HttpGet(requestUrl);
+                get.setConfig(requestConfig);
+                response = client.execute(get);
+                HttpEntity entity = response.getEntity();
+                if (response.getStatusLine().getStatusCode() == 200 && entity != null) {
+                    try (OutputStream out = new FileOutputStream(file)) {
+                        entity.writeTo(out);
+                    }
+                } else {
+                    EntityUtils.consumeQuietly(entity);
+                }
+            }
+            metrics.request(RequestScheduler.DOWNLOAD, System.nanoTime() - timeBefore);
+            
+            int status = response.getStatusLine().getStatusCode();
+            if (status == 429 || status == 503 || status >= 500) {
+                metrics.errcode("HTTP " + status);
+                boolean throttled = status == 429 || status == 503;
+                throw new RequestScheduler.RetryableException(RequestScheduler.DOWNLOAD + " of " + fileUrl + ": HTTP " + status + " " + response.getStatusLine().getReasonPhrase(), throttled, QuickbaseRequest.retryAfter(response));
+            }
+            if (status == 200) {
+                metrics.bytesReceived(file.length());
+            }
+            return status;
+        }
+        
+        /**
+         * Handle the errors that mean that something from the cache is out of date. A request that
+         * failed because the cached ticket is no longer valid (errcode 4 or 22) is sent again with a
+         * new ticket. If a field or the table does not exist (errcode 31 or 32), the cached schema and
+         * record id bounds of the table are removed, and if they were used in this run, the request
+         * fails, since it was based on them.
+         */
+        QuickbaseResponse checkCache(QuickbaseRequest request, QuickbaseResponse response) throws IOException {
+            if (cache == null) {
+                return response;
+            }
+            String errcode = response.get("errcode");
+            if (("4".equals(errcode) || "22".equals(errcode)) && session.renewTicket(request.parameters.get("ticket"))) {
+                System.err.println("The cached ticket is no longer valid; authenticating again");
+                request.setParameter("ticket", session.ticket);
+                return request.send();
+                
+            } else if ("31".equals(errcode) || "32".equals(errcode)) {
+                if (cache.removeTable(table)) {
+                    throw new QuickbaseException(response.get("errtext") + " (errcode " + errcode + "). The cached schema of " + table + " is out of date, and has been removed from the cache. Run the dump again.", errcode);
+                }
+            }
+            return response;
+        }
+        
+        /**
+         * Like checkCache, for a response that arrived on an I/O thread. Authenticating again waits
+         * for a response, so it is done on a thread of its own.
+         */
+        CompletableFuture<QuickbaseResponse> checkCacheAsync(QuickbaseRequest request, QuickbaseResponse response) {
+            CompletableFuture<QuickbaseResponse> checked = new CompletableFuture<QuickbaseResponse>();
+            String errcode = response.get("errcode");
+            if (cache != null && ("4".equals(errcode) || "22".equals(errcode))) {
+                new Thread(() -> complete(checked, request, response), "quickbase-authenticate").start();
+            } else {
+                complete(checked, request, response);
+            }
+            return checked;
+        }
+        
+        private void complete(CompletableFuture<QuickbaseResponse> checked, QuickbaseRequest request, QuickbaseResponse response) {
+            try {
+                checked.complete(checkCache(request, response));
+            } catch (IOException|RuntimeException e) {
+                checked.completeExceptionally(e);
+            }
+        }
+        
+        /**
+         * Authenticate again if the failed ticket is the cached one. This is only done once, so that
+         * a user that is not authorized doesn't authenticate over and over.
+         * 
+         * @return true if there is a new ticket to try
+         */
+        private synchronized boolean renewTicket(String failedTicket) throws IOException {
+            if (failedTicket == null || !failedTicket.equals(cachedTicket)) {
+                return false;
+            }
+            // another request may have renewed it already
+            if (cachedTicket.equals(ticket)) {
+                cache.removeTicket();
+                authenticate();
+            }
+            return !cachedTicket.equals(ticket);
+        }
+        
+        private static HttpHost parseProxy(String proxyServer) {
+            HttpHost proxyHost = null;
+            if (proxyServer != null) {
+                String proxyHostStr = proxyServer;
+                int slashIdx = proxyHostStr.lastIndexOf('/');
+                if (slashIdx != -1) {
+                    proxyHostStr = proxyHostStr.substring(slashIdx + 1);
+                }
+                int colonIdx = proxyHostStr.indexOf(':');
+                if (colonIdx != -1) {
+                    String proxyPortStr = proxyHostStr.substring(colonIdx + 1);
+                    proxyHostStr = proxyHostStr.substring(0, colonIdx);
+                    if (proxyPortStr != null && proxyPortStr.length() > 0 && proxyPortStr.matches("[0-9]+")) {
+                        int proxyPort = Integer.parseInt(proxyPortStr);
+                        proxyHost = new HttpHost(proxyHostStr, proxyPort);
+                    } else {
+                        proxyHost = new HttpHost(proxyHostStr, 80/*default port*/);
+                    }
+                } else {
+                    proxyHost = new HttpHost(proxyHostStr);
+                }
+            }
+            return proxyHost;
+        }
     }
     
-    private static class QuickbaseRequest {
+    static class QuickbaseRequest {
         Map<String,String> parameters;
         HttpClient client;
+        RequestConfig config;
+        RequestScheduler scheduler;
         String url;
         String action;
+        QuickbaseClient owner = null;
+        CloseableHttpAsyncClient asyncClient = null;
         
-        public QuickbaseRequest(HttpClient client, String url, String action) {
+        public QuickbaseRequest(HttpClient client, RequestConfig config, RequestScheduler scheduler, String url, String action) {
             parameters = new HashMap<String,String>();
             this.client = client;
+            this.config = config;
+            this.scheduler = scheduler;
             this.url = url;
             this.action = action;
         }
         
-        public QuickbaseResponse send() {
+        /**
+         * @throws QuickbaseException if the request fails, also after retrying it
+         */
+        public QuickbaseResponse send() throws IOException {
+            if (asyncClient != null) {
+                return join(sendAsync());
+            }
+            byte[] body = body();
+            QuickbaseResponse response;
+            try {
+                response = scheduler.send(action, () -> execute(body));
+                
+            } catch (QuickbaseException e) {
+                throw e;
+                
+            } catch (IOException|ParseException e) {
+                throw new QuickbaseException(action + " failed: " + e.getMessage(), e);
+            }
+            return owner == null ? response : owner.checkCache(this, response);
+        }
+        
+        /**
+         * Send the request without waiting for the response. With the blocking transport, the
+         * request is sent on this thread, and the returned response is already complete.
+         * 
+         * @return The response, or a QuickbaseException if the request fails, also after retrying it
+         */
+        public CompletableFuture<QuickbaseResponse> sendAsync() {
+            if (asyncClient == null) {
+                CompletableFuture<QuickbaseResponse> response = new CompletableFuture<QuickbaseResponse>();
+                try {
+                    response.complete(send());
+                } catch (IOException|RuntimeException e) {
+                    response.completeExceptionally(e);
+                }
+                return response;
+            }
+            byte[] body = body();
+            return scheduler.sendAsync(action, () -> executeAsync(body)).handle((response, error) -> {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                if (cause == null) {
+                    return response;
+                } else if (cause instanceof IOException && !(cause instanceof QuickbaseException) || cause instanceof ParseException) {
+                    cause = new QuickbaseException(action + " failed: " + cause.getMessage(), cause);
+                }
+                throw new CompletionException(cause);
+                
+            }).thenCompose(response -> {
+                if (owner == null) {
+                    return CompletableFuture.completedFuture(response);
+                }
+                return owner.checkCacheAsync(this, response);
+            });
+        }
+        
+        private byte[] body() {
             String postString = "<qdbapi>";
             if (DEBUG) {
                 System.err.println("Building <qdbapi> request...");
@@ -102,7 +570,7 @@ public class QuickbaseTableDump {
                 if (DEBUG) {
                     System.err.println("- adding key: \"" + key + "\" (" + parameters.get(key) + ")");
                 }
-                postString += parameters.get(key).replaceAll("<", "&lt;").replaceAll(">", "&gt;").replaceAll("&", "&amp;");
+                postString += parameters.get(key).replaceAll("&", "&amp;").replaceAll("<", "&lt;").replaceAll(">", "&gt;");
                 postString += "</"+key+">";
             }
             postString += "</qdbapi>";
@@ -110,56 +578,166 @@ public class QuickbaseTableDump {
                 System.err.println("Request string:");
                 System.err.println(postString);
             }
-            byte[] postBytes = null;
-            try {
-                postBytes = postString.getBytes(ENCODING);
-            } catch (UnsupportedEncodingException e) {
-                e.printStackTrace();
-                System.exit(1);
-            }
+            byte[] postBytes = postString.getBytes(Charset.forName(ENCODING));
             if (DEBUG) {
                 System.err.println("Done building <qdbapi> request");
             }
-            
+            return postBytes;
+        }
+        
+        /**
+         * Send the request once.
+         * 
+         * @throws RequestScheduler.RetryableException if the server is overloaded or fails
+         */
+        private QuickbaseResponse execute(byte[] postBytes) throws IOException {
+            HttpPost post = post(postBytes);
+            long timeBefore = System.nanoTime();
+            if (DEBUG) {
+                System.err.println("Sending HTTP request...");
+            }
+            return received(client.execute(post), timeBefore);
+        }
+        
+        /**
+         * Send the request once, without waiting for the response. The response is read on the I/O
+         * thread it arrives on.
+         */
+        private CompletableFuture<QuickbaseResponse> executeAsync(byte[] postBytes) {
+            HttpPost post = post(postBytes);
+            // the async client does not ask for compressed responses by itself
+            post.setHeader(HttpHeaders.ACCEPT_ENCODING, "gzip,deflate");
+            long timeBefore = System.nanoTime();
+            if (DEBUG) {
+                System.err.println("Sending HTTP request...");
+            }
+            CompletableFuture<QuickbaseResponse> result = new CompletableFuture<QuickbaseResponse>();
+            asyncClient.execute(post, new FutureCallback<HttpResponse>() {
+                @Override
+                public void completed(HttpResponse response) {
+                    try {
+                        HttpEntity entity = response.getEntity();
+                        Header encoding = entity == null ? null : entity.getContentEncoding();
+                        if (encoding != null && "gzip".equalsIgnoreCase(encoding.getValue())) {
+                            response.setEntity(new GzipDecompressingEntity(entity));
+                        } else if (encoding != null && "deflate".equalsIgnoreCase(encoding.getValue())) {
+                            response.setEntity(new DeflateDecompressingEntity(entity));
+                        }
+                        result.complete(received(response, timeBefore));
+                        
+                    } catch (IOException|RuntimeException e) {
+                        result.completeExceptionally(e);
+                    }
+                }
+                
+                @Override
+                public void failed(Exception e) {
+                    result.completeExceptionally(e);
+                }
+                
+                @Override
+                public void cancelled() {
+                    result.completeExceptionally(new InterruptedIOException(action + " was cancelled"));
+                }
+            });
+            return result;
+        }
+        
+        private HttpPost post(byte[] postBytes) {
             HttpPost post = new HttpPost(url);
-            
-            HttpHost proxy = parseProxy(System.getenv("http_proxy"));
-            RequestConfig.Builder configBuilder = RequestConfig.custom();
-            if (proxy != null) configBuilder.setProxy(proxy);
-            RequestConfig config = configBuilder.build();
-            if ( QuickbaseTableDump.DEBUG ) System.err.println("config is " + config.toString());
             post.setConfig(config);
             
             post.setHeader("QUICKBASE-ACTION", action);
             post.setHeader(HttpHeaders.CONTENT_TYPE, "application/xml");
             HttpEntity postEntity = new ByteArrayEntity(postBytes);
             post.setEntity(postEntity);
+            return post;
+        }
+        
+        /**
+         * @throws RequestScheduler.RetryableException if the server is overloaded or fails
+         */
+        private QuickbaseResponse received(HttpResponse response, long timeBefore) throws IOException {
+            HttpEntity entity = response.getEntity();
             
-            HttpResponse response = null;
-            try {
-                long timeBefore = new Date().getTime();
-                if (DEBUG) {
-                    System.err.println("Sending HTTP request...");
+            int status = response.getStatusLine().getStatusCode();
+            if (status == 429 || status == 503 || status >= 500) {
+                EntityUtils.consumeQuietly(entity);
+                scheduler.getMetrics().request(action, System.nanoTime() - timeBefore);
+                scheduler.getMetrics().errcode("HTTP " + status);
+                boolean throttled = status == 429 || status == 503;
+                throw new RequestScheduler.RetryableException(action + ": HTTP " + status + " " + response.getStatusLine().getReasonPhrase(), throttled, retryAfter(response));
+            }
+            
+            QuickbaseResponse quickbaseResponse = new QuickbaseResponse(readResponse(entity, scheduler.getMetrics()));
+            long duration = System.nanoTime() - timeBefore;
+            scheduler.getMetrics().request(action, duration);
+            if (DEBUG) {
+                System.err.println("HTTP request duration in ms: "+(duration / 1000000));
+            }
+            return quickbaseResponse;
+        }
+        
+        /**
+         * @return The number of milliseconds given in the Retry-After header, or 0 if there is none.
+         */
+        private static long retryAfter(HttpResponse response) {
+            Header retryAfter = response.getFirstHeader(HttpHeaders.RETRY_AFTER);
+            if (retryAfter == null || !retryAfter.getValue().trim().matches("[0-9]{1,6}")) {
+                return 0;
+            }
+            return Long.parseLong(retryAfter.getValue().trim()) * 1000;
+        }
+        
+        /**
+         * Decodes the response and removes control characters in a single pass over the entity stream.
+         */
+        private static String readResponse(HttpEntity entity, Metrics metrics) throws IOException {
+            ContentType contentType = ContentType.get(entity);
+            Charset charset = contentType == null || contentType.getCharset() == null ? Charset.forName(ENCODING) : contentType.getCharset();
+            long contentLength = entity.getContentLength();
+            StringBuilder responseString = new StringBuilder(contentLength > 0 && contentLength < Integer.MAX_VALUE ? (int)contentLength : 8192);
+            
+            CountingInputStream content = new CountingInputStream(entity.getContent());
+            try (Reader reader = new ControlCharacterFilterReader(new InputStreamReader(content, charset))) {
+                char[] buffer = new char[8192];
+                int read;
+                while ((read = reader.read(buffer)) != -1) {
+                    responseString.append(buffer, 0, read);
                 }
-                response = client.execute(post);
-                if (DEBUG) {
-                    long timeAfter = new Date().getTime();
-                    System.err.println("HTTP request duration in ms: "+(timeAfter - timeBefore));
+            }
+            metrics.bytesReceived(content.count);
+            
+            return responseString.toString();
+        }
+        
+        /**
+         * Counts the bytes read from the response, after decompression.
+         */
+        private static class CountingInputStream extends FilterInputStream {
+            long count = 0;
+            
+            CountingInputStream(InputStream in) {
+                super(in);
+            }
+            
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b != -1) {
+                    count++;
                 }
-                
-            } catch (IOException|ParseException e) {
-                e.printStackTrace();
-                System.exit(1);
+                return b;
             }
             
-            try {
-                HttpEntity entity = response.getEntity();
-                return new QuickbaseResponse(removeControlCharacters(EntityUtils.toString(entity,ENCODING)));
-            } catch (IOException|ParseException e) {
-                e.printStackTrace();
-                System.exit(1);
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int read = super.read(buffer, offset, length);
+                if (read > 0) {
+                    count += read;
+                }
+                return read;
             }
-            return null;
         }
         
         public static String removeControlCharacters(String value) {
@@ -167,10 +745,21 @@ public class QuickbaseTableDump {
                 System.err.println("Removing control characters...");
             }
             
-            value = value.codePoints()
-                         .filter(cp -> !(cp < 8 || cp >= 14 && cp <= 31 || cp >= 128 && cp <= 132 || cp >= 134 && cp <= 159))
-                         .collect(StringBuilder::new, StringBuilder::appendCodePoint, StringBuilder::append)
-                         .toString();
+            StringBuilder filtered = null;
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (ControlCharacterFilterReader.isControlCharacter(c)) {
+                    if (filtered == null) {
+                        filtered = new StringBuilder(value.length());
+                        filtered.append(value, 0, i);
+                    }
+                } else if (filtered != null) {
+                    filtered.append(c);
+                }
+            }
+            if (filtered != null) {
+                value = filtered.toString();
+            }
             
             if (DEBUG) {
                 System.err.println("Removing control characters... done");
@@ -181,34 +770,16 @@ public class QuickbaseTableDump {
         public void setParameter(String key, String value) {
             parameters.put(key, value);
         }
-        
-        private HttpHost parseProxy(String proxyServer) {
-            HttpHost proxyHost = null;
-            if (proxyServer != null) {
-                String proxyHostStr = proxyServer;
-                int slashIdx = proxyHostStr.lastIndexOf('/');
-                if (slashIdx != -1) {
-                    proxyHostStr = proxyHostStr.substring(slashIdx + 1);
-                }
-                int colonIdx = proxyHostStr.indexOf(':');
-                if (colonIdx != -1) {
-                    String proxyPortStr = proxyHostStr.substring(colonIdx + 1);
-                    proxyHostStr = proxyHostStr.substring(0, colonIdx);
-                    if (proxyPortStr != null && proxyPortStr.length() > 0 && proxyPortStr.matches("[0-9]+")) {
-                        int proxyPort = Integer.parseInt(proxyPortStr);
-                        proxyHost = new HttpHost(proxyHostStr, proxyPort);
-                    } else {
-                        proxyHost = new HttpHost(proxyHostStr, 80/*default port*/);
-                    }
-                } else {
-                    proxyHost = new HttpHost(proxyHostStr);
-                }
-            }
-            return proxyHost;
-        }
     }
     
     static class QuickbaseResponse {
+        private static final ThreadLocal<XMLInputFactory> XML_INPUT_FACTORY = ThreadLocal.withInitial(() -> {
+            XMLInputFactory factory = XMLInputFactory.newInstance();
+            factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+            factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+            return factory;
+        });
+        
         public String responseString = null;
         private Document xml = null;
         private Map<String,String> results = null;
@@ -223,36 +794,25 @@ public class QuickbaseTableDump {
         
         private void parseResults() {
             if (results != null) return;
-            String s = new String(responseString);
             if (DEBUG) {
                 System.err.println("Parsing results...");
             }
             
             results = new HashMap<String,String>();
-            NodeList qdbapiNodeList = xml().getElementsByTagName("qdbapi");
-            Element qdbapiElement = (Element)qdbapiNodeList.item(0);
-            NodeList resultNodes = qdbapiElement.getChildNodes();
-            for (int i = 0; i < resultNodes.getLength(); i++) { // iterate elements inside element
-                Node resultChildNode = resultNodes.item(i);
-                if (resultChildNode.getNodeType() == Node.ELEMENT_NODE) {
-                    String name = resultChildNode.getNodeName();
-                    String value = null;
-                    NodeList childNodes = resultChildNode.getChildNodes();
-                    for (int j = 0; j < childNodes.getLength(); j++) { // iterate nodes inside element to check for content
-                        Node childNode = childNodes.item(j);
-                        if (childNode.getNodeType() == Node.ELEMENT_NODE) {
-                            // ignore elements with complex content
-                            value = null;
-                            break;
-                        }
-                        if (childNode.getNodeType() == Node.TEXT_NODE) {
-                            value = childNode.getNodeValue();
-                        }
-                    }
+            try {
+                XMLStreamReader reader = reader();
+                reader.nextTag(); // <qdbapi>
+                while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) { // iterate elements inside element
+                    String name = reader.getLocalName();
+                    String value = readSimpleContent(reader);
                     if (value != null) {
                         results.put(name, value);
                     }
                 }
+                reader.close();
+                
+            } catch (XMLStreamException e) {
+                throw malformed(e);
             }
             
             if (DEBUG) {
@@ -260,6 +820,9 @@ public class QuickbaseTableDump {
             }
         }
         
+        /**
+         * Builds a DOM of the whole response. Prefer the other methods, which parse the response without building a tree.
+         */
         public Document xml() {
             if (xml != null) return xml;
             if (DEBUG) {
@@ -269,12 +832,10 @@ public class QuickbaseTableDump {
             try {
                 DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
                 DocumentBuilder documentBuilder = documentBuilderFactory.newDocumentBuilder();
-                InputStream stream = new ByteArrayInputStream(responseString.getBytes("UTF-8"));
-                xml = documentBuilder.parse(stream);
+                xml = documentBuilder.parse(new InputSource(new StringReader(responseString)));
                 
             } catch (ParserConfigurationException | SAXException | IOException e) {
-                e.printStackTrace();
-                System.exit(1);
+                throw malformed(e);
             }
             
             if (DEBUG) {
@@ -284,6 +845,64 @@ public class QuickbaseTableDump {
             return xml;
         }
         
+        private static UncheckedIOException malformed(Exception e) {
+            return new UncheckedIOException(new QuickbaseException("Unable to parse the response: " + e.getMessage(), e));
+        }
+        
+        private XMLStreamReader reader() throws XMLStreamException {
+            return XML_INPUT_FACTORY.get().createXMLStreamReader(new StringReader(responseString));
+        }
+        
+        /**
+         * Reads the content of the current element, and leaves the reader at its end tag.
+         * 
+         * @return The text content of the element, or null if it is empty or has complex content.
+         */
+        private static String readSimpleContent(XMLStreamReader reader) throws XMLStreamException {
+            String value = null;
+            boolean complex = false;
+            int depth = 1;
+            while (depth > 0) {
+                switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    // ignore elements with complex content
+                    complex = true;
+                    depth++;
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    depth--;
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    if (depth == 1) {
+                        value = value == null ? reader.getText() : value + reader.getText();
+                    }
+                    break;
+                }
+            }
+            return complex ? null : value;
+        }
+        
+        /**
+         * Moves the reader to the next start tag with the given name.
+         * 
+         * @return false if the end of the document is reached
+         */
+        private static boolean nextElement(XMLStreamReader reader, String name) throws XMLStreamException {
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT && name.equals(reader.getLocalName())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        
+        private static String getAttribute(XMLStreamReader reader, String name) {
+            String value = reader.getAttributeValue(null, name);
+            return value == null ? "" : value;
+        }
+        
         public String get(String key) {
             parseResults();
             return results.get(key);
@@ -299,18 +918,21 @@ public class QuickbaseTableDump {
 				return null;
 			}
 			
-			NodeList chdbids = xml().getElementsByTagName("chdbids");
-			if (chdbids.getLength() > 0) {
-				chdbids = chdbids.item(0).getChildNodes();
-				Map<String,String> tables = new HashMap<String,String>();
-				for (int i = 0; i < chdbids.getLength(); i++) {
-					if (!(chdbids.item(i) instanceof Element)) {
-						continue;
+			try {
+				XMLStreamReader reader = reader();
+				if (nextElement(reader, "chdbids")) {
+					Map<String,String> tables = new HashMap<String,String>();
+					while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+						String name = getAttribute(reader, "name");
+						tables.put(name, reader.getElementText());
 					}
-					Element chdbid = (Element)chdbids.item(i);
-					tables.put(chdbid.getAttribute("name"), chdbid.getTextContent());
+					reader.close();
+					return tables;
 				}
-				return tables;
+				reader.close();
+				
+			} catch (XMLStreamException e) {
+				throw malformed(e);
 			}
 			
 			return null;
@@ -322,42 +944,35 @@ public class QuickbaseTableDump {
             }
             
             Map<String,Map<String,String>> fields = new HashMap<String,Map<String,String>>();
-            NodeList fieldElements = xml().getElementsByTagName("field");
-            for (int i = 0; i < fieldElements.getLength(); i++) {
-                Element fieldElement = (Element)fieldElements.item(i);
-                
-                Map<String,String> fieldValues = new HashMap<String,String>();
-                
-                NodeList fieldChildNodes = fieldElement.getChildNodes();
-                for (int j = 0; j < fieldChildNodes.getLength(); j++) { // iterate elements inside field element
-                    Node fieldChildNode = fieldChildNodes.item(j);
-                    if (fieldChildNode.getNodeType() == Node.ELEMENT_NODE) {
-                        String name = fieldChildNode.getNodeName();
-                        String value = null;
-                        NodeList childNodes = fieldChildNode.getChildNodes();
-                        for (int k = 0; k < childNodes.getLength(); k++) { // iterate nodes inside field value element to check for content
-                            Node childNode = childNodes.item(k);
-                            if (childNode.getNodeType() == Node.ELEMENT_NODE) {
-                                // ignore elements with complex content
-                                value = null;
-                                break;
-                            }
-                            if (childNode.getNodeType() == Node.TEXT_NODE) {
-                                value = childNode.getNodeValue();
-                            }
-                        }
+            try {
+                XMLStreamReader reader = reader();
+                while (nextElement(reader, "field")) {
+                    Map<String,String> fieldValues = new HashMap<String,String>();
+                    String id = getAttribute(reader, "id");
+                    String baseType = getAttribute(reader, "base_type");
+                    String fieldType = getAttribute(reader, "field_type");
+                    String mode = getAttribute(reader, "mode");
+                    String role = getAttribute(reader, "role");
+                    
+                    while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) { // iterate elements inside field element
+                        String name = reader.getLocalName();
+                        String value = readSimpleContent(reader);
                         if (value != null) {
                             fieldValues.put(name, value);
                         }
                     }
+                    
+                    fieldValues.put("base_type", baseType);
+                    fieldValues.put("field_type", fieldType);
+                    fieldValues.put("mode", mode);
+                    fieldValues.put("role", role);
+                    
+                    fields.put(id, fieldValues);
                 }
+                reader.close();
                 
-                fieldValues.put("base_type", fieldElement.getAttribute("base_type"));
-                fieldValues.put("field_type", fieldElement.getAttribute("field_type"));
-                fieldValues.put("mode", fieldElement.getAttribute("mode"));
-                fieldValues.put("role", fieldElement.getAttribute("role"));
-                
-                fields.put(fieldElement.getAttribute("id"), fieldValues);
+            } catch (XMLStreamException e) {
+                throw malformed(e);
             }
             
             if (DEBUG) {
@@ -376,302 +991,679 @@ public class QuickbaseTableDump {
             }
             return null;
         }
-
+        
+        /**
+         * @return The id of the "Date Modified" field, or null if there is none.
+         */
+        public String getDateModifiedId() {
+            Map<String,Map<String,String>> fields = getFields();
+            for (String id : fields.keySet()) {
+                if ("modified".equals(fields.get(id).get("role"))) {
+                    return id;
+                }
+            }
+            for (String id : fields.keySet()) {
+                if ("timestamp".equals(fields.get(id).get("field_type")) && "Date Modified".equals(fields.get(id).get("label"))) {
+                    return id;
+                }
+            }
+            return null;
+        }
+        
         public Map<String,Map<String,String>> getRecords() {
             if (DEBUG) {
                 System.err.println("Getting records...");
             }
             
             Map<String,Map<String,String>> records = new HashMap<String,Map<String,String>>();
-            NodeList recordElements = xml().getElementsByTagName("record");
-            for (int i = 0; i < recordElements.getLength(); i++) {
-                Element recordElement = (Element)recordElements.item(i);
+            Iterator<QuickbaseRecord> iterator = records();
+            while (iterator.hasNext()) {
+                QuickbaseRecord record = iterator.next();
+                records.put(record.getRid(), record.getValues());
+            }
+            
+            if (DEBUG) {
+                System.err.println("Getting records... done");
+            }
+            
+            return records;
+        }
+        
+        /**
+         * Iterates the records in the response one at a time, without building a tree or a map of all the records.
+         */
+        public Iterator<QuickbaseRecord> records() {
+            final XMLStreamReader reader;
+            try {
+                reader = reader();
                 
-                Map<String,String> recordValues = new HashMap<String,String>();
+            } catch (XMLStreamException e) {
+                throw malformed(e);
+            }
+            
+            return new Iterator<QuickbaseRecord>() {
+                private QuickbaseRecord next = null;
+                private boolean done = false;
                 
-                NodeList recordChildNodes = recordElement.getChildNodes();
-                for (int j = 0; j < recordChildNodes.getLength(); j++) { // iterate elements inside record element
-                    Node recordChildNode = recordChildNodes.item(j);
-                    if (recordChildNode.getNodeType() == Node.ELEMENT_NODE) {
-                        String name = recordChildNode.getNodeName();
-                        if ("f".equals(name)) {
-                            name = ((Element)recordChildNode).getAttribute("id");
-                        }
-                        String value = null;
-                        NodeList childNodes = recordChildNode.getChildNodes();
-                        for (int k = 0; k < childNodes.getLength(); k++) { // iterate nodes inside record value element to check for content
-                            Node childNode = childNodes.item(k);
-                            if (childNode.getNodeType() == Node.ELEMENT_NODE) {
-                                // ignore elements with complex content
-                                value = null;
-                                break;
-                            }
-                            if (childNode.getNodeType() == Node.TEXT_NODE) {
-                                try {
-                                    value = childNode.getNodeValue();
-                                    
-                                } catch (DOMException e) {
-                                    e.printStackTrace();
-                                    System.exit(1);
-                                }
+                @Override
+                public boolean hasNext() {
+                    if (next == null && !done) {
+                        try {
+                            next = readRecord(reader);
+                            if (next == null) {
+                                done = true;
+                                reader.close();
                             }
-                        }
-                        if (value != null) {
-                            recordValues.put(name, value);
+                            
+                        } catch (XMLStreamException e) {
+                            throw malformed(e);
                         }
                     }
+                    return next != null;
                 }
                 
-                records.put(recordElement.getAttribute("rid"), recordValues);
+                @Override
+                public QuickbaseRecord next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    QuickbaseRecord record = next;
+                    next = null;
+                    return record;
+                }
+            };
+        }
+        
+        /**
+         * Reads the next &lt;record&gt; element.
+         * 
+         * @return the record, or null if there are no more records
+         */
+        private static QuickbaseRecord readRecord(XMLStreamReader reader) throws XMLStreamException {
+            if (!nextElement(reader, "record")) {
+                return null;
             }
             
-            if (DEBUG) {
-                System.err.println("Getting records... done");
+            String rid = getAttribute(reader, "rid");
+            Map<String,String> recordValues = new HashMap<String,String>();
+            while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) { // iterate elements inside record element
+                String name = reader.getLocalName();
+                if ("f".equals(name)) {
+                    name = getAttribute(reader, "id");
+                }
+                String value = readSimpleContent(reader);
+                if (value != null) {
+                    recordValues.put(name, value);
+                }
             }
             
-            return records;
+            return new QuickbaseRecord(rid, recordValues);
         }
     }
     
-    public static List<QuickbaseResponse> getRange(QuickbaseClient client, String recordIdId, Integer from, Integer to) {
+    /**
+     * @param from the lowest record id, or null for no lower bound
+     * @param to the record id after the highest, or null for no upper bound
+     * @param filter an additional query that the records must match, or null
+     * @return A query for the records with ids in the range [from,to).
+     */
+    static String rangeQuery(String recordIdId, Integer from, Integer to, String filter) {
         String query = "";
         query += from == null ? "" : "{'"+recordIdId+"'.GTE.'"+from+"'}";
         query += from != null && to != null ? "AND" : "";
         query += to == null ? "" : "{'"+recordIdId+"'.LT.'"+to+"'}";
+        if (filter != null) {
+            query = "".equals(query) ? filter : "(" + query + ")AND(" + filter + ")";
+        }
+        return query;
+    }
+    
+    /**
+     * Get all records with ids in the range [from,to). If the response is too large (errcode 75),
+     * the range is split and each part is requested on its own.
+     * 
+     * @param filter an additional query that the records must match, or null
+     * @param clist the fields to get, separated by periods, or "a" for all fields
+     */
+    public static List<QuickbaseResponse> getRange(QuickbaseClient client, String recordIdId, Integer from, Integer to, String filter, String clist, RangeController rangeController) throws IOException {
+        return join(getRangeAsync(client, recordIdId, from, to, filter, clist, rangeController));
+    }
+    
+    /**
+     * Like getRange, but without waiting for the responses. With the async transport, the
+     * responses are handled on the I/O thread they arrive on.
+     */
+    static CompletableFuture<List<QuickbaseResponse>> getRangeAsync(QuickbaseClient client, String recordIdId, Integer from, Integer to, String filter, String clist, RangeController rangeController) {
+        String query = rangeQuery(recordIdId, from, to, filter);
         if (DEBUG_DEBUG) {
             System.err.println("API_DoQuery:");
             System.err.println("set parameter \"query\" to \"" + query + "\"");
-            System.err.println("set parameter \"clist\" to \"a\"");
+            System.err.println("set parameter \"clist\" to \"" + clist + "\"");
             System.err.println("set parameter \"slist\" to \"" + recordIdId + "\"");
             System.err.println("set parameter \"includeRids\" to \"1\"");
             System.err.println("set parameter \"fmt\" to \"structured\"");
         }
         QuickbaseRequest request = client.newRequest("API_DoQuery");
         request.setParameter("query", query);
-        request.setParameter("clist", "a");
+        request.setParameter("clist", clist);
         request.setParameter("slist", recordIdId);
         request.setParameter("includeRids", "1");
         request.setParameter("fmt", "structured");
-        QuickbaseResponse response = request.send();
-        if (DEBUG) {
-            System.err.println("found "+response.getRecords().size()+" records in record id range ["+from+","+to+")");
-        }
-        
-        if ("75".equals(response.get("errcode"))) {
-            System.err.println(response.get("errtext"));
-            System.err.println(response.get("errdetail"));
-            int from1 = from;
-            int to1 = from + (to - from) / 2;
-            int from2 = to1 - 1;
-            int to2 = to;
-            if (from1 <= to1 && from2 <= to2) {
+        return request.sendAsync().thenCompose(response -> {
+            long parseStart = System.nanoTime();
+            String errcode = response.get("errcode");
+            if (errcode != null && !"0".equals(errcode)) {
+                client.getMetrics().errcode(errcode);
+            }
+            if ("75".equals(errcode)) {
+                client.getMetrics().time(Metrics.PARSE, System.nanoTime() - parseStart);
+                System.err.println(response.get("errtext"));
+                System.err.println(response.get("errdetail"));
+                if (from == null || to == null || to - from <= 1) {
+                    System.err.println("Could not find smaller range to try! Unable to get range: ["+from+"-"+to+"]");
+                    if (from != null && to != null) {
+                        rangeController.dropped(from, to);
+                    }
+                    return CompletableFuture.completedFuture(new ArrayList<QuickbaseResponse>());
+                }
+                
+                rangeController.tooLarge(to - from);
+                client.getMetrics().tooLarge();
                 System.err.println("Trying smaller id range");
-                List<QuickbaseResponse> responses = getRange(client, recordIdId, from1, to1);
-                responses.addAll(getRange(client, recordIdId, from2, to2));
-                return responses;
+                return getSubRanges(client, recordIdId, from, to, from, filter, clist, rangeController, new ArrayList<QuickbaseResponse>());
+                
+            } else if (errcode != null && !"0".equals(errcode)) {
+                client.getMetrics().time(Metrics.PARSE, System.nanoTime() - parseStart);
+                CompletableFuture<List<QuickbaseResponse>> failed = new CompletableFuture<List<QuickbaseResponse>>();
+                failed.completeExceptionally(QuickbaseException.fromResponse("Unable to get record id range [" + from + "," + to + ")", response));
+                return failed;
                 
             } else {
-                System.err.println("Could not find smaller range to try! Unable to get range: ["+from+"-"+to+"]");
-                return new ArrayList<QuickbaseResponse>();
+                long records = CombinedResponseWriter.countRecords(response.responseString);
+                client.getMetrics().records(records);
+                client.getMetrics().time(Metrics.PARSE, System.nanoTime() - parseStart);
+                if (DEBUG) {
+                    System.err.println("found "+records+" records in record id range ["+from+","+to+")");
+                }
+                if (from != null && to != null) {
+                    rangeController.success(to - from, response.responseString.length());
+                }
+                List<QuickbaseResponse> responses = new ArrayList<QuickbaseResponse>();
+                responses.add(response);
+                return CompletableFuture.completedFuture(responses);
             }
+        });
+    }
+    
+    /**
+     * Get the part of the range [from,to) that starts at subFrom, one smaller range after the other,
+     * and add the responses to the given list.
+     */
+    private static CompletableFuture<List<QuickbaseResponse>> getSubRanges(QuickbaseClient client, String recordIdId, int from, int to, int subFrom, String filter, String clist, RangeController rangeController, List<QuickbaseResponse> responses) {
+        if (subFrom >= to) {
+            return CompletableFuture.completedFuture(responses);
+        }
+        // always at most half of the failed range, so that we make progress even if the controller is too optimistic
+        int size = Math.max(1, Math.min(rangeController.getWindowSize(), (to - from) / 2));
+        int subTo = Math.min(to, subFrom + size);
+        return getRangeAsync(client, recordIdId, subFrom, subTo, filter, clist, rangeController).thenCompose(subResponses -> {
+            responses.addAll(subResponses);
+            return getSubRanges(client, recordIdId, from, to, subTo, filter, clist, rangeController, responses);
+        });
+    }
+    
+    /**
+     * Wait for the result of a request.
+     * 
+     * @throws IOException the exception the request failed with
+     */
+    static <T> T join(Future<T> future) throws IOException {
+        try {
+            return future.get();
             
-        } else {
-            List<QuickbaseResponse> responses = new ArrayList<QuickbaseResponse>();
-            responses.add(response);
-            return responses;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a response");
+            
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException)e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException)e.getCause();
+            } else if (e.getCause() instanceof Error) {
+                throw (Error)e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+    
+    /**
+     * Get all records with ids from startRecordId to endRecordId (inclusive), one page at a time.
+     * 
+     * Up to QUICKBASE_CONCURRENCY pages are requested in parallel, but the pages are always
+     * given to the consumer in record id order.
+     * 
+     * @param filter an additional query that the records must match, or null
+     * @param clist the fields to get, separated by periods, or "a" for all fields
+     * @param rangeController decides the size of each page
+     */
+    public static void getPages(QuickbaseClient client, String recordIdId, int startRecordId, int endRecordId, String filter, String clist, RangeController rangeController, PageConsumer consumer) throws IOException {
+        getPages(client, recordIdId, windows(startRecordId, endRecordId, rangeController), endRecordId - (long)startRecordId + 1, filter, clist, rangeController, consumer);
+    }
+    
+    /**
+     * Get all records in the given ranges of record ids, one page per range.
+     * 
+     * @param ranges the ranges, [from,to), in record id order. The next range is taken when its page is submitted.
+     * @param ids the number of record ids in the ranges, for the progress
+     */
+    static void getPages(QuickbaseClient client, String recordIdId, Iterator<int[]> ranges, long ids, String filter, String clist, RangeController rangeController, PageConsumer consumer) throws IOException {
+        try (PageFetcher pages = new PageFetcher(client, recordIdId, ranges, ids, filter, clist, rangeController, CONCURRENCY)) {
+            pages.forEach(consumer);
         }
     }
     
+    /**
+     * @return Windows of record ids from startRecordId to endRecordId (inclusive), [from,to), sized by the range controller.
+     */
+    static Iterator<int[]> windows(int startRecordId, int endRecordId, RangeController rangeController) {
+        return new Iterator<int[]>() {
+            long next = startRecordId;
+            
+            @Override
+            public boolean hasNext() {
+                return next <= endRecordId;
+            }
+            
+            @Override
+            public int[] next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                // the window size is decided when the page is submitted, using what has been learned so far
+                int from = (int)next;
+                next = Math.min((long)endRecordId + 1, next + rangeController.getWindowSize());
+                // an int can not hold the id after Integer.MAX_VALUE, so the last window then ends at it
+                int to = (int)Math.min(Integer.MAX_VALUE, next);
+                return new int[]{ from, to };
+            }
+        };
+    }
+    
+    /**
+     * @return The stream to write a dump to; compressed if QUICKBASE_COMPRESS is set.
+     */
+    static OutputStream compress(OutputStream out) {
+        return COMPRESS == null ? out : new ParallelGzipOutputStream(out, COMPRESS_THREADS);
+    }
+    
+    private static int getIntegerEnv(String name, int defaultValue) {
+        return getIntegerEnv(name, defaultValue, 1);
+    }
+    
+    /**
+     * @param minimum the lowest value allowed, 0 or 1
+     */
+    private static int getIntegerEnv(String name, int defaultValue, int minimum) {
+        String value = System.getenv(name);
+        if (value == null || "".equals(value)) {
+            return defaultValue;
+        }
+        if (!value.matches("[0-9]{1,9}") || Integer.parseInt(value) < minimum) {
+            throw new IllegalArgumentException("Environment variable must be " + (minimum == 0 ? "a non-negative" : "a positive") + " integer: " + name);
+        }
+        return Integer.parseInt(value);
+    }
+    
+    private static String getRequiredEnv(String name) {
+        String value = System.getenv(name);
+        if (value == null || "".equals(value)) {
+            throw new IllegalArgumentException("Missing environment variable: " + name);
+        }
+        return value;
+    }
+    
     public static void main(String[] args) {
-        String appToken = System.getenv("QUICKBASE_APP_TOKEN");
-        String domain = System.getenv("QUICKBASE_DOMAIN");
-        String username = System.getenv("QUICKBASE_USERNAME");
-        String password = System.getenv("QUICKBASE_PASSWORD");
-        String table = System.getenv("QUICKBASE_TABLE");
-        
-        if (appToken == null || "".equals(appToken)) {
-            System.err.println("Missing environment variable: QUICKBASE_APP_TOKEN");
-            System.exit(1);
+        try {
+            if (args.length > 0 && "--merge".equals(args[0])) {
+                merge(Arrays.asList(args).subList(1, args.length));
+            } else {
+                run(args);
+            }
             
-        } else if (domain == null || "".equals(domain)) {
-            System.err.println("Missing environment variable: QUICKBASE_DOMAIN");
+        } catch (IllegalArgumentException | QuickbaseException e) {
+            System.err.println(e.getMessage());
+            if (DEBUG) {
+                e.printStackTrace();
+            }
             System.exit(1);
             
-        } else if (username == null || "".equals(username)) {
-            System.err.println("Missing environment variable: QUICKBASE_USERNAME");
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
             System.exit(1);
+        }
+    }
+    
+    /**
+     * Merge the shards in the given files into a single dump, written to stdout.
+     */
+    static void merge(List<String> files) throws IOException {
+        if (files.isEmpty()) {
+            throw new IllegalArgumentException("Usage: --merge shard-1.xml shard-2.xml ...");
+        }
+        List<File> shards = new ArrayList<File>();
+        for (String file : files) {
+            shards.add(new File(file));
+        }
+        OutputStream stream = compress(System.out);
+        Writer out = new BufferedWriter(new OutputStreamWriter(stream, "UTF-8"));
+        long records = ShardedDump.mergeFiles(shards, out);
+        out.write(System.lineSeparator());
+        out.flush();
+        if (stream instanceof ParallelGzipOutputStream) {
+            ((ParallelGzipOutputStream)stream).finish();
+        }
+        if (DEBUG) {
+            System.err.println("Merged " + records + " records from " + shards.size() + " shards");
+        }
+    }
+    
+    /**
+     * Dump the table or the application given by the environment.
+     * 
+     * @param args "--shard i/n" to only dump shard i of n, or nothing
+     */
+    static void run(String[] args) throws IOException {
+        String shard = SHARD;
+        for (int i = 0; i < args.length; i++) {
+            if ("--shard".equals(args[i]) && i + 1 < args.length) {
+                shard = args[++i];
+            } else if (args[i].startsWith("--shard=")) {
+                shard = args[i].substring("--shard=".length());
+            } else {
+                throw new IllegalArgumentException("Unknown argument: " + args[i] + " (use --shard i/n, or --merge followed by the shard files)");
+            }
+        }
+        int[] shardIndex = shard == null ? null : ShardedDump.parseShard(shard);
+        
+        String appToken = getRequiredEnv("QUICKBASE_APP_TOKEN");
+        String domain = getRequiredEnv("QUICKBASE_DOMAIN");
+        String username = getRequiredEnv("QUICKBASE_USERNAME");
+        String password = getRequiredEnv("QUICKBASE_PASSWORD");
+        String table = getRequiredEnv("QUICKBASE_TABLE");
+        
+        if (!"xml".equals(FORMAT) && !"csv".equals(FORMAT) && !"jsonl".equals(FORMAT)) {
+            throw new IllegalArgumentException("Unknown output format: " + FORMAT + " (QUICKBASE_FORMAT must be xml, csv or jsonl)");
             
-        } else if (password == null || "".equals(password)) {
-            System.err.println("Missing environment variable: QUICKBASE_PASSWORD");
-            System.exit(1);
+        } else if (COMPRESS != null && !"gzip".equals(COMPRESS)) {
+            throw new IllegalArgumentException("Unknown compression: " + COMPRESS + " (QUICKBASE_COMPRESS must be gzip)");
             
-        } else if (table == null || "".equals(table)) {
-            System.err.println("Missing environment variable: QUICKBASE_TABLE");
-            System.exit(1);
+        } else if (!"blocking".equals(TRANSPORT) && !"async".equals(TRANSPORT)) {
+            throw new IllegalArgumentException("Unknown transport: " + TRANSPORT + " (QUICKBASE_TRANSPORT must be blocking or async)");
         }
         
-        QuickbaseClient client = new QuickbaseClient(appToken, domain, table, username, password);
-        QuickbaseRequest request;
-        QuickbaseResponse response, schema;
-        Map<String, Map<String, String>> records;
+        // write the metrics when the run ends, also if it fails
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                METRICS.writeSummary(System.getenv("QUICKBASE_METRICS_JSON"), System.getenv("QUICKBASE_METRICS_PROM"));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }));
+        
+        QuickbaseClient client = new QuickbaseClient(appToken, domain, table, username, password, QuickbaseClient.cache(domain, username), TRANSPORT, CONCURRENCY, METRICS);
+        QuickbaseResponse schema = getSchema(client);
+        
+        Map<String, String> applicationTables = schema.getTablesInApplicationSchema();
+        String outputDir = System.getenv("QUICKBASE_OUTPUT_DIR");
+        if (applicationTables != null) {
+            if (FIELDS != null && !"".equals(FIELDS) || QUERY != null || shardIndex != null) {
+                throw new IllegalArgumentException("QUICKBASE_FIELDS, QUICKBASE_QUERY and sharding can only be used when dumping a single table");
+                
+            } else if (outputDir == null || "".equals(outputDir)) {
+                StringBuilder message = new StringBuilder();
+                message.append("The ID '" + table + "' refers to an application; not a table.\n");
+                message.append("The following tables are available in this application:\n");
+                for (String name : applicationTables.keySet()) {
+                    message.append("- " + name + ": " + applicationTables.get(name) + "\n");
+                }
+                message.append("Set QUICKBASE_OUTPUT_DIR to dump all of them.");
+                throw new IllegalArgumentException(message.toString());
+            }
+            
+            ApplicationDump.run(client, applicationTables, System.getenv("QUICKBASE_TABLES"), new File(outputDir), CONCURRENCY);
+            METRICS.completed();
+            return;
+        }
+        
+        TableDump.Builder builder = configure(client).schema(schema);
+        if (shardIndex != null) {
+            builder.shard(shardIndex[0], shardIndex[1]);
+        }
+        TableDump dump = builder.build();
+        String incremental = System.getenv("QUICKBASE_INCREMENTAL");
+        String checksums = System.getenv("QUICKBASE_CHECKSUMS");
+        if (EXPLAIN) {
+            dump.explain(System.out);
+            return;
+            
+        } else if (incremental != null && !"".equals(incremental)) {
+            if (!"xml".equals(FORMAT) || COMPRESS != null) {
+                throw new IllegalArgumentException("Incremental dumps can only be made in the xml format, without compression");
+            }
+            dump.writeIncremental(new File(incremental));
+            
+        } else if (checksums != null && !"".equals(checksums)) {
+            if (!"xml".equals(FORMAT) || COMPRESS != null) {
+                throw new IllegalArgumentException("Checksummed dumps can only be made in the xml format, without compression");
+            }
+            dump.writeChecksummed(new File(checksums), System.getenv("QUICKBASE_CHECK_FIELD"));
+            
+        } else {
+            // write to stdout without the buffering of System.out, so that spliced records go straight to the file descriptor
+            OutputStream stream = compress(new FileOutputStream(FileDescriptor.out));
+            dump.write(stream);
+            if ("xml".equals(FORMAT)) {
+                stream.write(System.lineSeparator().getBytes("UTF-8"));
+            }
+            stream.flush();
+            if (stream instanceof ParallelGzipOutputStream) {
+                ((ParallelGzipOutputStream)stream).finish();
+            }
+        }
+        String attachments = System.getenv("QUICKBASE_ATTACHMENTS");
+        if (attachments != null && !"".equals(attachments)) {
+            dump.downloadAttachments(new File(attachments));
+        }
+        METRICS.completed();
+    }
+    
+    /**
+     * @return A builder for a dump of the client's table, configured by the environment.
+     */
+    static TableDump.Builder configure(QuickbaseClient client) {
+        return TableDump.builder(client)
+                        .fields(FIELDS)
+                        .query(QUERY)
+                        .format(FORMAT)
+                        .pageSize(PAGE_SIZE)
+                        .maxPageSize(MAX_PAGE_SIZE)
+                        .concurrency(CONCURRENCY)
+                        .plan(PLAN)
+                        .workDir(WORK_DIR == null || "".equals(WORK_DIR) ? null : new File(WORK_DIR));
+    }
+    
+    /**
+     * Get the schema of the client's table, or of the application, from the cache if the client has one.
+     */
+    static QuickbaseResponse getSchema(QuickbaseClient client) throws IOException {
+        MetadataCache cache = client.getCache();
+        String cached = cache == null ? null : cache.getSchema(client.getTable());
+        if (cached != null) {
+            return new QuickbaseResponse(cached);
+        }
         
-        // find id of row containing record id
-        request = client.newRequest("API_GetSchema");
         if (DEBUG_DEBUG) {
             System.err.println("API_GetSchema");
         }
-        schema = request.send();
-        String recordIdId = schema.getRecordIdId();
+        QuickbaseResponse schema = client.newRequest("API_GetSchema").send();
+        if (cache != null && "0".equals(schema.get("errcode"))) {
+            cache.putSchema(client.getTable(), schema.responseString);
+        }
+        return schema;
+    }
+    
+    /**
+     * Find the lowest or highest record id in the table, using the cache if the client has one.
+     * 
+     * @return the record id, or null if the table is empty
+     */
+    static Integer getCachedRecordIdBound(QuickbaseClient client, String recordIdId, boolean highest) throws IOException {
+        MetadataCache cache = client.getCache();
+        String cached = cache == null ? null : cache.getRecordIdBound(client.getTable(), highest);
+        if (cached != null && cached.matches("[0-9]{1,9}")) {
+            return Integer.valueOf(cached);
+        }
         
-		Map<String, String> applicationTables = schema.getTablesInApplicationSchema();
-		if (applicationTables != null) {
-			System.err.println("The ID '" + table + "' refers to an application; not a table.");
-			System.err.println("The following tables are available in this application:");
-			for (String name : applicationTables.keySet()) {
-				System.err.println("- " + name + ": " + applicationTables.get(name));
-			}
-			System.exit(1);
-		}
-		
-        // find lowest record id
-        request = client.newRequest("API_DoQuery");
+        // an empty table is not cached, since a failed request looks the same
+        Integer recordId = getRecordIdBound(client, recordIdId, highest);
+        if (cache != null && recordId != null) {
+            cache.putRecordIdBound(client.getTable(), highest, recordId);
+        }
+        return recordId;
+    }
+    
+    /**
+     * Find the lowest or highest record id in the table.
+     * 
+     * @return the record id, or null if the table is empty
+     */
+    static Integer getRecordIdBound(QuickbaseClient client, String recordIdId, boolean highest) throws IOException {
+        String options = highest ? "sortorder-D.num-1" : "sortorder-A.num-1";
+        QuickbaseRequest request = client.newRequest("API_DoQuery");
         if (DEBUG_DEBUG) {
             System.err.println("API_DoQuery:");
             System.err.println("set parameter \"query\" to \"\"");
             System.err.println("set parameter \"clist\" to \"" + recordIdId + "\"");
             System.err.println("set parameter \"slist\" to \"" + recordIdId + "\"");
-            System.err.println("set parameter \"options\" to \"sortorder-A.num-1\"");
+            System.err.println("set parameter \"options\" to \"" + options + "\"");
             System.err.println("set parameter \"includeRids\" to \"1\"");
             System.err.println("set parameter \"fmt\" to \"structured\"");
         }
         request.setParameter("query", "");
         request.setParameter("clist", recordIdId);
         request.setParameter("slist", recordIdId);
-        request.setParameter("options", "sortorder-A.num-1");
-        request.setParameter("includeRids", "1");
-        request.setParameter("fmt", "structured");
-        response = request.send();
-        records = response.getRecords();
-        Integer startRecordId = null;
-        for (String recordId : records.keySet()) {
-            startRecordId = new Integer(recordId);
-        }
-        if (DEBUG) {
-            System.err.println("startRecordId: "+startRecordId);
-        }
-        
-        // find highest record id
-        request = client.newRequest("API_DoQuery");
-        request.setParameter("query", "");
-        request.setParameter("clist", recordIdId);
-        request.setParameter("slist", recordIdId);
-        request.setParameter("options", "sortorder-D.num-1");
+        request.setParameter("options", options);
         request.setParameter("includeRids", "1");
         request.setParameter("fmt", "structured");
-        response = request.send();
-        records = response.getRecords();
-        Integer endRecordId = null;
-        for (String recordId : records.keySet()) {
-            endRecordId = new Integer(recordId);
-            assert(endRecordId != null);
-        }
-        if (DEBUG) {
-            System.err.println("endRecordId: "+endRecordId);
+        Iterator<QuickbaseRecord> records = request.send().records();
+        return records.hasNext() ? Integer.valueOf(records.next().getRid()) : null;
+    }
+    
+    /**
+     * Dump all records in the client's table as a single document, configured by the environment.
+     */
+    static void dump(QuickbaseClient client, Writer out) throws IOException {
+        configure(client).build().write(out);
+    }
+    
+    /**
+     * Dump all records in the client's table as a single document in UTF-8, configured by the environment.
+     */
+    static void dump(QuickbaseClient client, OutputStream out) throws IOException {
+        configure(client).build().write(out);
+    }
+    
+    /**
+     * Find the fields to get.
+     * 
+     * @param fields the fields of the table, as returned by getFields
+     * @param selection field ids or labels, separated by commas, or null for all fields
+     * @return The field ids, separated by periods, for the clist parameter. "a" for all fields.
+     * @throws IllegalArgumentException if a field is not in the table, or a label is used by more than one field
+     */
+    static String clist(Map<String,Map<String,String>> fields, String selection) {
+        if (selection == null || "".equals(selection.trim())) {
+            return "a";
         }
-        
-        List<QuickbaseResponse> responses = new ArrayList<QuickbaseResponse>();
-        
-        if (records.size() == 0) {
-            System.err.println("The table is empty.");
-            
-            for (QuickbaseResponse r : getRange(client, recordIdId, null, null)) {
-                responses.add(r);
+        Set<String> ids = new LinkedHashSet<String>();
+        for (String name : selection.split(",")) {
+            name = name.trim();
+            if ("".equals(name)) {
+                continue;
             }
-        
-        } else {
-            for (int page = 0; startRecordId + page * MAX_ROWS_PER_REQUEST <= endRecordId; page++) {
-                int from = startRecordId + page * MAX_ROWS_PER_REQUEST;
-                int to = startRecordId + (page+1) * MAX_ROWS_PER_REQUEST;
-                
-                for (QuickbaseResponse r : getRange(client, recordIdId, from, to)) {
-                    responses.add(r);
+            if (fields.containsKey(name)) {
+                ids.add(name);
+                continue;
+            }
+            String id = null;
+            for (String fieldId : fields.keySet()) {
+                if (name.equals(fields.get(fieldId).get("label"))) {
+                    if (id != null) {
+                        throw new IllegalArgumentException("More than one field is labeled '" + name + "'; use the field ids instead (" + id + ", " + fieldId + ")");
+                    }
+                    id = fieldId;
                 }
             }
+            if (id == null) {
+                throw new IllegalArgumentException("Unknown field: '" + name + "'");
+            }
+            ids.add(id);
         }
-        
-        String combinedResponse = combineResponses(responses);
-        
-        if (DEBUG) {
-            response = new QuickbaseResponse(combinedResponse);
-            System.err.println("Found a total of "+response.getRecords().size()+" records");
+        return ids.isEmpty() ? "a" : String.join(".", ids);
+    }
+    
+    /**
+     * @param clist the fields to get, as returned by clist
+     * @return The fields in the clist.
+     */
+    static Map<String,Map<String,String>> selectFields(Map<String,Map<String,String>> fields, String clist) {
+        if ("a".equals(clist)) {
+            return fields;
         }
-        
-        System.out.println(combinedResponse);
+        Map<String,Map<String,String>> selected = new HashMap<String,Map<String,String>>();
+        for (String id : clist.split("\\.")) {
+            selected.put(id, fields.get(id));
+        }
+        return selected;
     }
-
+    
+    /**
+     * Check that the fields that a query refers to by id are in the table. Fields referred to by
+     * label are left to Quickbase.
+     * 
+     * @param query a query, or null
+     * @throws IllegalArgumentException if the query refers to a field that is not in the table
+     */
+    static void checkQuery(Map<String,Map<String,String>> fields, String query) {
+        if (query == null) {
+            return;
+        }
+        Matcher matcher = QUERY_FIELD_ID.matcher(query);
+        while (matcher.find()) {
+            if (!fields.containsKey(matcher.group(1))) {
+                throw new IllegalArgumentException("Unknown field in query: " + matcher.group(1));
+            }
+        }
+    }
+    
 	public static String combineResponses(List<QuickbaseResponse> responses) {
-		String emptyResponse = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<qdbapi/>";
-		
 		if (responses == null || responses.size() == 0) {
 			System.err.println("No responses to combine");
-			return emptyResponse;
+			return CombinedResponseWriter.EMPTY_RESPONSE;
 		}
 		
-		// XML declaration
-		String combinedResponse = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n";
-		
-        String commonHeadRegex = "(?s)^.*(<qdbapi.*)<lusers.*$";
-        String commonHeadRegexWithoutUsers = "(?s)^.*(<qdbapi.*)<records.*$";
-        if (responses.get(0).responseString.matches(commonHeadRegex)) {
-	        // common head with users
-            combinedResponse += responses.get(0).responseString.replaceAll(commonHeadRegex, "$1");
-            
-            // users
-            combinedResponse += "<lusers>\n";
-            SortedMap<String,String> users = new TreeMap<String,String>();
-            for (QuickbaseResponse response : responses) {
-                String lusersRegex = "(?s)^.*<lusers[^>]*>(.*)</lusers.*$";
-                if (!response.responseString.matches(lusersRegex)) {
-                    System.err.print("Response contains no users");
-                    continue;
-                }
-                String responseLusers = response.responseString.replaceAll(lusersRegex, "$1");
-                for (String luser : responseLusers.split("(?s)<luser")) {
-                    if (!luser.contains("luser")) {
-                        continue;
-                    }
-                    String userIdRegex = "(?s)^.*id=\"([^\"]*)\".*$";
-                    String userEmailRegex = "(?s)^.*>([^<]*)</luser.*$";
-                    if (!luser.matches(userIdRegex)) {
-                        System.err.println("Unable to parse user ID: " + luser.substring(0, Integer.min(100, luser.length())));
-                        continue;
-                    }
-                    if (!luser.matches(userEmailRegex)) {
-                        System.err.println("Unable to parse user e-mail: " + luser.substring(0, Integer.min(100, luser.length())));
-                        continue;
-                    }
-                    String id = luser.replaceAll(userIdRegex, "$1");
-                    String email = luser.replaceAll(userEmailRegex, "$1");
-                    
-                    users.put(id, email);
-                }
-            }
-            for (String userId : users.keySet()) {
-                combinedResponse += "<luser id=\"" + userId + "\">" + users.get(userId) + "</luser>\n";
-            }
-            combinedResponse += "</lusers>\n      ";
-        
-        } else if (responses.get(0).responseString.matches(commonHeadRegexWithoutUsers)) {
-            // common head without users
-            combinedResponse += responses.get(0).responseString.replaceAll(commonHeadRegexWithoutUsers, "$1");
-        }
-		
-		combinedResponse += "<records>";
-		for (QuickbaseResponse response : responses) {
-			combinedResponse += response.responseString.replaceAll("(?s)^.*<records[^>]*>(.*?)\\s*</records.*$", "$1");
+		StringWriter combinedResponse = new StringWriter();
+		try (CombinedResponseWriter combined = new CombinedResponseWriter(combinedResponse)) {
+			for (QuickbaseResponse response : responses) {
+				combined.add(response);
+			}
+			combined.finish();
+			
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
 		}
-	    combinedResponse += "\n      </records>\n    </table>\n</qdbapi>\n";
-	    
-		return combinedResponse;
+		
+		return combinedResponse.toString();
 	}
 }
@@ -0,0 +1,16 @@
+package no.nlb.quickbase.dump;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Receives the pages of a dump with their record id ranges, one range at a time, in record id order.
+ */
+interface RangeConsumer {
+    
+    /**
+     * Receives all the responses for the record id range [from,to). There may be more than one
+     * response if the range had to be split.
+     */
+    void addRange(int from, int to, List<QuickbaseTableDump.QuickbaseResponse> responses) throws IOException;
+}
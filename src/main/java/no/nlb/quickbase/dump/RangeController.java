@@ -0,0 +1,107 @@
+package no.nlb.quickbase.dump;
+
+import java.util.List;
+
+/**
+ * Decides how many record ids to request per API_DoQuery request.
+ *
+ * The window grows additively after each successful request, and is halved whenever Quickbase
+ * responds with errcode 75 (view too large). Response sizes are used to estimate how large a
+ * response can get before Quickbase refuses it, so that the window stops growing before it
+ * runs into the limit again. What is learned is kept from one page to the next. Ranges that can not
+ * be split any further are remembered, so that they can be reported at the end.
+ *
+ * All methods are thread safe, so one instance can be shared by concurrent page requests.
+ */
+class RangeController {
+    
+    private final int maxWindowSize;
+    private final int increment;
+    private int windowSize;
+    
+    /** Moving average of the number of characters per record id in successful responses. 0 if unknown. */
+    private double charsPerId = 0;
+    
+    /** Estimated size in characters of the smallest response that has been too large. Infinite if unknown. */
+    private double limitChars = Double.POSITIVE_INFINITY;
+    
+    private int tooLargeCount = 0;
+    
+    /** Record ids that could not be fetched, since even a single id was too large. */
+    private RecordIdSet dropped = new RecordIdSet();
+    
+    public RangeController(int initialWindowSize, int maxWindowSize) {
+        this.windowSize = Math.max(1, Math.min(initialWindowSize, maxWindowSize));
+        this.maxWindowSize = maxWindowSize;
+        this.increment = Math.max(1, initialWindowSize / 10);
+    }
+    
+    /**
+     * @return The number of record ids to request in the next request.
+     */
+    public synchronized int getWindowSize() {
+        return windowSize;
+    }
+    
+    /**
+     * Report a successful request.
+     *
+     * @param ids the number of record ids requested
+     * @param chars the size of the response, in characters
+     */
+    public synchronized void success(int ids, long chars) {
+        if (ids <= 0) {
+            return;
+        }
+        if (chars > limitChars) {
+            // the limit is at least as large as a response that got through
+            limitChars = chars;
+        }
+        double responseCharsPerId = (double)chars / ids;
+        charsPerId = charsPerId == 0 ? responseCharsPerId : 0.8 * charsPerId + 0.2 * responseCharsPerId;
+        
+        int next = Math.min(maxWindowSize, windowSize + increment);
+        if (next * charsPerId < 0.9 * limitChars) {
+            windowSize = next;
+        }
+    }
+    
+    /**
+     * Report a request that failed with errcode 75 (view too large).
+     *
+     * @param ids the number of record ids requested
+     */
+    public synchronized void tooLarge(int ids) {
+        tooLargeCount++;
+        if (charsPerId > 0) {
+            limitChars = Math.min(limitChars, ids * charsPerId);
+        }
+        windowSize = Math.max(1, Math.min(windowSize, ids) / 2);
+    }
+    
+    /**
+     * @return The number of requests that have failed with errcode 75.
+     */
+    public synchronized int getTooLargeCount() {
+        return tooLargeCount;
+    }
+    
+    /**
+     * Report a range that could not be fetched, and is missing from the dump.
+     *
+     * @param from the first record id
+     * @param to the record id after the last one
+     */
+    public synchronized void dropped(int from, int to) {
+        dropped.addRange(from, to);
+    }
+    
+    /**
+     * @return The ranges, [from,to), that have been reported as dropped since the last call, in order.
+     */
+    public synchronized List<int[]> takeDroppedRanges() {
+        List<int[]> ranges = dropped.ranges();
+        dropped = new RecordIdSet();
+        return ranges;
+    }
+}
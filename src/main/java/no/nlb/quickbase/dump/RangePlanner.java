@@ -0,0 +1,226 @@
+package no.nlb.quickbase.dump;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import no.nlb.quickbase.dump.QuickbaseTableDump.QuickbaseClient;
+import no.nlb.quickbase.dump.QuickbaseTableDump.QuickbaseRequest;
+import no.nlb.quickbase.dump.QuickbaseTableDump.QuickbaseResponse;
+
+/**
+ * Plans the record id ranges of a dump from the number of records in them, instead of from the
+ * number of record ids. Tables where most records have been deleted can have long stretches of
+ * record ids without any records, and fixed size windows then spend most of their requests on
+ * ranges that are empty or nearly empty.
+ *
+ * The density is probed with API_DoQueryCount. A range with more than the target number of records
+ * is split into as many equally wide parts as are needed to hold its records, and the parts are
+ * counted again, until each range holds at most the target number of records. Then neighbouring
+ * ranges are merged as long as they hold at most the target number of records together. The planned
+ * ranges cover all the record ids, so records created in a gap after the planning are not missed.
+ *
+ * Counting is not needed where the records are dense: a range where at least every other record id
+ * is used is split into windows of the target size without counting them, since a window can't hold
+ * more records than it has record ids. All the counts at the same level are sent in parallel.
+ */
+class RangePlanner {
+    
+    /**
+     * A planned range of record ids, [from,to).
+     */
+    static class Range {
+        public final int from;
+        public final int to;
+        public final long records;
+        public final boolean estimated;
+        
+        /**
+         * @param records the number of records in the range
+         * @param estimated whether the number of records is estimated from the density of a larger range, instead of counted
+         */
+        public Range(int from, int to, long records, boolean estimated) {
+            this.from = from;
+            this.to = to;
+            this.records = records;
+            this.estimated = estimated;
+        }
+    }
+    
+    private final QuickbaseClient client;
+    private final String recordIdId;
+    private final String filter;
+    private final int targetRecords;
+    private final int concurrency;
+    private int countRequests = 0;
+    
+    /**
+     * @param filter an additional query that the records must match, or null
+     * @param targetRecords the number of records to aim for in each range
+     * @param concurrency the number of counts to send in parallel
+     */
+    public RangePlanner(QuickbaseClient client, String recordIdId, String filter, int targetRecords, int concurrency) {
+        this.client = client;
+        this.recordIdId = recordIdId;
+        this.filter = filter;
+        this.targetRecords = Math.max(1, targetRecords);
+        this.concurrency = Math.max(1, concurrency);
+    }
+    
+    /**
+     * Plan the ranges for all records with ids from startRecordId to endRecordId (inclusive).
+     *
+     * @return The ranges, in record id order, without gaps between them.
+     */
+    public List<Range> plan(int startRecordId, int endRecordId) throws IOException {
+        List<Range> ranges = new ArrayList<Range>();
+        List<int[]> pending = new ArrayList<int[]>();
+        pending.add(new int[]{ startRecordId, (int)Math.min(Integer.MAX_VALUE, endRecordId + 1L) });
+        
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        try {
+            while (!pending.isEmpty()) {
+                List<Future<Long>> counts = new ArrayList<Future<Long>>();
+                for (int[] range : pending) {
+                    counts.add(executor.submit(() -> count(range[0], range[1])));
+                }
+                
+                List<int[]> next = new ArrayList<int[]>();
+                for (int i = 0; i < pending.size(); i++) {
+                    split(pending.get(i)[0], pending.get(i)[1], get(counts.get(i)), ranges, next);
+                }
+                pending = next;
+            }
+            
+        } finally {
+            executor.shutdownNow();
+        }
+        
+        ranges.sort((a, b) -> Integer.compare(a.from, b.from));
+        return merge(ranges);
+    }
+    
+    /**
+     * @return The number of API_DoQueryCount requests sent while planning.
+     */
+    public synchronized int getCountRequests() {
+        return countRequests;
+    }
+    
+    /**
+     * Print the planned ranges, and the number of requests needed to get them.
+     */
+    public static void explain(List<Range> ranges, PrintStream out) {
+        long records = 0;
+        boolean estimated = false;
+        for (Range range : ranges) {
+            out.println("[" + range.from + "," + range.to + ")\t" + (range.estimated ? "~" : "") + range.records + " records");
+            records += range.records;
+            estimated |= range.estimated;
+        }
+        out.println("Records: " + (estimated ? "~" : "") + records);
+        out.println("Estimated API_DoQuery requests: " + ranges.size());
+    }
+    
+    /**
+     * Decide what to do with a range that has been counted: keep it as it is, split it into windows
+     * that don't need to be counted, or split it into parts that must be counted again.
+     */
+    private void split(int from, int to, long records, List<Range> ranges, List<int[]> pending) {
+        long width = to - (long)from;
+        if (records <= targetRecords || width <= 1) {
+            ranges.add(new Range(from, to, records, false));
+            
+        } else if (records * 2 >= width) {
+            // dense; each window holds between half and all of the target
+            for (long windowFrom = from; windowFrom < to; windowFrom += targetRecords) {
+                int windowTo = (int)Math.min(to, windowFrom + targetRecords);
+                ranges.add(new Range((int)windowFrom, windowTo, estimate(records, width, windowTo - windowFrom), true));
+            }
+            
+        } else {
+            long parts = Math.min(width, (records + targetRecords - 1) / targetRecords);
+            for (long part = 0; part < parts; part++) {
+                int partFrom = (int)(from + width * part / parts);
+                int partTo = (int)(from + width * (part + 1) / parts);
+                if (partTo - (long)partFrom <= targetRecords) {
+                    // can't hold more than the target, so there is no need to count it
+                    ranges.add(new Range(partFrom, partTo, estimate(records, width, partTo - (long)partFrom), true));
+                } else {
+                    pending.add(new int[]{ partFrom, partTo });
+                }
+            }
+        }
+    }
+    
+    /**
+     * Merge neighbouring ranges as long as they hold at most the target number of records together.
+     * The number of records in a range that has not been counted is only known to be at most its
+     * width, so that is what is used for those.
+     */
+    private List<Range> merge(List<Range> ranges) {
+        List<Range> merged = new ArrayList<Range>();
+        Range current = null;
+        long currentMax = 0;
+        for (Range range : ranges) {
+            long max = range.estimated ? range.to - (long)range.from : range.records;
+            if (current != null && currentMax + max <= targetRecords) {
+                current = new Range(current.from, range.to, current.records + range.records, current.estimated || range.estimated);
+                currentMax += max;
+            } else {
+                if (current != null) {
+                    merged.add(current);
+                }
+                current = range;
+                currentMax = max;
+            }
+        }
+        if (current != null) {
+            merged.add(current);
+        }
+        return merged;
+    }
+    
+    private static long estimate(long records, long width, long partWidth) {
+        return Math.round((double)records * partWidth / width);
+    }
+    
+    private long count(int from, int to) throws IOException {
+        QuickbaseRequest request = client.newRequest("API_DoQueryCount");
+        request.setParameter("query", QuickbaseTableDump.rangeQuery(recordIdId, from, to, filter));
+        QuickbaseResponse response = request.send();
+        synchronized (this) {
+            countRequests++;
+        }
+        
+        String numMatches = response.get("numMatches");
+        if (numMatches == null || !numMatches.matches("[0-9]+")) {
+            throw new IOException("Unable to count records in record id range [" + from + "," + to + "): " + response.get("errtext") + " (errcode " + response.get("errcode") + ")");
+        }
+        if (QuickbaseTableDump.DEBUG) {
+            System.err.println("counted " + numMatches + " records in record id range [" + from + "," + to + ")");
+        }
+        return Long.parseLong(numMatches);
+    }
+    
+    private static long get(Future<Long> count) throws IOException {
+        try {
+            return count.get();
+            
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while planning the record id ranges", e);
+            
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException)e.getCause();
+            }
+            throw new IOException("Unable to plan the record id ranges", e.getCause());
+        }
+    }
+}
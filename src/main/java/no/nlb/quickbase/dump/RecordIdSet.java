@@ -0,0 +1,211 @@
+package no.nlb.quickbase.dump;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A set of non-negative record ids, stored compactly.
+ *
+ * The ids are grouped in chunks of 65536 by their upper 16 bits. A chunk with few ids keeps them in
+ * a sorted array of 16 bit values, and a chunk with more than 4096 ids is a bitmap of 8 KiB, which
+ * is never larger than the array would be. A dense table costs about one bit per record id, so tens
+ * of millions of ids fit in a few megabytes. A chunk with all 65536 ids in it takes no space at all.
+ *
+ * Not thread safe.
+ */
+class RecordIdSet {
+    
+    private static final int ARRAY_LIMIT = 4096;
+    private static final int CHUNK_SIZE = 65536;
+    
+    /** A sorted array of the low 16 bits, a bitmap, or full. */
+    private static class Chunk {
+        char[] values = new char[4];
+        long[] bits = null;
+        boolean full = false;
+        int size = 0;
+        
+        boolean add(char value) {
+            if (full) {
+                return false;
+            }
+            if (bits != null) {
+                long bit = 1L << value;
+                if ((bits[value >>> 6] & bit) != 0) {
+                    return false;
+                }
+                bits[value >>> 6] |= bit;
+                if (++size == CHUNK_SIZE) {
+                    bits = null;
+                    full = true;
+                }
+                return true;
+            }
+            int index = Arrays.binarySearch(values, 0, size, value);
+            if (index >= 0) {
+                return false;
+            }
+            if (size == ARRAY_LIMIT) {
+                bits = new long[CHUNK_SIZE / 64];
+                for (int i = 0; i < size; i++) {
+                    bits[values[i] >>> 6] |= 1L << values[i];
+                }
+                values = null;
+                return add(value);
+            }
+            index = -index - 1;
+            if (size == values.length) {
+                values = Arrays.copyOf(values, Math.min(ARRAY_LIMIT, size * 2));
+            }
+            System.arraycopy(values, index, values, index + 1, size - index);
+            values[index] = value;
+            size++;
+            return true;
+        }
+        
+        boolean contains(char value) {
+            if (full) {
+                return true;
+            } else if (bits != null) {
+                return (bits[value >>> 6] & (1L << value)) != 0;
+            } else {
+                return Arrays.binarySearch(values, 0, size, value) >= 0;
+            }
+        }
+        
+        /**
+         * @return The smallest value in the chunk from the given value and up, or -1 if there is none.
+         */
+        int next(int from) {
+            if (from >= CHUNK_SIZE) {
+                return -1;
+            } else if (full) {
+                return from;
+            } else if (bits != null) {
+                int word = from >>> 6;
+                long remaining = bits[word] & (-1L << from);
+                while (remaining == 0) {
+                    if (++word == bits.length) {
+                        return -1;
+                    }
+                    remaining = bits[word];
+                }
+                return word * 64 + Long.numberOfTrailingZeros(remaining);
+            } else {
+                int index = Arrays.binarySearch(values, 0, size, (char)from);
+                if (index < 0) {
+                    index = -index - 1;
+                }
+                return index < size ? values[index] : -1;
+            }
+        }
+        
+        long bytes() {
+            return full ? 0 : bits != null ? bits.length * 8L : values.length * 2L;
+        }
+    }
+    
+    private final TreeMap<Integer,Chunk> chunks = new TreeMap<Integer,Chunk>();
+    private long size = 0;
+    
+    /**
+     * @return Whether the id was added, false if it was in the set already.
+     */
+    public boolean add(int id) {
+        if (id < 0) {
+            throw new IllegalArgumentException("Record ids can not be negative: " + id);
+        }
+        Chunk chunk = chunks.get(id >>> 16);
+        if (chunk == null) {
+            chunk = new Chunk();
+            chunks.put(id >>> 16, chunk);
+        }
+        if (chunk.add((char)id)) {
+            size++;
+            return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Add all the ids in [from,to).
+     */
+    public void addRange(int from, int to) {
+        for (int id = from; id < to; id++) {
+            add(id);
+        }
+    }
+    
+    public boolean contains(int id) {
+        Chunk chunk = id < 0 ? null : chunks.get(id >>> 16);
+        return chunk != null && chunk.contains((char)id);
+    }
+    
+    /**
+     * @return The number of ids in the set.
+     */
+    public long size() {
+        return size;
+    }
+    
+    public boolean isEmpty() {
+        return size == 0;
+    }
+    
+    /**
+     * @return The approximate number of bytes used by the ids, not counting the object overhead.
+     */
+    long bytes() {
+        long bytes = 0;
+        for (Chunk chunk : chunks.values()) {
+            bytes += chunk.bytes();
+        }
+        return bytes;
+    }
+    
+    /**
+     * @return The consecutive ids in the set, as ranges [from,to), in order.
+     */
+    public List<int[]> ranges() {
+        List<int[]> ranges = new ArrayList<int[]>();
+        int[] last = null;
+        for (Map.Entry<Integer,Chunk> entry : chunks.entrySet()) {
+            long base = (long)entry.getKey() << 16;
+            Chunk chunk = entry.getValue();
+            int value = chunk.next(0);
+            while (value >= 0) {
+                int end = value + 1;
+                while (end < CHUNK_SIZE && chunk.contains((char)end)) {
+                    end++;
+                }
+                int from = (int)(base + value);
+                int to = (int)Math.min(Integer.MAX_VALUE, base + end);
+                if (last != null && last[1] == from) {
+                    last[1] = to;
+                } else {
+                    last = new int[]{ from, to };
+                    ranges.add(last);
+                }
+                value = chunk.next(end);
+            }
+        }
+        return ranges;
+    }
+    
+    /**
+     * @return The ranges as "[from,to)", separated by commas.
+     */
+    static String toString(List<int[]> ranges) {
+        StringBuilder string = new StringBuilder();
+        for (int[] range : ranges) {
+            if (string.length() > 0) {
+                string.append(", ");
+            }
+            string.append("[").append(range[0]).append(",").append(range[1]).append(")");
+        }
+        return string.toString();
+    }
+}
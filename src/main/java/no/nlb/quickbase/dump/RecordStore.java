@@ -0,0 +1,607 @@
+package no.nlb.quickbase.dump;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import no.nlb.quickbase.dump.QuickbaseTableDump.QuickbaseResponse;
+
+/**
+ * Holds the records of a table in memory, one column at a time, in a fraction of the space taken by
+ * the maps from getRecords.
+ *
+ * The columns are the fields in the schema, ordered by field id, like in the CSV and JSON Lines
+ * output. The record ids are kept in an int array. Numbers, dates and timestamps are kept in long or
+ * double arrays. Text (and checkboxes) is dictionary encoded: each distinct value is kept once, and
+ * each record has a code that is one, two or four bytes wide depending on the number of distinct
+ * values. A text column with too many distinct values for the dictionary to pay off keeps the
+ * strings as they are instead. If a number column gets a value that can't be kept exactly as a
+ * number, it is turned into a text column, so the values are always given back exactly as
+ * Quickbase sent them. Empty values are null.
+ *
+ * Records are added one page at a time (it is a PageConsumer), and read with a cursor. It is not
+ * thread safe.
+ */
+class RecordStore implements PageConsumer {
+    
+    private static final int INITIAL_CAPACITY = 1024;
+    
+    /** Text columns keep the dictionary while at most this many values are distinct, or at most half of them. */
+    private static final int MIN_DICTIONARY_SIZE = 256;
+    
+    private final List<RecordWriter.Column> columns;
+    private final Map<String,Integer> columnIndexes = new HashMap<String,Integer>();
+    private final ColumnData[] data;
+    private int[] rids = new int[INITIAL_CAPACITY];
+    private int size = 0;
+    
+    /**
+     * @param fields the fields of the table, as returned by getFields
+     */
+    public RecordStore(Map<String,Map<String,String>> fields) {
+        this.columns = RecordWriter.columns(fields);
+        this.data = new ColumnData[columns.size()];
+        for (int i = 0; i < columns.size(); i++) {
+            RecordWriter.Column column = columns.get(i);
+            columnIndexes.put(column.id, i);
+            switch (column.type) {
+            case NUMBER:
+            case DATE:
+            case TIMESTAMP:
+                data[i] = new LongData(column.type == RecordWriter.Type.NUMBER);
+                break;
+            default:
+                data[i] = new DictionaryData();
+            }
+        }
+    }
+    
+    @Override
+    public void add(QuickbaseResponse response) throws IOException {
+        String errcode = response.get("errcode");
+        if (errcode != null && !"0".equals(errcode)) {
+            throw new IOException("Unable to get records: " + response.get("errtext") + " (errcode " + errcode + ")");
+        }
+        
+        Iterator<QuickbaseRecord> records = response.records();
+        while (records.hasNext()) {
+            QuickbaseRecord record = records.next();
+            add(Integer.parseInt(record.getRid()), record.getValues());
+        }
+    }
+    
+    /**
+     * Add a record.
+     *
+     * @param values the values, keyed by field id. Fields that are not in the schema are ignored.
+     */
+    public void add(int rid, Map<String,String> values) {
+        if (size == rids.length) {
+            rids = Arrays.copyOf(rids, Math.max(INITIAL_CAPACITY, size * 2));
+        }
+        rids[size] = rid;
+        for (int i = 0; i < data.length; i++) {
+            String value = values.get(columns.get(i).id);
+            data[i] = data[i].add(size, value == null || "".equals(value) ? null : value);
+        }
+        size++;
+    }
+    
+    /**
+     * Release the space that has been reserved for more records. Records can still be added afterwards.
+     */
+    public void trimToSize() {
+        rids = Arrays.copyOf(rids, size);
+        for (ColumnData column : data) {
+            column.trimToSize(size);
+        }
+    }
+    
+    /**
+     * @return The number of records.
+     */
+    public int size() {
+        return size;
+    }
+    
+    public List<RecordWriter.Column> getColumns() {
+        return columns;
+    }
+    
+    /**
+     * @return The index of the column with the given field id, or -1 if there is no such column.
+     */
+    public int getColumnIndex(String fieldId) {
+        Integer index = columnIndexes.get(fieldId);
+        return index == null ? -1 : index;
+    }
+    
+    /**
+     * @return A rough estimate of the number of bytes used by the records.
+     */
+    public long estimateBytes() {
+        long bytes = 4L * rids.length;
+        for (ColumnData column : data) {
+            bytes += column.estimateBytes();
+        }
+        return bytes;
+    }
+    
+    /**
+     * @return A cursor positioned before the first record.
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+    
+    /**
+     * Reads the records in the order they were added. Move to a record with next, and read its
+     * values by column index.
+     */
+    class Cursor {
+        private int row = -1;
+        
+        /**
+         * Move to the next record.
+         *
+         * @return false if there are no more records
+         */
+        public boolean next() {
+            if (row < size) {
+                row++;
+            }
+            return row < size;
+        }
+        
+        public int getRid() {
+            return rids[row()];
+        }
+        
+        public boolean isNull(int column) {
+            return data[column].isNull(row());
+        }
+        
+        /**
+         * @return The value as Quickbase sent it, or null if it is empty.
+         */
+        public String getString(int column) {
+            return data[column].getString(row());
+        }
+        
+        /**
+         * @return The value of a number, date or timestamp field. Dates and timestamps are in milliseconds since the epoch.
+         * @throws NumberFormatException if the value is empty or not a whole number
+         */
+        public long getLong(int column) {
+            ColumnData columnData = data[column];
+            if (columnData instanceof LongData && !columnData.isNull(row())) {
+                return ((LongData)columnData).values[row()];
+            }
+            String value = columnData.getString(row());
+            if (value == null) {
+                throw new NumberFormatException("The value is empty");
+            }
+            return Long.parseLong(value);
+        }
+        
+        /**
+         * @throws NumberFormatException if the value is empty or not a number
+         */
+        public double getDouble(int column) {
+            ColumnData columnData = data[column];
+            if (columnData instanceof LongData && !columnData.isNull(row())) {
+                return ((LongData)columnData).values[row()];
+            } else if (columnData instanceof DoubleData && !columnData.isNull(row())) {
+                return ((DoubleData)columnData).values[row()];
+            }
+            String value = columnData.getString(row());
+            if (value == null) {
+                throw new NumberFormatException("The value is empty");
+            }
+            return Double.parseDouble(value);
+        }
+        
+        private int row() {
+            if (row < 0 || row >= size) {
+                throw new NoSuchElementException();
+            }
+            return row;
+        }
+    }
+    
+    /**
+     * The values of one column. Values are added in row order.
+     */
+    private abstract static class ColumnData {
+        
+        /**
+         * @param value the value, or null if it is empty
+         * @return This, or another representation of the column if the value did not fit in this one.
+         */
+        abstract ColumnData add(int row, String value);
+        
+        abstract String getString(int row);
+        
+        boolean isNull(int row) {
+            return getString(row) == null;
+        }
+        
+        abstract void trimToSize(int size);
+        
+        abstract long estimateBytes();
+        
+        /**
+         * @return A text column with the values of the rows before the given row.
+         */
+        ColumnData toText(int rows) {
+            ColumnData text = new DictionaryData();
+            for (int row = 0; row < rows; row++) {
+                text = text.add(row, getString(row));
+            }
+            return text;
+        }
+        
+        static int capacity(int length, int row) {
+            return Math.max(INITIAL_CAPACITY, Math.max(row + 1, length * 2));
+        }
+        
+        static long estimateBytes(String value) {
+            return value == null ? 0 : 40 + 2L * value.length();
+        }
+    }
+    
+    /**
+     * Keeps track of the empty values in a number column.
+     */
+    private abstract static class NullableData extends ColumnData {
+        long[] nulls = new long[INITIAL_CAPACITY / 64];
+        
+        void setNull(int row) {
+            if (row / 64 >= nulls.length) {
+                nulls = Arrays.copyOf(nulls, Math.max(row / 64 + 1, nulls.length * 2));
+            }
+            nulls[row / 64] |= 1L << row;
+        }
+        
+        @Override
+        boolean isNull(int row) {
+            return row / 64 < nulls.length && (nulls[row / 64] & 1L << row) != 0;
+        }
+        
+        void trimNulls(int size) {
+            nulls = Arrays.copyOf(nulls, (size + 63) / 64);
+        }
+    }
+    
+    private static class LongData extends NullableData {
+        private final boolean decimals;
+        long[] values = new long[INITIAL_CAPACITY];
+        
+        /**
+         * @param decimals whether the column can be turned into a double column if a value is not a whole number
+         */
+        LongData(boolean decimals) {
+            this.decimals = decimals;
+        }
+        
+        @Override
+        ColumnData add(int row, String value) {
+            if (value != null && !isLong(value)) {
+                ColumnData other = decimals && DoubleData.isDouble(value) && isExactAsDouble(row) ? new DoubleData(this, row) : toText(row);
+                return other.add(row, value);
+            }
+            if (row >= values.length) {
+                values = Arrays.copyOf(values, capacity(values.length, row));
+            }
+            if (value == null) {
+                setNull(row);
+            } else {
+                values[row] = Long.parseLong(value);
+            }
+            return this;
+        }
+        
+        @Override
+        String getString(int row) {
+            return isNull(row) ? null : Long.toString(values[row]);
+        }
+        
+        @Override
+        void trimToSize(int size) {
+            values = Arrays.copyOf(values, size);
+            trimNulls(size);
+        }
+        
+        @Override
+        long estimateBytes() {
+            return 8L * values.length + 8L * nulls.length;
+        }
+        
+        /**
+         * @return Whether all the values of the rows before the given row can be held exactly as doubles.
+         */
+        boolean isExactAsDouble(int rows) {
+            for (int row = 0; row < rows; row++) {
+                if (!isNull(row) && !DoubleData.isExact(values[row])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+        /**
+         * @return Whether the value is a whole number that is written the same way when it is converted back.
+         */
+        static boolean isLong(String value) {
+            int start = value.startsWith("-") ? 1 : 0;
+            if (value.length() == start || value.length() - start > 19 || (value.charAt(start) == '0' && value.length() > start + 1) || "-0".equals(value)) {
+                return false;
+            }
+            for (int i = start; i < value.length(); i++) {
+                if (value.charAt(i) < '0' || value.charAt(i) > '9') {
+                    return false;
+                }
+            }
+            try {
+                Long.parseLong(value);
+                return true;
+            } catch (NumberFormatException e) {
+                return false; // out of range
+            }
+        }
+    }
+    
+    private static class DoubleData extends NullableData {
+        double[] values;
+        
+        /** The rows where the value was written as a whole number, like "12" instead of "12.0". */
+        long[] wholeNumbers;
+        
+        /**
+         * A double column with the values of the rows before the given row of a long column. The values
+         * must be held exactly as doubles, see {@link LongData#isExactAsDouble(int)}.
+         */
+        DoubleData(LongData longs, int rows) {
+            values = new double[Math.max(INITIAL_CAPACITY, longs.values.length)];
+            wholeNumbers = new long[values.length / 64 + 1];
+            nulls = longs.nulls;
+            for (int row = 0; row < rows; row++) {
+                if (!longs.isNull(row)) {
+                    values[row] = longs.values[row];
+                    wholeNumbers[row / 64] |= 1L << row;
+                }
+            }
+        }
+        
+        @Override
+        ColumnData add(int row, String value) {
+            boolean wholeNumber = value != null && LongData.isLong(value) && isExact(Long.parseLong(value));
+            if (value != null && !wholeNumber && !isDouble(value)) {
+                return toText(row).add(row, value);
+            }
+            if (row >= values.length) {
+                values = Arrays.copyOf(values, capacity(values.length, row));
+            }
+            if (row / 64 >= wholeNumbers.length) {
+                wholeNumbers = Arrays.copyOf(wholeNumbers, values.length / 64 + 1);
+            }
+            if (value == null) {
+                setNull(row);
+            } else {
+                values[row] = Double.parseDouble(value);
+                if (wholeNumber) {
+                    wholeNumbers[row / 64] |= 1L << row;
+                }
+            }
+            return this;
+        }
+        
+        @Override
+        String getString(int row) {
+            if (isNull(row)) {
+                return null;
+            } else if ((wholeNumbers[row / 64] & 1L << row) != 0) {
+                return Long.toString((long)values[row]);
+            } else {
+                return Double.toString(values[row]);
+            }
+        }
+        
+        @Override
+        void trimToSize(int size) {
+            values = Arrays.copyOf(values, size);
+            wholeNumbers = Arrays.copyOf(wholeNumbers, (size + 63) / 64);
+            trimNulls(size);
+        }
+        
+        @Override
+        long estimateBytes() {
+            return 8L * values.length + 8L * wholeNumbers.length + 8L * nulls.length;
+        }
+        
+        /**
+         * @return Whether the whole number can be held exactly as a double, that is, within ±2^53.
+         */
+        static boolean isExact(long value) {
+            return value >= -(1L << 53) && value <= 1L << 53;
+        }
+        
+        /**
+         * @return Whether the value is a number that is written the same way when it is converted back.
+         */
+        static boolean isDouble(String value) {
+            try {
+                return Double.toString(Double.parseDouble(value)).equals(value);
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+    }
+    
+    /**
+     * Text with few distinct values. Code 0 is the empty value.
+     */
+    private static class DictionaryData extends ColumnData {
+        private final List<String> dictionary = new ArrayList<String>();
+        private Map<String,Integer> codes = new HashMap<String,Integer>();
+        
+        // only the narrowest array that can hold the codes is used
+        private byte[] bytes = new byte[INITIAL_CAPACITY];
+        private char[] chars;
+        private int[] ints;
+        
+        DictionaryData() {
+            dictionary.add(null);
+        }
+        
+        @Override
+        ColumnData add(int row, String value) {
+            if (codes == null) {
+                // dropped by trimToSize
+                codes = new HashMap<String,Integer>();
+                for (int code = 1; code < dictionary.size(); code++) {
+                    codes.put(dictionary.get(code), code);
+                }
+            }
+            int code = 0;
+            if (value != null) {
+                Integer existing = codes.get(value);
+                if (existing == null) {
+                    if (dictionary.size() >= MIN_DICTIONARY_SIZE && dictionary.size() * 2 > row + 1) {
+                        return new PlainData(this, row).add(row, value);
+                    }
+                    existing = dictionary.size();
+                    dictionary.add(value);
+                    codes.put(value, existing);
+                }
+                code = existing;
+            }
+            setCode(row, code);
+            return this;
+        }
+        
+        private void setCode(int row, int code) {
+            // widen the codes when the dictionary outgrows them
+            if (code > 0xFFFF && ints == null) {
+                int[] widened = new int[capacity(0, row)];
+                for (int i = 0; i < row; i++) {
+                    widened[i] = code(i);
+                }
+                ints = widened;
+                bytes = null;
+                chars = null;
+            } else if (code > 0xFF && bytes != null) {
+                char[] widened = new char[capacity(0, row)];
+                for (int i = 0; i < row; i++) {
+                    widened[i] = (char)code(i);
+                }
+                chars = widened;
+                bytes = null;
+            }
+            
+            if (ints != null) {
+                if (row >= ints.length) {
+                    ints = Arrays.copyOf(ints, capacity(ints.length, row));
+                }
+                ints[row] = code;
+            } else if (chars != null) {
+                if (row >= chars.length) {
+                    chars = Arrays.copyOf(chars, capacity(chars.length, row));
+                }
+                chars[row] = (char)code;
+            } else {
+                if (row >= bytes.length) {
+                    bytes = Arrays.copyOf(bytes, capacity(bytes.length, row));
+                }
+                bytes[row] = (byte)code;
+            }
+        }
+        
+        private int code(int row) {
+            if (ints != null) {
+                return ints[row];
+            } else if (chars != null) {
+                return chars[row];
+            } else {
+                return bytes[row] & 0xFF;
+            }
+        }
+        
+        @Override
+        String getString(int row) {
+            return dictionary.get(code(row));
+        }
+        
+        @Override
+        void trimToSize(int size) {
+            if (ints != null) {
+                ints = Arrays.copyOf(ints, size);
+            } else if (chars != null) {
+                chars = Arrays.copyOf(chars, size);
+            } else {
+                bytes = Arrays.copyOf(bytes, size);
+            }
+            // only needed when adding values
+            codes = null;
+        }
+        
+        @Override
+        long estimateBytes() {
+            long bytes = ints != null ? 4L * ints.length : chars != null ? 2L * chars.length : this.bytes.length;
+            for (String value : dictionary) {
+                bytes += 8 + estimateBytes(value);
+            }
+            return bytes + (codes == null ? 0 : 48L * codes.size());
+        }
+    }
+    
+    /**
+     * Text with many distinct values.
+     */
+    private static class PlainData extends ColumnData {
+        private String[] values;
+        
+        /**
+         * A column with the values of the rows before the given row of a dictionary column.
+         */
+        PlainData(DictionaryData dictionary, int rows) {
+            values = new String[capacity(0, rows)];
+            for (int row = 0; row < rows; row++) {
+                values[row] = dictionary.getString(row);
+            }
+        }
+        
+        @Override
+        ColumnData add(int row, String value) {
+            if (row >= values.length) {
+                values = Arrays.copyOf(values, capacity(values.length, row));
+            }
+            values[row] = value;
+            return this;
+        }
+        
+        @Override
+        String getString(int row) {
+            return values[row];
+        }
+        
+        @Override
+        void trimToSize(int size) {
+            values = Arrays.copyOf(values, size);
+        }
+        
+        @Override
+        long estimateBytes() {
+            long bytes = 8L * values.length;
+            for (String value : values) {
+                bytes += estimateBytes(value);
+            }
+            return bytes;
+        }
+    }
+}
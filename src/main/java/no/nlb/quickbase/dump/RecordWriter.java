@@ -0,0 +1,186 @@
+package no.nlb.quickbase.dump;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import no.nlb.quickbase.dump.QuickbaseTableDump.QuickbaseResponse;
+
+/**
+ * Writes the records of a dump in a format other than the Quickbase XML, one record at a time as the
+ * responses arrive. Nothing is kept in memory except the current response.
+ *
+ * The columns are the fields in the schema, ordered by field id. The values are converted according
+ * to the field types: numbers and checkboxes are written as numbers and booleans where the format
+ * allows it, and dates and timestamps (which Quickbase gives as milliseconds since the epoch) are
+ * written as ISO 8601 dates and UTC instants.
+ */
+abstract class RecordWriter implements PageConsumer, Closeable {
+    
+    enum Type { TEXT, NUMBER, BOOLEAN, DATE, TIMESTAMP }
+    
+    /**
+     * A column in the output.
+     */
+    static class Column {
+        public final String id;
+        public final String label;
+        public final Type type;
+        
+        public Column(String id, String label, Type type) {
+            this.id = id;
+            this.label = label;
+            this.type = type;
+        }
+    }
+    
+    private static final Pattern NUMBER = Pattern.compile("-?(0|[1-9][0-9]*)(\\.[0-9]+)?([eE][+-]?[0-9]+)?");
+    private static final Pattern MILLISECONDS = Pattern.compile("-?[0-9]{1,18}");
+    
+    protected final Writer out;
+    protected final List<Column> columns;
+    private boolean started = false;
+    private long recordCount = 0;
+    
+    protected RecordWriter(Writer out, Map<String,Map<String,String>> fields) {
+        this.out = out;
+        this.columns = columns(fields);
+    }
+    
+    /**
+     * @param format "csv" or "jsonl"
+     * @param fields the fields of the table, as returned by getFields
+     */
+    public static RecordWriter create(String format, Writer out, Map<String,Map<String,String>> fields) {
+        if ("csv".equals(format)) {
+            return new CsvRecordWriter(out, fields);
+        } else if ("jsonl".equals(format)) {
+            return new JsonLinesRecordWriter(out, fields);
+        } else {
+            throw new IllegalArgumentException("Unknown output format: " + format);
+        }
+    }
+    
+    @Override
+    public void add(QuickbaseResponse response) throws IOException {
+        String errcode = response.get("errcode");
+        if (errcode != null && !"0".equals(errcode)) {
+            throw new IOException("Unable to get records: " + response.get("errtext") + " (errcode " + errcode + ")");
+        }
+        
+        start();
+        String[] values = new String[columns.size()];
+        Iterator<QuickbaseRecord> records = response.records();
+        while (records.hasNext()) {
+            Map<String,String> recordValues = records.next().getValues();
+            for (int i = 0; i < values.length; i++) {
+                Column column = columns.get(i);
+                values[i] = convert(column.type, recordValues.get(column.id));
+            }
+            writeRecord(values);
+            recordCount++;
+        }
+    }
+    
+    /**
+     * Write anything that has not been written yet. The output is flushed but not closed.
+     */
+    public void finish() throws IOException {
+        start();
+        out.flush();
+    }
+    
+    /**
+     * @return The number of records written so far.
+     */
+    public long getRecordCount() {
+        return recordCount;
+    }
+    
+    @Override
+    public void close() throws IOException {
+    }
+    
+    /**
+     * Called once, before the first record.
+     */
+    protected void writeHeader() throws IOException {
+    }
+    
+    /**
+     * @param values the converted values, in column order. null for empty values.
+     */
+    protected abstract void writeRecord(String[] values) throws IOException;
+    
+    private void start() throws IOException {
+        if (!started) {
+            writeHeader();
+            started = true;
+        }
+    }
+    
+    static List<Column> columns(Map<String,Map<String,String>> fields) {
+        List<String> ids = new ArrayList<String>(fields.keySet());
+        ids.sort((a, b) -> Long.compare(Long.parseLong(a), Long.parseLong(b)));
+        
+        List<Column> columns = new ArrayList<Column>();
+        for (String id : ids) {
+            Map<String,String> field = fields.get(id);
+            String label = field.get("label");
+            columns.add(new Column(id, label == null ? id : label, type(field.get("base_type"), field.get("field_type"))));
+        }
+        return columns;
+    }
+    
+    static Type type(String baseType, String fieldType) {
+        if ("timestamp".equals(fieldType)) {
+            return Type.TIMESTAMP;
+        } else if ("date".equals(fieldType)) {
+            return Type.DATE;
+        } else if ("bool".equals(baseType) || "checkbox".equals(fieldType)) {
+            return Type.BOOLEAN;
+        } else if ("float".equals(baseType) || "int32".equals(baseType) || "int64".equals(baseType)) {
+            return Type.NUMBER;
+        } else {
+            return Type.TEXT;
+        }
+    }
+    
+    /**
+     * Convert a value from the structured API_DoQuery format. Values that do not look like the type
+     * of the field are returned as they are, so that nothing is lost.
+     *
+     * @return the converted value, or null if the value is empty
+     */
+    static String convert(Type type, String value) {
+        if (value == null || "".equals(value)) {
+            return null;
+        }
+        switch (type) {
+        case NUMBER:
+            return value;
+        case BOOLEAN:
+            return "1".equals(value) || "true".equals(value) ? "true" : "false";
+        case DATE:
+            return MILLISECONDS.matcher(value).matches() ? Instant.ofEpochMilli(Long.parseLong(value)).atZone(ZoneOffset.UTC).toLocalDate().toString() : value;
+        case TIMESTAMP:
+            return MILLISECONDS.matcher(value).matches() ? Instant.ofEpochMilli(Long.parseLong(value)).toString() : value;
+        default:
+            return value;
+        }
+    }
+    
+    /**
+     * @return Whether the converted value can be written as a number in JSON.
+     */
+    static boolean isNumber(String value) {
+        return NUMBER.matcher(value).matches();
+    }
+}
@@ -0,0 +1,403 @@
+package no.nlb.quickbase.dump;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import no.nlb.quickbase.dump.QuickbaseTableDump.QuickbaseResponse;
+
+/**
+ * Decides when requests are sent, and retries them when they fail. All the requests from a client
+ * (and the clients for the other tables in the application) go through the same scheduler.
+ *
+ * - At most a fixed number of requests are sent at the same time.
+ * - An optional token bucket limits the number of requests per second.
+ * - When Quickbase says we are sending too many requests (errcode 77, or HTTP 429 or 503), all
+ *   requests are paused, the rate limit is halved, and the request is retried. The rate limit is
+ *   then slowly raised again as requests succeed.
+ * - Requests that fail because of a network error or another server error are retried, if they
+ *   only read data. The delay between the attempts grows exponentially, with full jitter, so that
+ *   concurrent requests don't retry in lockstep.
+ *
+ * Requests can be sent from a thread that waits for them (send), or without waiting (sendAsync).
+ * Asynchronous requests never block a thread: while they wait for a token, a retry or a free slot
+ * they are only kept in a queue, and the scheduler starts them when it is their turn.
+ */
+class RequestScheduler {
+
+    /** The action of file downloads, which have no Quickbase response. */
+    static final String DOWNLOAD = "download";
+
+    /** The actions that only read data, and can safely be sent again. */
+    static final Set<String> IDEMPOTENT_ACTIONS = new HashSet<String>(Arrays.asList("API_DoQuery", "API_DoQueryCount", "API_GetSchema", DOWNLOAD));
+
+    /** The errcode Quickbase returns when the request limit is exceeded. */
+    static final String THROTTLED_ERRCODE = "77";
+
+    private static final long MAX_RETRY_DELAY_MILLIS = 60000;
+
+    /**
+     * A request that failed, but may succeed if it is sent again.
+     */
+    static class RetryableException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final boolean throttled;
+        final long retryAfterMillis;
+
+        /**
+         * @param throttled whether the server asked us to slow down
+         * @param retryAfterMillis how long the server asked us to wait, or 0 if it did not say
+         */
+        RetryableException(String message, boolean throttled, long retryAfterMillis) {
+            super(message);
+            this.throttled = throttled;
+            this.retryAfterMillis = retryAfterMillis;
+        }
+    }
+
+    interface Attempt {
+        /**
+         * @return The response, or null if the request has no Quickbase response, like a download
+         */
+        QuickbaseResponse send() throws IOException;
+    }
+
+    interface AsyncAttempt {
+        CompletableFuture<QuickbaseResponse> send();
+    }
+
+    private final double maxRate;
+    private final int retries;
+    private final long retryDelayMillis;
+    private final Metrics metrics;
+
+    // token bucket; guarded by this
+    private double rate;
+    private double tokens;
+    private long refilledNanos = System.nanoTime();
+    private long pausedUntilNanos = System.nanoTime();
+
+    // requests that are sent at the moment, and the ones waiting for a free slot; guarded by this
+    private final int concurrency;
+    private int sending = 0;
+    private final Deque<Runnable> waiting = new ArrayDeque<Runnable>();
+
+    private ScheduledExecutorService timer = null;
+
+    /**
+     * @param concurrency the number of requests that can be sent at the same time
+     * @param rateLimit the number of requests per second, or 0 for no limit
+     * @param retries how many times a request is retried before giving up
+     * @param retryDelayMillis the delay before the first retry. It doubles for each retry.
+     * @param metrics where the time spent waiting and the retries are counted
+     */
+    RequestScheduler(int concurrency, int rateLimit, int retries, long retryDelayMillis, Metrics metrics) {
+        this.concurrency = Math.max(1, concurrency);
+        this.maxRate = rateLimit;
+        this.rate = rateLimit;
+        this.tokens = Math.max(1, rateLimit);
+        this.retries = retries;
+        this.retryDelayMillis = retryDelayMillis;
+        this.metrics = metrics;
+    }
+
+    Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Send a request, retrying it if it fails in a way that may be temporary.
+     *
+     * @throws IOException if the request fails, and can not be retried or has been retried too many times
+     */
+    QuickbaseResponse send(String action, Attempt attempt) throws IOException {
+        for (int retry = 0; ; retry++) {
+            acquireToken();
+
+            // limit the number of concurrent requests, across all tables
+            long waitStart = System.nanoTime();
+            waitForSlot();
+            metrics.time(Metrics.WAIT, System.nanoTime() - waitStart);
+            IOException failure;
+            try {
+                QuickbaseResponse response = attempt.send();
+                failure = check(action, response);
+                if (failure == null) {
+                    return response;
+                }
+
+            } catch (IOException e) {
+                failure = e;
+
+            } finally {
+                finished();
+            }
+
+            long delay = retryDelay(action, retry, failure);
+            if (delay < 0) {
+                throw failure;
+            }
+            sleep(delay);
+        }
+    }
+
+    /**
+     * Send a request without waiting for it, retrying it if it fails in a way that may be temporary.
+     *
+     * @return The response, or the IOException if the request fails, and can not be retried or
+     *         has been retried too many times
+     */
+    CompletableFuture<QuickbaseResponse> sendAsync(String action, AsyncAttempt attempt) {
+        CompletableFuture<QuickbaseResponse> result = new CompletableFuture<QuickbaseResponse>();
+        sendAsync(action, attempt, 0, -1, result);
+        return result;
+    }
+
+    /**
+     * @param throttledSince when the request started waiting for a token, or -1 if it has not waited
+     */
+    private void sendAsync(String action, AsyncAttempt attempt, int retry, long throttledSince, CompletableFuture<QuickbaseResponse> result) {
+        long waitNanos = takeToken();
+        if (waitNanos > 0) {
+            long since = throttledSince < 0 ? System.nanoTime() : throttledSince;
+            schedule(() -> sendAsync(action, attempt, retry, since, result), Math.max(1, waitNanos / 1000000));
+            return;
+        }
+        if (throttledSince >= 0) {
+            metrics.time(Metrics.THROTTLED, System.nanoTime() - throttledSince);
+        }
+
+        long slotWaitStart = System.nanoTime();
+        startWhenFree(() -> {
+            metrics.time(Metrics.WAIT, System.nanoTime() - slotWaitStart);
+            CompletableFuture<QuickbaseResponse> response;
+            try {
+                response = attempt.send();
+            } catch (RuntimeException e) {
+                response = new CompletableFuture<QuickbaseResponse>();
+                response.completeExceptionally(e);
+            }
+            response.whenComplete((value, error) -> {
+                finished();
+                IOException failure;
+                if (error == null) {
+                    failure = check(action, value);
+                    if (failure == null) {
+                        result.complete(value);
+                        return;
+                    }
+                } else {
+                    Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                    if (!(cause instanceof IOException)) {
+                        result.completeExceptionally(cause);
+                        return;
+                    }
+                    failure = (IOException)cause;
+                }
+
+                long delay = retryDelay(action, retry, failure);
+                if (delay < 0) {
+                    result.completeExceptionally(failure);
+                } else {
+                    schedule(() -> sendAsync(action, attempt, retry + 1, -1, result), delay);
+                }
+            });
+        });
+    }
+
+    /**
+     * @return null if the response can be used, or the failure if Quickbase asked us to slow down
+     */
+    private IOException check(String action, QuickbaseResponse response) {
+        if (response == null || !THROTTLED_ERRCODE.equals(response.get("errcode"))) {
+            succeeded();
+            return null;
+        }
+        return new RetryableException(action + ": " + response.get("errtext") + " (errcode " + THROTTLED_ERRCODE + ")", true, 0);
+    }
+
+    /**
+     * Decide whether to retry a failed request. If the server asked us to slow down, all requests
+     * are paused.
+     *
+     * @return How many milliseconds to wait before retrying, or -1 to give up.
+     */
+    private long retryDelay(String action, int retry, IOException failure) {
+        if (!IDEMPOTENT_ACTIONS.contains(action) || retry >= retries) {
+            return -1;
+        }
+        long delay = backoff(retry);
+        boolean throttled = false;
+        if (failure instanceof RetryableException) {
+            throttled = ((RetryableException)failure).throttled;
+            delay = Math.max(delay, ((RetryableException)failure).retryAfterMillis);
+        }
+        metrics.retry();
+        System.err.println(failure.getMessage() + "; retrying in " + delay + " ms (retry " + (retry + 1) + " of " + retries + ")");
+
+        if (throttled) {
+            // pause all requests; this one waits for the pause to end when it takes a token
+            throttled(delay);
+            return 0;
+        }
+        return delay;
+    }
+
+    /**
+     * @return A random delay between 0 and retryDelay * 2^retry, up to one minute.
+     */
+    long backoff(int retry) {
+        long maxDelay = Math.min(MAX_RETRY_DELAY_MILLIS, retryDelayMillis << Math.min(retry, 20));
+        return ThreadLocalRandom.current().nextLong(maxDelay + 1);
+    }
+
+    synchronized double getRate() {
+        return rate;
+    }
+
+    /**
+     * Pause all requests, and halve the rate limit.
+     */
+    private synchronized void throttled(long delayMillis) {
+        pausedUntilNanos = Math.max(pausedUntilNanos, System.nanoTime() + delayMillis * 1000000L);
+        if (maxRate > 0) {
+            rate = Math.max(maxRate / 16, rate / 2);
+        }
+    }
+
+    /**
+     * Slowly raise the rate limit again after it has been lowered.
+     */
+    private synchronized void succeeded() {
+        if (rate < maxRate) {
+            rate = Math.min(maxRate, rate + maxRate / 20);
+        }
+    }
+
+    /**
+     * Wait until requests are not paused, and there is a token in the bucket.
+     */
+    private void acquireToken() throws InterruptedIOException {
+        long waitStart = System.nanoTime();
+        boolean waited = false;
+        long waitNanos;
+        while ((waitNanos = takeToken()) > 0) {
+            sleep(Math.max(1, waitNanos / 1000000));
+            waited = true;
+        }
+        if (waited) {
+            metrics.time(Metrics.THROTTLED, System.nanoTime() - waitStart);
+        }
+    }
+
+    /**
+     * Take a token from the bucket, if requests are not paused and there is one.
+     *
+     * @return 0 if a token was taken, or how many nanoseconds to wait before trying again
+     */
+    private synchronized long takeToken() {
+        long now = System.nanoTime();
+        if (now - pausedUntilNanos < 0) {
+            return pausedUntilNanos - now;
+
+        } else if (maxRate <= 0) {
+            return 0;
+        }
+        tokens = Math.min(Math.max(1, rate), tokens + (now - refilledNanos) / 1e9 * rate);
+        refilledNanos = now;
+        if (tokens >= 1) {
+            tokens -= 1;
+            return 0;
+        }
+        return Math.max(1, (long)((1 - tokens) / rate * 1e9));
+    }
+
+    /**
+     * Start the request now if fewer than the maximum number of requests are being sent, or when
+     * one of them has finished.
+     */
+    private void startWhenFree(Runnable request) {
+        synchronized (this) {
+            if (sending >= concurrency) {
+                waiting.add(request);
+                return;
+            }
+            sending++;
+        }
+        request.run();
+    }
+
+    /**
+     * Wait for a free slot, for a request that is sent from the current thread.
+     *
+     * @throws InterruptedIOException if the thread is interrupted. It then does not hold a slot.
+     */
+    private void waitForSlot() throws InterruptedIOException {
+        CompletableFuture<Void> slot = new CompletableFuture<Void>();
+        Runnable request = () -> slot.complete(null);
+        startWhenFree(request);
+        try {
+            slot.get();
+        } catch (InterruptedException e) {
+            boolean dequeued;
+            synchronized (this) {
+                dequeued = waiting.remove(request);
+            }
+            if (!dequeued) {
+                // the slot was given to us in the meantime, pass it on
+                finished();
+            }
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to send a request");
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Give the slot of a request that has finished to the next one that is waiting.
+     */
+    private void finished() {
+        Runnable next;
+        synchronized (this) {
+            next = waiting.poll();
+            if (next == null) {
+                sending--;
+                return;
+            }
+        }
+        next.run();
+    }
+
+    private synchronized void schedule(Runnable task, long delayMillis) {
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "quickbase-scheduler");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        timer.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private static void sleep(long millis) throws InterruptedIOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to send a request");
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package no.nlb.quickbase.dump;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Splits a dump into shards that can be made on different machines, and merges the shards again.
+ *
+ * Shard i of n gets the i-th of n equally wide, disjoint ranges of the record ids from the lowest
+ * to the highest record id in the table. Each shard is a complete dump of its records. Merging the
+ * shards gives the same document as a dump of the whole table: the records of all the shards in
+ * record id order, after the union of their users.
+ *
+ * The shards are merged as streams, like a merge sort: only the users and the next record of each
+ * shard are kept in memory, however large the shards are.
+ */
+class ShardedDump {
+    
+    /**
+     * The next record of a shard, ordered by record id, and then by the order of the shards.
+     */
+    private static class Head implements Comparable<Head> {
+        final DumpReader shard;
+        final int index;
+        final DumpReader.Record record;
+        
+        Head(DumpReader shard, int index, DumpReader.Record record) {
+            this.shard = shard;
+            this.index = index;
+            this.record = record;
+        }
+        
+        @Override
+        public int compareTo(Head other) {
+            return record.rid != other.record.rid ? Integer.compare(record.rid, other.record.rid) : Integer.compare(index, other.index);
+        }
+    }
+    
+    /**
+     * @param shard a shard, as "i/n", where i is from 1 to n
+     * @return { i, n }
+     * @throws IllegalArgumentException if the shard is not in that form
+     */
+    static int[] parseShard(String shard) {
+        if (shard == null || !shard.trim().matches("[0-9]{1,9}/[0-9]{1,9}")) {
+            throw new IllegalArgumentException("Invalid shard: " + shard + " (must be i/n, for instance 2/4)");
+        }
+        String[] parts = shard.trim().split("/");
+        return checkShard(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+    }
+    
+    static int[] checkShard(int index, int count) {
+        if (count < 1 || index < 1 || index > count) {
+            throw new IllegalArgumentException("Invalid shard: " + index + "/" + count + " (the shard must be from 1 to the number of shards)");
+        }
+        return new int[]{ index, count };
+    }
+    
+    /**
+     * @return The record ids of shard index of count, { from, to } (inclusive), when the table has
+     *         record ids from startRecordId to endRecordId. If the shard is empty, to is from - 1.
+     */
+    static int[] range(int startRecordId, int endRecordId, int index, int count) {
+        long span = endRecordId - (long)startRecordId + 1;
+        long from = startRecordId + span * (index - 1) / count;
+        long to = startRecordId + span * index / count - 1;
+        return new int[]{ (int)from, (int)to };
+    }
+    
+    /**
+     * Merge the shards into a single dump in the XML format. A record that is in more than one
+     * shard is only written once, from the first of the shards.
+     *
+     * @param shards the shards, each in the XML format, in any order
+     * @return The number of records written.
+     */
+    static long merge(List<Reader> shards, Writer out) throws IOException {
+        List<DumpReader> readers = new ArrayList<DumpReader>();
+        try {
+            String head = null;
+            boolean withUsers = false;
+            SortedMap<String,String> users = new TreeMap<String,String>();
+            PriorityQueue<Head> next = new PriorityQueue<Head>();
+            for (Reader shard : shards) {
+                DumpReader reader = new DumpReader(shard);
+                readers.add(reader);
+                if (reader.getHead() == null) {
+                    // an empty shard, without even the table head
+                    continue;
+                }
+                if (head == null) {
+                    head = reader.getHead();
+                }
+                withUsers |= reader.hasUsers();
+                users.putAll(reader.getUsers());
+                DumpReader.Record record = reader.next();
+                if (record != null) {
+                    next.add(new Head(reader, readers.size() - 1, record));
+                }
+            }
+            
+            try (CombinedResponseWriter combined = new CombinedResponseWriter(out)) {
+                if (head == null) {
+                    combined.finish();
+                    return 0;
+                }
+                combined.start(head, withUsers);
+                for (String id : users.keySet()) {
+                    combined.addUser(id, users.get(id));
+                }
+                // all the users are known, so the records don't have to be spooled
+                combined.startRecords();
+                
+                int duplicates = 0;
+                Integer previousRid = null;
+                while (!next.isEmpty()) {
+                    Head first = next.poll();
+                    if (previousRid != null && previousRid == first.record.rid) {
+                        duplicates++;
+                    } else {
+                        combined.addRecords(first.record.xml);
+                        previousRid = first.record.rid;
+                    }
+                    DumpReader.Record record = first.shard.next();
+                    if (record != null) {
+                        next.add(new Head(first.shard, first.index, record));
+                    }
+                }
+                combined.finish();
+                
+                if (duplicates > 0) {
+                    System.err.println(duplicates + " records were in more than one shard; the shards were probably made with different record id bounds");
+                }
+                return combined.getRecordCount();
+            }
+            
+        } finally {
+            for (DumpReader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+    
+    /**
+     * Merge the shards in the given files. Files that end with ".gz" are decompressed.
+     */
+    static long mergeFiles(List<File> shards, Writer out) throws IOException {
+        List<Reader> readers = new ArrayList<Reader>();
+        try {
+            for (File shard : shards) {
+                InputStream in = new FileInputStream(shard);
+                if (shard.getName().endsWith(".gz")) {
+                    in = new GZIPInputStream(in, 65536);
+                }
+                readers.add(new BufferedReader(new InputStreamReader(in, "UTF-8")));
+            }
+            return merge(readers, out);
+            
+        } finally {
+            for (Reader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package no.nlb.quickbase.dump;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import no.nlb.quickbase.dump.QuickbaseTableDump.QuickbaseResponse;
+
+/**
+ * Spools each completed record id range to its own file in a work directory, so that a dump
+ * that fails can be resumed without fetching the same ranges again.
+ *
+ * The manifest (manifest.txt) lists the table and the ranges that are done. A range is only
+ * added to the manifest after its file has been written completely. When all ranges are done,
+ * the spooled files are combined into the final dump.
+ *
+ * Each range file is a dump of its own, with the users before the records. The manifest also
+ * records where the records start and end in the file, in bytes, and how many there are, so that
+ * the records can be copied from the range files to the final dump as bytes (see splice), instead
+ * of being read back into memory.
+ */
+class SpooledDump implements RangeConsumer {
+    
+    private static final String MANIFEST = "manifest.txt";
+    
+    private File workDir;
+    private File manifest;
+    
+    /** The ranges that are done, keyed by their start. The values are the (exclusive) ends. */
+    private TreeMap<Integer,Integer> done = new TreeMap<Integer,Integer>();
+    
+    /** The offsets of the records in the range files, { start, end, records }, keyed by the start of the range. */
+    private Map<Integer,long[]> offsets = new TreeMap<Integer,long[]>();
+    
+    public SpooledDump(File workDir, String table, String recordIdId) throws IOException {
+        this(workDir, table, recordIdId, null);
+    }
+    
+    /**
+     * @param selection the fields and filter of the dump, or null if it has all fields and no filter
+     */
+    public SpooledDump(File workDir, String table, String recordIdId, String selection) throws IOException {
+        this.workDir = workDir;
+        this.manifest = new File(workDir, MANIFEST);
+        if (!workDir.isDirectory() && !workDir.mkdirs()) {
+            throw new IOException("Unable to create work directory: " + workDir);
+        }
+        
+        String header = "table=" + table + " recordIdId=" + recordIdId + (selection == null ? "" : " " + selection);
+        if (manifest.isFile()) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), "UTF-8"))) {
+                String line = reader.readLine();
+                if (!header.equals(line)) {
+                    throw new IOException("The work directory " + workDir + " contains a dump of another table, or of other fields (" + line + ")");
+                }
+                while ((line = reader.readLine()) != null) {
+                    if (!line.matches("[0-9]+ [0-9]+ [0-9]+ [0-9]+ [0-9]+")) {
+                        continue; // incomplete line from a crash
+                    }
+                    String[] range = line.split(" ");
+                    int from = Integer.parseInt(range[0]);
+                    int to = Integer.parseInt(range[1]);
+                    if (rangeFile(from, to).isFile()) {
+                        done.put(from, to);
+                        offsets.put(from, new long[]{ Long.parseLong(range[2]), Long.parseLong(range[3]), Long.parseLong(range[4]) });
+                    }
+                }
+            }
+            System.err.println("Resuming dump: " + done.size() + " ranges already done");
+            
+        } else {
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(manifest), "UTF-8")) {
+                writer.write(header + "\n");
+            }
+        }
+    }
+    
+    /**
+     * @return The ranges [from,to) between startRecordId and endRecordId (inclusive) that are not done yet.
+     */
+    public List<int[]> getMissingRanges(int startRecordId, int endRecordId) {
+        List<int[]> missing = new ArrayList<int[]>();
+        long next = startRecordId;
+        for (Map.Entry<Integer,Integer> range : done.entrySet()) {
+            if (range.getKey() > next && next <= endRecordId) {
+                missing.add(new int[]{ (int)next, (int)Math.min(range.getKey(), endRecordId + 1L) });
+            }
+            next = Math.max(next, range.getValue());
+        }
+        if (next <= endRecordId) {
+            missing.add(new int[]{ (int)next, endRecordId + 1 });
+        }
+        return missing;
+    }
+    
+    @Override
+    public void addRange(int from, int to, List<QuickbaseResponse> responses) throws IOException {
+        File file = rangeFile(from, to);
+        File tempFile = new File(workDir, file.getName() + ".tmp");
+        long[] recordOffsets = new long[3];
+        try (FileOutputStream stream = new FileOutputStream(tempFile);
+             Writer out = new BufferedWriter(new OutputStreamWriter(stream, "UTF-8"));
+             CombinedResponseWriter combined = new CombinedResponseWriter(out)) {
+            if (!responses.isEmpty()) {
+                // all the users are known up front, so the records can be written directly, and their offsets noted
+                for (QuickbaseResponse response : responses) {
+                    combined.startWith(response);
+                    combined.addUsers(response);
+                }
+                combined.startRecords();
+                out.flush();
+                recordOffsets[0] = stream.getChannel().position();
+                for (QuickbaseResponse response : responses) {
+                    combined.addRecords(CombinedResponseWriter.recordsBody(response.responseString));
+                }
+                out.flush();
+                recordOffsets[1] = stream.getChannel().position();
+                recordOffsets[2] = combined.getRecordCount();
+            }
+            combined.finish();
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        
+        try (FileOutputStream manifestStream = new FileOutputStream(manifest, true)) {
+            manifestStream.write((from + " " + to + " " + recordOffsets[0] + " " + recordOffsets[1] + " " + recordOffsets[2] + "\n").getBytes("UTF-8"));
+            manifestStream.getFD().sync();
+        }
+        done.put(from, to);
+        offsets.put(from, recordOffsets);
+    }
+    
+    /**
+     * Combine all the spooled ranges into a single document.
+     */
+    public void combine(Writer out) throws IOException {
+        try (CombinedResponseWriter combined = new CombinedResponseWriter(out)) {
+            boolean started = false;
+            for (Map.Entry<Integer,Integer> range : done.entrySet()) {
+                File file = rangeFile(range.getKey(), range.getValue());
+                try (DumpReader reader = new DumpReader(new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8")))) {
+                    if (reader.getHead() == null) {
+                        continue; // no responses in this range
+                    }
+                    if (!started) {
+                        combined.start(reader.getHead(), reader.hasUsers());
+                        started = true;
+                    }
+                    for (String id : reader.getUsers().keySet()) {
+                        combined.addUser(id, reader.getUsers().get(id));
+                    }
+                    DumpReader.Record record;
+                    while ((record = reader.next()) != null) {
+                        combined.addRecords(record.xml);
+                    }
+                }
+            }
+            combined.finish();
+            
+            if (QuickbaseTableDump.DEBUG) {
+                System.err.println("Found a total of "+combined.getRecordCount()+" records");
+            }
+        }
+    }
+    
+    /**
+     * Combine all the spooled ranges into a single document in UTF-8, like combine(Writer). Only the
+     * heads and the users are read from the range files; the records are copied to the output with
+     * FileChannel.transferTo, without going through the heap. When the output is a FileOutputStream,
+     * the operating system copies them from file to file.
+     */
+    public void splice(OutputStream out) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+        try (CombinedResponseWriter combined = new CombinedResponseWriter(writer)) {
+            boolean started = false;
+            for (Map.Entry<Integer,Integer> range : done.entrySet()) {
+                long recordsStart = offsets.get(range.getKey())[0];
+                if (recordsStart == 0) {
+                    continue; // no responses in this range
+                }
+                byte[] beforeRecords = new byte[(int)recordsStart];
+                try (DataInputStream in = new DataInputStream(new FileInputStream(rangeFile(range.getKey(), range.getValue())))) {
+                    in.readFully(beforeRecords);
+                }
+                try (DumpReader reader = new DumpReader(new StringReader(new String(beforeRecords, "UTF-8")))) {
+                    if (!started) {
+                        combined.start(reader.getHead(), reader.hasUsers());
+                        started = true;
+                    }
+                    for (String id : reader.getUsers().keySet()) {
+                        combined.addUser(id, reader.getUsers().get(id));
+                    }
+                }
+            }
+            if (!started) {
+                combined.finish();
+                return;
+            }
+            combined.startRecords();
+            writer.flush();
+            
+            WritableByteChannel channel = out instanceof FileOutputStream ? ((FileOutputStream)out).getChannel() : Channels.newChannel(out);
+            for (Map.Entry<Integer,Integer> range : done.entrySet()) {
+                long[] recordOffsets = offsets.get(range.getKey());
+                try (FileChannel in = FileChannel.open(rangeFile(range.getKey(), range.getValue()).toPath(), StandardOpenOption.READ)) {
+                    for (long position = recordOffsets[0]; position < recordOffsets[1]; ) {
+                        position += in.transferTo(position, recordOffsets[1] - position, channel);
+                    }
+                }
+                combined.recordsWritten(recordOffsets[2]);
+            }
+            combined.finish();
+            
+            if (QuickbaseTableDump.DEBUG) {
+                System.err.println("Found a total of "+combined.getRecordCount()+" records");
+            }
+        }
+    }
+    
+    /**
+     * Pass the spooled ranges to the consumer, one range at a time.
+     */
+    public void combine(PageConsumer consumer) throws IOException {
+        for (Map.Entry<Integer,Integer> range : done.entrySet()) {
+            byte[] bytes = Files.readAllBytes(rangeFile(range.getKey(), range.getValue()).toPath());
+            consumer.add(new QuickbaseResponse(new String(bytes, "UTF-8")));
+        }
+    }
+    
+    /**
+     * Delete the manifest and the spooled ranges.
+     */
+    public void clear() throws IOException {
+        for (Map.Entry<Integer,Integer> range : done.entrySet()) {
+            Files.deleteIfExists(rangeFile(range.getKey(), range.getValue()).toPath());
+        }
+        Files.deleteIfExists(manifest.toPath());
+        done.clear();
+        offsets.clear();
+    }
+    
+    private File rangeFile(int from, int to) {
+        return new File(workDir, "range-" + from + "-" + to + ".xml");
+    }
+}
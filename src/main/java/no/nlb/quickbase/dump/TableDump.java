@@ -0,0 +1,516 @@
+package no.nlb.quickbase.dump;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import no.nlb.quickbase.dump.QuickbaseTableDump.QuickbaseClient;
+import no.nlb.quickbase.dump.QuickbaseTableDump.QuickbaseResponse;
+
+/**
+ * A dump of a Quickbase table, for use from Java.
+ *
+ * <pre>
+ * QuickbaseClient client = new QuickbaseClient(appToken, domain, table, username, password);
+ * TableDump dump = TableDump.builder(client).fields("3,Title").query("{'7'.EX.'open'}").build();
+ * try (TableDump.Records records = dump.records()) {
+ *     while (records.hasNext()) {
+ *         QuickbaseRecord record = records.next();
+ *     }
+ * }
+ * </pre>
+ *
+ * The records are fetched as they are read: only a few pages are fetched ahead of the reader, so
+ * a slow reader slows down the fetching instead of filling up the memory. The dump can also be
+ * written as a document in one of the output formats.
+ *
+ * Failures are thrown as exceptions: QuickbaseException if a request fails or Quickbase responds
+ * with an error, and IllegalArgumentException if the fields or the query don't match the table.
+ */
+public class TableDump {
+    
+    public static class Builder {
+        private final QuickbaseClient client;
+        private QuickbaseResponse schema = null;
+        private String fields = null;
+        private String query = null;
+        private String format = "xml";
+        private int pageSize = 5000;
+        private int maxPageSize = 100000;
+        private int concurrency = 1;
+        private boolean plan = false;
+        private File workDir = null;
+        private int[] shard = null;
+        
+        private Builder(QuickbaseClient client) {
+            this.client = client;
+        }
+        
+        /**
+         * Only get these fields: field ids or labels, separated by commas. Defaults to all fields.
+         */
+        public Builder fields(String fields) {
+            this.fields = fields;
+            return this;
+        }
+        
+        /**
+         * Only get the records that match this Quickbase query, for instance {'7'.EX.'open'}.
+         */
+        public Builder query(String query) {
+            this.query = query == null || "".equals(query) ? null : query;
+            return this;
+        }
+        
+        /**
+         * The format that write uses: xml (the combined Quickbase XML), csv or jsonl. Defaults to xml.
+         */
+        public Builder format(String format) {
+            this.format = format;
+            return this;
+        }
+        
+        /**
+         * The number of record ids to request in the first request. Defaults to 5000.
+         */
+        public Builder pageSize(int pageSize) {
+            this.pageSize = pageSize;
+            return this;
+        }
+        
+        /**
+         * The largest number of record ids to request in one request. Defaults to 100000.
+         */
+        public Builder maxPageSize(int maxPageSize) {
+            this.maxPageSize = maxPageSize;
+            return this;
+        }
+        
+        /**
+         * The number of pages to fetch in parallel. Defaults to 1. The client limits the number of
+         * concurrent requests too.
+         */
+        public Builder concurrency(int concurrency) {
+            this.concurrency = concurrency;
+            return this;
+        }
+        
+        /**
+         * Plan the record id ranges from the number of records in them. See RangePlanner.
+         */
+        public Builder plan(boolean plan) {
+            this.plan = plan;
+            return this;
+        }
+        
+        /**
+         * Spool the pages to this directory when writing the dump, so that a failed dump can be resumed.
+         */
+        public Builder workDir(File workDir) {
+            this.workDir = workDir;
+            return this;
+        }
+        
+        /**
+         * Only dump shard index of count: the index-th of count equally wide ranges of the record
+         * ids in the table. See ShardedDump.
+         * 
+         * @param index from 1 to count
+         */
+        public Builder shard(int index, int count) {
+            this.shard = ShardedDump.checkShard(index, count);
+            return this;
+        }
+        
+        /**
+         * Use this API_GetSchema response instead of getting the schema again.
+         */
+        Builder schema(QuickbaseResponse schema) {
+            this.schema = schema;
+            return this;
+        }
+        
+        /**
+         * Get the schema and the record id bounds of the table, and check the fields and the query.
+         */
+        public TableDump build() throws IOException {
+            if (!"xml".equals(format) && !"csv".equals(format) && !"jsonl".equals(format)) {
+                throw new IllegalArgumentException("Unknown output format: " + format + " (must be xml, csv or jsonl)");
+            }
+            QuickbaseResponse schema = this.schema != null ? this.schema : QuickbaseTableDump.getSchema(client);
+            if (!"0".equals(schema.get("errcode"))) {
+                throw QuickbaseException.fromResponse("Unable to get the schema of " + client.getTable(), schema);
+            }
+            if (schema.getTablesInApplicationSchema() != null) {
+                throw new IllegalArgumentException("The ID '" + client.getTable() + "' refers to an application; not a table.");
+            }
+            return new TableDump(this, schema);
+        }
+    }
+    
+    private final QuickbaseClient client;
+    private final QuickbaseResponse schema;
+    private final String recordIdId;
+    private final Map<String,Map<String,String>> fields;
+    private final String clist;
+    private final String filter;
+    private final String format;
+    private final int pageSize;
+    private final int maxPageSize;
+    private final int concurrency;
+    private final boolean plan;
+    private final File workDir;
+    private final int[] shard;
+    private final Integer startRecordId;
+    private final Integer endRecordId;
+    
+    private TableDump(Builder builder, QuickbaseResponse schema) throws IOException {
+        this.client = builder.client;
+        this.schema = schema;
+        this.recordIdId = schema.getRecordIdId();
+        this.filter = builder.query;
+        this.format = builder.format;
+        this.pageSize = builder.pageSize;
+        this.maxPageSize = builder.maxPageSize;
+        this.concurrency = builder.concurrency;
+        this.plan = builder.plan;
+        this.workDir = builder.workDir;
+        this.shard = builder.shard;
+        
+        // check the selected fields and the filter before anything is fetched
+        Map<String,Map<String,String>> allFields = schema.getFields();
+        this.clist = QuickbaseTableDump.clist(allFields, builder.fields);
+        QuickbaseTableDump.checkQuery(allFields, filter);
+        this.fields = QuickbaseTableDump.selectFields(allFields, clist);
+        
+        Integer startRecordId = QuickbaseTableDump.getCachedRecordIdBound(client, recordIdId, false);
+        Integer endRecordId = QuickbaseTableDump.getCachedRecordIdBound(client, recordIdId, true);
+        if (shard != null && startRecordId != null && endRecordId != null) {
+            int[] range = ShardedDump.range(startRecordId, endRecordId, shard[0], shard[1]);
+            System.err.println("Shard " + shard[0] + "/" + shard[1] + ": record ids " + range[0] + " to " + range[1] + " of " + startRecordId + " to " + endRecordId);
+            startRecordId = range[0];
+            endRecordId = range[1];
+        }
+        this.startRecordId = startRecordId;
+        this.endRecordId = endRecordId;
+        if (QuickbaseTableDump.DEBUG) {
+            System.err.println("startRecordId: " + startRecordId);
+            System.err.println("endRecordId: " + endRecordId);
+        }
+    }
+    
+    public static Builder builder(QuickbaseClient client) {
+        return new Builder(client);
+    }
+    
+    /**
+     * @return The selected fields, keyed by field id, with the properties from the schema (like "label" and "field_type").
+     */
+    public Map<String,Map<String,String>> getFields() {
+        return fields;
+    }
+    
+    /**
+     * @return The lowest record id in the table (or the shard), or null if the table is empty.
+     */
+    public Integer getStartRecordId() {
+        return startRecordId;
+    }
+    
+    /**
+     * @return The highest record id in the table (or the shard), or null if the table is empty. Lower
+     *         than the start record id if the shard is empty.
+     */
+    public Integer getEndRecordId() {
+        return endRecordId;
+    }
+    
+    QuickbaseClient getClient() {
+        return client;
+    }
+    
+    QuickbaseResponse getSchema() {
+        return schema;
+    }
+    
+    String getRecordIdId() {
+        return recordIdId;
+    }
+    
+    String getClist() {
+        return clist;
+    }
+    
+    String getFilter() {
+        return filter;
+    }
+    
+    int getPageSize() {
+        return pageSize;
+    }
+    
+    int getMaxPageSize() {
+        return maxPageSize;
+    }
+    
+    int getConcurrency() {
+        return concurrency;
+    }
+    
+    /**
+     * The records, in record id order. Close it to stop fetching if not all of them are read.
+     */
+    public Records records() throws IOException {
+        return new Records(startRecordId == null || endRecordId == null ? null : pages(startRecordId, endRecordId, new RangeController(pageSize, maxPageSize)));
+    }
+    
+    /**
+     * Write the records as a single document in the format given to the builder.
+     */
+    public void write(Writer out) throws IOException {
+        if ("xml".equals(format)) {
+            writeXml(startRecordId, endRecordId, out);
+            return;
+        }
+        
+        try (RecordWriter records = RecordWriter.create(format, out, fields)) {
+            if (startRecordId == null || endRecordId == null) {
+                System.err.println("The table is empty.");
+                
+            } else if (workDir != null) {
+                SpooledDump spooled = spool(startRecordId, endRecordId);
+                spooled.combine(records);
+                out.flush();
+                spooled.clear();
+                
+            } else {
+                fetch(startRecordId, endRecordId, new RangeController(pageSize, maxPageSize), records);
+            }
+            
+            records.finish();
+            
+            if (QuickbaseTableDump.DEBUG) {
+                System.err.println("Found a total of " + records.getRecordCount() + " records");
+            }
+        }
+    }
+    
+    /**
+     * Write the records as a single document in UTF-8, in the format given to the builder. The stream
+     * is flushed but not closed.
+     * 
+     * When the pages are spooled to a work directory, an xml dump is spliced together from the
+     * spooled files: the records are copied to the stream as bytes, without reading them into
+     * memory (see SpooledDump.splice). That is fastest when the stream is a FileOutputStream.
+     */
+    public void write(OutputStream out) throws IOException {
+        if ("xml".equals(format) && workDir != null && startRecordId != null && endRecordId != null) {
+            SpooledDump spooled = spool(startRecordId, endRecordId);
+            spooled.splice(out);
+            out.flush();
+            spooled.clear();
+            return;
+        }
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+        write(writer);
+        writer.flush();
+    }
+    
+    /**
+     * Keep a dump file in the XML format up to date, by only fetching the records that have changed
+     * since the last time. See IncrementalDump.
+     */
+    public void writeIncremental(File dumpFile) throws IOException {
+        if (!"xml".equals(format)) {
+            throw new IllegalArgumentException("Incremental dumps can only be made in the xml format");
+        } else if (shard != null) {
+            throw new IllegalArgumentException("Incremental dumps can not be sharded");
+        }
+        IncrementalDump.run(this, dumpFile);
+    }
+    
+    /**
+     * Keep a dump file in the XML format up to date, by only fetching the ranges of record ids that
+     * have changed since the last time. See ChecksummedDump.
+     * 
+     * @param checkField the id or label of a field that grows when a record is changed, or null to
+     *        use the Date Modified field
+     */
+    public void writeChecksummed(File dumpFile, String checkField) throws IOException {
+        if (!"xml".equals(format)) {
+            throw new IllegalArgumentException("Checksummed dumps can only be made in the xml format");
+        } else if (shard != null) {
+            throw new IllegalArgumentException("Checksummed dumps can not be sharded");
+        }
+        ChecksummedDump.run(this, dumpFile, checkField);
+    }
+    
+    /**
+     * Download the files in the file attachment fields of the selected fields and records, and
+     * store them by their content in the given directory. Attachments that have not changed since
+     * the last download to the directory are not downloaded again. See AttachmentDownloader.
+     */
+    public void downloadAttachments(File dir) throws IOException {
+        new AttachmentDownloader(this, dir, concurrency).run();
+    }
+    
+    /**
+     * Print the ranges that the dump would request, without requesting any records.
+     */
+    public void explain(PrintStream out) throws IOException {
+        if (startRecordId == null || endRecordId == null) {
+            out.println("The table is empty.");
+            out.println("Estimated API_DoQuery requests: 1");
+            
+        } else if (plan) {
+            RangePlanner planner = new RangePlanner(client, recordIdId, filter, pageSize, concurrency);
+            List<RangePlanner.Range> ranges = planner.plan(startRecordId, endRecordId);
+            out.println("Record ids " + startRecordId + " to " + endRecordId + ", in ranges of up to " + pageSize + " records, planned with " + planner.getCountRequests() + " API_DoQueryCount requests:");
+            RangePlanner.explain(ranges, out);
+            
+        } else {
+            long windows = (endRecordId - (long)startRecordId + pageSize) / pageSize;
+            out.println("Record ids " + startRecordId + " to " + endRecordId + ", in windows of " + pageSize + " record ids that grow up to " + maxPageSize + " (set QUICKBASE_PLAN to plan the ranges from the record density)");
+            out.println("Estimated API_DoQuery requests: at most " + windows);
+        }
+    }
+    
+    /**
+     * Write the records with ids from startRecordId to endRecordId (inclusive) as a single Quickbase XML document.
+     *
+     * @param startRecordId the lowest record id, or null if the table is empty
+     * @param endRecordId the highest record id, or null if the table is empty
+     */
+    void writeXml(Integer startRecordId, Integer endRecordId, Writer out) throws IOException {
+        if (workDir != null && startRecordId != null && endRecordId != null) {
+            SpooledDump spooled = spool(startRecordId, endRecordId);
+            spooled.combine(out);
+            out.flush();
+            spooled.clear();
+            return;
+        }
+        
+        try (CombinedResponseWriter combined = new CombinedResponseWriter(out)) {
+            if (startRecordId == null || endRecordId == null) {
+                System.err.println("The table is empty.");
+                
+                for (QuickbaseResponse r : QuickbaseTableDump.getRange(client, recordIdId, null, null, filter, clist, new RangeController(pageSize, maxPageSize))) {
+                    combined.add(r);
+                }
+                
+            } else {
+                fetch(startRecordId, endRecordId, new RangeController(pageSize, maxPageSize), combined);
+            }
+            
+            combined.finish();
+            
+            if (QuickbaseTableDump.DEBUG) {
+                System.err.println("Found a total of " + combined.getRecordCount() + " records");
+            }
+        }
+    }
+    
+    /**
+     * Fetch the pages with record ids from startRecordId to endRecordId (inclusive). The ranges are
+     * planned from the record density if planning is enabled, and are otherwise windows sized by
+     * the range controller.
+     */
+    private PageFetcher pages(int startRecordId, int endRecordId, RangeController rangeController) throws IOException {
+        long ids = endRecordId - (long)startRecordId + 1;
+        Iterator<int[]> ranges;
+        if (plan) {
+            List<RangePlanner.Range> planned = new RangePlanner(client, recordIdId, filter, pageSize, concurrency).plan(startRecordId, endRecordId);
+            ranges = planned.stream().map(range -> new int[]{ range.from, range.to }).iterator();
+        } else {
+            ranges = QuickbaseTableDump.windows(startRecordId, endRecordId, rangeController);
+        }
+        return new PageFetcher(client, recordIdId, ranges, ids, filter, clist, rangeController, concurrency);
+    }
+    
+    private void fetch(int startRecordId, int endRecordId, RangeController rangeController, RangeConsumer consumer) throws IOException {
+        try (PageFetcher pages = pages(startRecordId, endRecordId, rangeController)) {
+            pages.forEach(consumer);
+        }
+    }
+    
+    /**
+     * Spool each range to disk, and only fetch the ranges that are not done already.
+     */
+    private SpooledDump spool(int startRecordId, int endRecordId) throws IOException {
+        // a work directory with other fields or another filter can't be resumed
+        String selection = "a".equals(clist) && filter == null ? null : "clist=" + clist + (filter == null ? "" : " query=" + filter);
+        // shards on the same machine can share the work directory
+        String name = shard == null ? client.getTable() : client.getTable() + "-shard-" + shard[0] + "-of-" + shard[1];
+        SpooledDump spooled = new SpooledDump(new File(workDir, name), client.getTable(), recordIdId, selection);
+        RangeController rangeController = new RangeController(pageSize, maxPageSize);
+        for (int[] range : spooled.getMissingRanges(startRecordId, endRecordId)) {
+            fetch(range[0], range[1] - 1, rangeController, spooled);
+        }
+        return spooled;
+    }
+    
+    /**
+     * The records of a dump, fetched a few pages ahead of the reader. A failure to fetch a page is
+     * thrown from hasNext or next as an UncheckedIOException, with the IOException (usually a
+     * QuickbaseException) as the cause.
+     */
+    public static class Records implements Iterator<QuickbaseRecord>, Closeable {
+        private final PageFetcher pages;
+        private Iterator<QuickbaseResponse> responses = Collections.emptyIterator();
+        private Iterator<QuickbaseRecord> records = Collections.emptyIterator();
+        private boolean closed = false;
+        
+        private Records(PageFetcher pages) {
+            this.pages = pages;
+        }
+        
+        @Override
+        public boolean hasNext() {
+            while (!records.hasNext()) {
+                if (responses.hasNext()) {
+                    records = responses.next().records();
+                } else if (!closed && pages != null && pages.hasNext()) {
+                    try {
+                        responses = pages.next().responses.iterator();
+                    } catch (IOException e) {
+                        close();
+                        throw new UncheckedIOException(e);
+                    }
+                } else {
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+        @Override
+        public QuickbaseRecord next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return records.next();
+        }
+        
+        /**
+         * Stop fetching. The pages that are being fetched are cancelled.
+         */
+        @Override
+        public void close() {
+            closed = true;
+            if (pages != null) {
+                pages.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package no.nlb.quickbase.dump;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CacheMetadata {
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	private QuickbaseStandIn standIn;
+	private File cacheDir;
+	
+	@Before
+	public void startServer() throws IOException {
+		standIn = new QuickbaseStandIn();
+		standIn.addTable("bqtable01", new SyntheticTable(1000, 2));
+		cacheDir = folder.newFolder();
+	}
+	
+	@After
+	public void stopServer() {
+		standIn.close();
+	}
+	
+	@Test
+	public void testReuse() throws IOException {
+		String first = dump(cache());
+		assertEquals(1, standIn.getRequestCount("API_Authenticate"));
+		assertEquals(1, standIn.getRequestCount("API_GetSchema"));
+		int queries = standIn.getRequestCount("API_DoQuery");
+		
+		// the highest record id is not cached by default
+		String second = dump(cache());
+		assertEquals(first, second);
+		assertEquals("The cached ticket should be used", 1, standIn.getRequestCount("API_Authenticate"));
+		assertEquals("The cached schema should be used", 1, standIn.getRequestCount("API_GetSchema"));
+		assertEquals("Only the highest record id should be requested again", 2 * queries - 1, standIn.getRequestCount("API_DoQuery"));
+		
+		MetadataCache highest = new MetadataCache(cacheDir, standIn.getDomain(), "username", 60000, 60000, 60000);
+		dump(highest);
+		dump(highest);
+		assertEquals("Both record id bounds should be cached", 4 * queries - 4, standIn.getRequestCount("API_DoQuery"));
+	}
+	
+	@Test
+	public void testExpiry() throws InterruptedException {
+		cache().putSchema("bqtable01", "<qdbapi/>");
+		cache().putRecordIdBound("bqtable01", false, 1);
+		assertEquals("<qdbapi/>", cache().getSchema("bqtable01"));
+		assertEquals("1", cache().getRecordIdBound("bqtable01", false));
+		
+		Thread.sleep(20);
+		MetadataCache expired = new MetadataCache(cacheDir, standIn.getDomain(), "username", 10, 10, 10);
+		assertNull(expired.getSchema("bqtable01"));
+		assertNull(expired.getRecordIdBound("bqtable01", false));
+		assertNull("Other users should not share the cache", new MetadataCache(cacheDir, standIn.getDomain(), "another", 60000, 60000, 0).getSchema("bqtable01"));
+	}
+	
+	@Test
+	public void testTicket() throws IOException {
+		String expected = dump(cache());
+		
+		// the cached ticket is no longer valid; the first request fails, and is sent again with a new ticket
+		standIn.setTicket("renewed-ticket");
+		assertEquals(expected, dump(cache()));
+		assertEquals(2, standIn.getRequestCount("API_Authenticate"));
+		assertEquals(1, standIn.getErrorCount("4"));
+		assertEquals("renewed-ticket", cache().getTicket());
+	}
+	
+	@Test
+	public void testRemovedTable() throws IOException {
+		MetadataCache cache = cache();
+		QuickbaseTableDump.QuickbaseClient client = new QuickbaseTableDump.QuickbaseClient("apptoken", standIn.getDomain(), "bqtable01", "username", "password", cache);
+		QuickbaseTableDump.getSchema(client);
+		QuickbaseTableDump.getCachedRecordIdBound(client, "3", false);
+		assertNotNull(cache.getSchema("bqtable01"));
+		
+		// the cached schema has not been used in this run, so the run can go on
+		standIn.removeTable("bqtable01");
+		QuickbaseTableDump.QuickbaseClient other = new QuickbaseTableDump.QuickbaseClient("apptoken", standIn.getDomain(), "bqtable01", "username", "password", cache());
+		assertEquals("32", other.newRequest("API_DoQuery").send().get("errcode"));
+		assertNull(cache.getSchema("bqtable01"));
+		assertNull(cache.getRecordIdBound("bqtable01", false));
+	}
+	
+	private MetadataCache cache() {
+		return new MetadataCache(cacheDir, standIn.getDomain(), "username", 60000, 60000, 0);
+	}
+	
+	private String dump(MetadataCache cache) throws IOException {
+		QuickbaseTableDump.QuickbaseClient client = new QuickbaseTableDump.QuickbaseClient("apptoken", standIn.getDomain(), "bqtable01", "username", "password", cache);
+		StringWriter out = new StringWriter();
+		QuickbaseTableDump.dump(client, out);
+		return out.toString();
+	}
+	
+}
@@ -0,0 +1,71 @@
+package no.nlb.quickbase.dump;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+public class CollectMetrics {
+	
+	@Test
+	public void testSummary() throws IOException {
+		Metrics metrics = new Metrics(0);
+		metrics.request("API_DoQuery", 3000000L); // 3 ms
+		metrics.request("API_DoQuery", 700000000L); // 700 ms
+		metrics.request("API_GetSchema", 20000000L); // 20 ms
+		metrics.errcode("75");
+		metrics.tooLarge();
+		metrics.records(5000);
+		metrics.bytesReceived(123456);
+		metrics.time(Metrics.WRITE, 1500000000L);
+		metrics.idsPlanned(10000);
+		metrics.idsDone(5000);
+		metrics.completed();
+		
+		StringWriter json = new StringWriter();
+		metrics.writeJson(json);
+		assertTrue(json.toString().contains("\"completed\": true,"));
+		assertTrue(json.toString().contains("\"records\": 5000,"));
+		assertTrue(json.toString().contains("\"bytesReceived\": 123456,"));
+		assertTrue(json.toString().contains("\"errcodes\": { \"75\": 1 },"));
+		assertTrue(json.toString().contains("\"phaseSeconds\": { \"wait\": 0, \"throttled\": 0, \"parse\": 0, \"write\": 1.5 },"));
+		assertTrue(json.toString().contains("\"API_DoQuery\": { \"count\": 2, \"sumSeconds\": 0.703, \"maxSeconds\": 0.7, \"buckets\": { \"0.005\": 1, \"0.01\": 1,"));
+		assertTrue(json.toString().contains("\"1\": 2,"));
+		
+		StringWriter prom = new StringWriter();
+		metrics.writePrometheus(prom);
+		assertTrue(prom.toString().contains("quickbase_dump_request_duration_seconds_bucket{action=\"API_DoQuery\",le=\"0.5\"} 1\n"));
+		assertTrue(prom.toString().contains("quickbase_dump_request_duration_seconds_bucket{action=\"API_DoQuery\",le=\"+Inf\"} 2\n"));
+		assertTrue(prom.toString().contains("quickbase_dump_request_duration_seconds_count{action=\"API_GetSchema\"} 1\n"));
+		assertTrue(prom.toString().contains("quickbase_dump_errcode_total{errcode=\"75\"} 1\n"));
+		assertTrue(prom.toString().contains("quickbase_dump_too_large_total 1\n"));
+		assertTrue(prom.toString().contains("quickbase_dump_completed 1\n"));
+		
+		assertTrue(metrics.progressLine().startsWith("Progress: 50.0% of record ids, 5000 records"));
+	}
+	
+	@Test
+	public void testDump() throws IOException {
+		try (QuickbaseStandIn standIn = new QuickbaseStandIn()) {
+			standIn.addTable("bqtable01", new SyntheticTable(1000, 3)).setMaxPayload(100000);
+			QuickbaseTableDump.QuickbaseClient client = new QuickbaseTableDump.QuickbaseClient("apptoken", standIn.getDomain(), "bqtable01", "username", "password");
+			
+			QuickbaseTableDump.dump(client, new StringWriter());
+			
+			Metrics metrics = client.getMetrics();
+			assertEquals("Every API_DoQuery request should be measured", standIn.getRequestCount() - 2, metrics.getRequests("API_DoQuery").getCount());
+			assertEquals(1000, metrics.getRecords());
+			
+			// another client counts its own requests
+			long requestsBefore = standIn.getRequestCount();
+			QuickbaseTableDump.QuickbaseClient other = new QuickbaseTableDump.QuickbaseClient("apptoken", standIn.getDomain(), "bqtable01", "username", "password");
+			TableDump.builder(other).pageSize(100).build().write(new StringWriter());
+			assertEquals(standIn.getRequestCount() - requestsBefore - 2, other.getMetrics().getRequests("API_DoQuery").getCount());
+			assertEquals(1000, other.getMetrics().getRecords());
+			assertEquals(1000, metrics.getRecords());
+		}
+	}
+	
+}
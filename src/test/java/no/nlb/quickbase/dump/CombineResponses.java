@@ -20,5 +20,34 @@ public class CombineResponses {
 					 "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<qdbapi>\n<common-outer/>\n<table>\n<common-inner/>\n<lusers>\n<luser id=\"a\">a@a.a</luser>\n<luser id=\"b\">b@b.b</luser>\n<luser id=\"c\">c@c.c</luser>\n</lusers>\n      <records>\n<record rid=\"1\"/>\n<record rid=\"2\"/>\n      </records>\n    </table>\n</qdbapi>\n",
 					 combinedResponse);
 	}
+	
+	@Test
+	public void testWithoutUsers() {
+		List<QuickbaseTableDump.QuickbaseResponse> responses = new ArrayList<QuickbaseTableDump.QuickbaseResponse>();
+		responses.add(new QuickbaseTableDump.QuickbaseResponse("<qdbapi>\n<table>\n<records>\n<record rid=\"1\"/>\n</records>\n</table>\n</qdbapi>\n"));
+		responses.add(new QuickbaseTableDump.QuickbaseResponse("<qdbapi>\n<table>\n<records>\n</records>\n</table>\n</qdbapi>\n"));
+		responses.add(new QuickbaseTableDump.QuickbaseResponse("<qdbapi>\n<table>\n<records>\n<record rid=\"3\"/>\n</records>\n</table>\n</qdbapi>\n"));
+		String combinedResponse = QuickbaseTableDump.combineResponses(responses);
+		
+		assertEquals("Quickbase records should merge properly without users",
+					 "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<qdbapi>\n<table>\n<records>\n<record rid=\"1\"/>\n<record rid=\"3\"/>\n      </records>\n    </table>\n</qdbapi>\n",
+					 combinedResponse);
+	}
+	
+	@Test
+	public void testDuplicates() {
+		SyntheticTable table = new SyntheticTable(30, 2);
+		List<QuickbaseTableDump.QuickbaseResponse> responses = new ArrayList<QuickbaseTableDump.QuickbaseResponse>();
+		responses.add(new QuickbaseTableDump.QuickbaseResponse(table.doQueryResponse(1, 11)));
+		responses.add(new QuickbaseTableDump.QuickbaseResponse(table.doQueryResponse(10, 21)));
+		responses.add(new QuickbaseTableDump.QuickbaseResponse(table.doQueryResponse(20, 21)));
+		responses.add(new QuickbaseTableDump.QuickbaseResponse(table.doQueryResponse(15, 31)));
+		
+		List<QuickbaseTableDump.QuickbaseResponse> expected = new ArrayList<QuickbaseTableDump.QuickbaseResponse>();
+		expected.add(new QuickbaseTableDump.QuickbaseResponse(table.doQueryResponse(1, 31)));
+		assertEquals("Records that overlapping ranges have in common should only be included once",
+					 QuickbaseTableDump.combineResponses(expected),
+					 QuickbaseTableDump.combineResponses(responses));
+	}
 
 }
@@ -0,0 +1,43 @@
+package no.nlb.quickbase.dump;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Combining ten 5000 record pages into a single document.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CombineResponsesBenchmark {
+    
+    private List<QuickbaseTableDump.QuickbaseResponse> responses = new ArrayList<QuickbaseTableDump.QuickbaseResponse>();
+    
+    @Setup
+    public void setup() {
+        SyntheticTable table = new SyntheticTable(50000, 30);
+        for (int from = 1; from <= table.getRecords(); from += 5000) {
+            responses.add(new QuickbaseTableDump.QuickbaseResponse(table.doQueryResponse(from, from + 5000)));
+        }
+    }
+    
+    @Benchmark
+    public String combineResponses() {
+        return QuickbaseTableDump.combineResponses(responses);
+    }
+}
@@ -0,0 +1,106 @@
+package no.nlb.quickbase.dump;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+
+public class CompressOutput {
+	
+	@Test
+	public void testBlocks() throws IOException {
+		byte[] data = data(100000);
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+			try (ParallelGzipOutputStream out = new ParallelGzipOutputStream(compressed, executor, 1000, 4, Deflater.DEFAULT_COMPRESSION)) {
+				// single bytes, and writes that are smaller and larger than the blocks
+				out.write(data, 0, 10);
+				out.write(data[10]);
+				out.write(data, 11, 500);
+				out.write(data, 511, 5000);
+				out.write(data, 5511, data.length - 5511);
+			}
+			assertArrayEquals(data, gunzip(compressed.toByteArray()));
+			assertTrue("The blocks should be compressed", compressed.size() < data.length / 2);
+			
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	@Test
+	public void testFlush() throws IOException {
+		byte[] data = data(5000);
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		try (ParallelGzipOutputStream out = new ParallelGzipOutputStream(compressed, 2)) {
+			out.write(data, 0, 3000);
+			out.flush();
+			assertArrayEquals("Everything written before a flush should be readable", copyOf(data, 3000), gunzip(compressed.toByteArray()));
+			out.write(data, 3000, 2000);
+		}
+		assertArrayEquals(data, gunzip(compressed.toByteArray()));
+	}
+	
+	@Test
+	public void testEmpty() throws IOException {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		new ParallelGzipOutputStream(compressed, 2).close();
+		assertEquals(0, gunzip(compressed.toByteArray()).length);
+	}
+	
+	@Test
+	public void testFinish() throws IOException {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		ParallelGzipOutputStream out = new ParallelGzipOutputStream(compressed, 2);
+		out.write(new byte[]{ 1, 2, 3 });
+		out.finish();
+		out.finish();
+		assertArrayEquals(new byte[]{ 1, 2, 3 }, gunzip(compressed.toByteArray()));
+		try {
+			out.write(4);
+			fail("Writing after finish should fail");
+		} catch (IOException e) {
+		}
+	}
+	
+	/**
+	 * @return Text that compresses about as well as a dump.
+	 */
+	private static byte[] data(int length) {
+		Random random = new Random(1);
+		StringBuilder text = new StringBuilder();
+		while (text.length() < length) {
+			text.append("<record rid=\"").append(random.nextInt(100000)).append("\"><f id=\"6\">Value ").append(random.nextInt(1000)).append("</f></record>\n");
+		}
+		return copyOf(text.toString().getBytes(), length);
+	}
+	
+	private static byte[] copyOf(byte[] data, int length) {
+		byte[] copy = new byte[length];
+		System.arraycopy(data, 0, copy, 0, length);
+		return copy;
+	}
+	
+	private static byte[] gunzip(byte[] compressed) throws IOException {
+		try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+			return out.toByteArray();
+		}
+	}
+	
+}
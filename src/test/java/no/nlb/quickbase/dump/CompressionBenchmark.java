@@ -0,0 +1,80 @@
+package no.nlb.quickbase.dump;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares compressing a dump with GZIPOutputStream to compressing it with ParallelGzipOutputStream
+ * on one and on four threads. The dump is a 50000 record table, combined into one document up
+ * front; the compressed output is discarded. The result is the compressed size, so that the
+ * compression ratios can be compared too.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark {
+    
+    @Param({"gzip", "parallel-1", "parallel-4"})
+    public String compression;
+    
+    private byte[] dump;
+    
+    @Setup
+    public void setup() throws IOException {
+        SyntheticTable table = new SyntheticTable(50000, 10).setChoiceFields(5);
+        String response = table.doQueryResponse(1, 50001);
+        dump = QuickbaseTableDump.combineResponses(Collections.singletonList(new QuickbaseTableDump.QuickbaseResponse(response))).getBytes("UTF-8");
+    }
+    
+    @Benchmark
+    public long compress() throws IOException {
+        CountingOutputStream counter = new CountingOutputStream();
+        OutputStream out;
+        if ("gzip".equals(compression)) {
+            out = new GZIPOutputStream(counter, 64 * 1024);
+        } else {
+            out = new ParallelGzipOutputStream(counter, Integer.parseInt(compression.substring("parallel-".length())));
+        }
+        try {
+            // written in pieces, like a BufferedWriter would
+            for (int offset = 0; offset < dump.length; offset += 8192) {
+                out.write(dump, offset, Math.min(8192, dump.length - offset));
+            }
+        } finally {
+            out.close();
+        }
+        return counter.count;
+    }
+    
+    private static class CountingOutputStream extends OutputStream {
+        long count = 0;
+        
+        @Override
+        public void write(int b) {
+            count++;
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package no.nlb.quickbase.dump;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Removing control characters from a 5000 record page, both from a string and while reading the
+ * response (as QuickbaseRequest does). The page either has no control characters, or one in every record.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ControlCharactersBenchmark {
+    
+    @Param({"false", "true"})
+    public boolean withControlCharacters;
+    
+    private String responseString;
+    
+    @Setup
+    public void setup() {
+        responseString = new SyntheticTable(5000, 30).doQueryResponse(1, 5001);
+        if (withControlCharacters) {
+            responseString = responseString.replace("</record>", "\u0002</record>");
+        }
+    }
+    
+    @Benchmark
+    public String removeControlCharacters() {
+        return QuickbaseTableDump.QuickbaseRequest.removeControlCharacters(responseString);
+    }
+    
+    @Benchmark
+    public String filterReader() throws IOException {
+        StringBuilder filtered = new StringBuilder(responseString.length());
+        try (Reader reader = new ControlCharacterFilterReader(new StringReader(responseString))) {
+            char[] buffer = new char[8192];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                filtered.append(buffer, 0, read);
+            }
+        }
+        return filtered.toString();
+    }
+}
@@ -0,0 +1,33 @@
+package no.nlb.quickbase.dump;
+
+import java.io.Writer;
+
+/**
+ * Discards everything written to it, and counts the characters. Used by the benchmarks.
+ */
+class CountingWriter extends Writer {
+    long count = 0;
+    
+    @Override
+    public void write(char[] buffer, int offset, int length) {
+        count += length;
+    }
+    
+    @Override
+    public void write(String string, int offset, int length) {
+        count += length;
+    }
+    
+    @Override
+    public void write(int c) {
+        count++;
+    }
+    
+    @Override
+    public void flush() {
+    }
+    
+    @Override
+    public void close() {
+    }
+}
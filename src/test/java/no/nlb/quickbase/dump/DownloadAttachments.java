@@ -0,0 +1,110 @@
+package no.nlb.quickbase.dump;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DownloadAttachments {
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	@Test
+	public void test() throws IOException {
+		try (QuickbaseStandIn standIn = new QuickbaseStandIn()) {
+			SyntheticTable table = new SyntheticTable(100, 1).setFileFields(2);
+			standIn.addTable("bqtable01", table).setLatency(5);
+			QuickbaseTableDump.QuickbaseClient client = new QuickbaseTableDump.QuickbaseClient("apptoken", standIn.getDomain(), "bqtable01", "username", "password", null, "blocking", 4);
+			File dir = folder.newFolder();
+			
+			// 80 records with two attachments each, and the same files in every twentieth record
+			AttachmentDownloader downloader = download(client, dir);
+			assertEquals(160, downloader.getDownloadedCount());
+			assertEquals(160, standIn.getRequestCount("download"));
+			assertEquals(32, downloader.getStoredCount());
+			assertTrue("The files should be downloaded in parallel", standIn.getMaxConcurrentRequests() > 1);
+			List<String> index = Files.readAllLines(new File(dir, AttachmentDownloader.INDEX).toPath());
+			assertEquals("table=bqtable01", index.get(0));
+			assertEquals(161, index.size());
+			String[] line = index.get(1).split(" ");
+			assertEquals("1 7 1500000001000", String.join(" ", line[0], line[1], line[2]));
+			assertEquals("attachment-1-7.txt", line[5]);
+			assertArrayEquals(table.fileContent(1, "7"), Files.readAllBytes(downloader.object(line[3]).toPath()));
+			assertArrayEquals("Identical files are stored once", table.fileContent(21, "7"), Files.readAllBytes(downloader.object(line[3]).toPath()));
+			assertEquals(32, objects(dir).size());
+			
+			// nothing has changed
+			downloader = download(client, dir);
+			assertEquals(0, downloader.getDownloadedCount());
+			assertEquals(160, downloader.getUnchangedCount());
+			assertEquals(index, Files.readAllLines(new File(dir, AttachmentDownloader.INDEX).toPath()));
+			
+			table.edit(7).deleteRecord(8).addRecords(1);
+			downloader = download(client, dir);
+			assertEquals("The attachments of the edited and the added record", 4, downloader.getDownloadedCount());
+			assertEquals("The files of the edited record have changed", 2, downloader.getStoredCount());
+			assertEquals(161 - 2 + 2, Files.readAllLines(new File(dir, AttachmentDownloader.INDEX).toPath()).size());
+			assertTrue(Files.readAllLines(new File(dir, AttachmentDownloader.INDEX).toPath()).stream().noneMatch(l -> l.startsWith("8 ")));
+		}
+	}
+	
+	@Test
+	public void testAsync() throws IOException {
+		try (QuickbaseStandIn standIn = new QuickbaseStandIn()) {
+			SyntheticTable table = new SyntheticTable(30, 1).setFileFields(1);
+			standIn.addTable("bqtable01", table);
+			QuickbaseTableDump.QuickbaseClient client = new QuickbaseTableDump.QuickbaseClient("apptoken", standIn.getDomain(), "bqtable01", "username", "password", null, "async", 4);
+			try {
+				File dir = folder.newFolder();
+				TableDump dump = TableDump.builder(client).build();
+				
+				// failed downloads are retried
+				standIn.setDownloadFailures(2);
+				AttachmentDownloader downloader = new AttachmentDownloader(dump, dir, 4);
+				downloader.run();
+				assertEquals(24, downloader.getDownloadedCount());
+				assertEquals(24 + 2, standIn.getRequestCount("download"));
+				assertEquals(16, objects(dir).size());
+				for (String line : Files.readAllLines(new File(dir, AttachmentDownloader.INDEX).toPath()).subList(1, 25)) {
+					String[] attachment = line.split(" ");
+					assertArrayEquals(table.fileContent(Integer.parseInt(attachment[0]), attachment[1]), Files.readAllBytes(downloader.object(attachment[3]).toPath()));
+				}
+				
+			} finally {
+				client.close();
+			}
+		}
+	}
+	
+	@Test
+	public void testWithoutFileFields() throws IOException {
+		try (QuickbaseStandIn standIn = new QuickbaseStandIn()) {
+			standIn.addTable("bqtable01", new SyntheticTable(10, 2));
+			QuickbaseTableDump.QuickbaseClient client = new QuickbaseTableDump.QuickbaseClient("apptoken", standIn.getDomain(), "bqtable01", "username", "password");
+			File dir = new File(folder.getRoot(), "attachments");
+			TableDump.builder(client).build().downloadAttachments(dir);
+			assertFalse(dir.exists());
+			assertEquals(0, standIn.getRequestCount("download"));
+		}
+	}
+	
+	private static AttachmentDownloader download(QuickbaseTableDump.QuickbaseClient client, File dir) throws IOException {
+		AttachmentDownloader downloader = new AttachmentDownloader(TableDump.builder(client).pageSize(30).concurrency(4).build(), dir, 4);
+		downloader.run();
+		return downloader;
+	}
+	
+	private static List<File> objects(File dir) throws IOException {
+		return Files.walk(dir.toPath()).map(path -> path.toFile()).filter(file -> file.isFile() && !file.getName().equals(AttachmentDownloader.INDEX)).collect(Collectors.toList());
+	}
+	
+}
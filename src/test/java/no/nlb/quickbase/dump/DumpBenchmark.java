@@ -0,0 +1,56 @@
+package no.nlb.quickbase.dump;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A full dump of a 20000 record table from the local stand-in server, including the schema and
+ * record id bound requests. The latency is added to every request. The environment variables
+ * (QUICKBASE_CONCURRENCY, QUICKBASE_PAGE_SIZE and so on) apply as usual, so set them to compare
+ * configurations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class DumpBenchmark {
+    
+    @Param({"0", "50"})
+    public int latency;
+    
+    private QuickbaseStandIn standIn;
+    private QuickbaseTableDump.QuickbaseClient client;
+    
+    @Setup
+    public void setup() throws IOException {
+        standIn = new QuickbaseStandIn().addTable("bqtable01", new SyntheticTable(20000, 30)).setLatency(latency);
+        client = new QuickbaseTableDump.QuickbaseClient("apptoken", standIn.getDomain(), "bqtable01", "username", "password");
+    }
+    
+    @TearDown
+    public void tearDown() {
+        standIn.close();
+    }
+    
+    @Benchmark
+    public long dump() throws IOException {
+        CountingWriter out = new CountingWriter();
+        QuickbaseTableDump.dump(client, out);
+        return out.count;
+    }
+}
@@ -0,0 +1,136 @@
+package no.nlb.quickbase.dump;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DumpTable {
+	
+	private QuickbaseStandIn standIn;
+	
+	@Before
+	public void startServer() throws IOException {
+		standIn = new QuickbaseStandIn();
+	}
+	
+	@After
+	public void stopServer() {
+		standIn.close();
+	}
+	
+	@Test
+	public void testDump() throws IOException {
+		SyntheticTable table = new SyntheticTable(12000, 3);
+		standIn.addTable("bqtable01", table);
+		
+		StringWriter out = new StringWriter();
+		QuickbaseTableDump.dump(client("bqtable01"), out);
+		
+		assertEquals("The dump should be the same as a single response with all records",
+				QuickbaseTableDump.combineResponses(Collections.singletonList(new QuickbaseTableDump.QuickbaseResponse(table.doQueryResponse(1, 12001)))),
+				out.toString());
+		assertEquals("No responses should be too large", 0, standIn.getErrorCount("75"));
+	}
+	
+	@Test
+	public void testTooLarge() throws IOException {
+		SyntheticTable table = new SyntheticTable(3000, 3);
+		standIn.addTable("bqtable01", table).setMaxPayload(50000);
+		
+		StringWriter out = new StringWriter();
+		QuickbaseTableDump.dump(client("bqtable01"), out);
+		
+		assertTrue("Some responses should be too large", standIn.getErrorCount("75") > 0);
+		assertRecords(3000, out.toString());
+	}
+	
+	@Test
+	public void testEmpty() throws IOException {
+		standIn.addTable("bqtable01", new SyntheticTable(0, 3));
+		
+		StringWriter out = new StringWriter();
+		QuickbaseTableDump.dump(client("bqtable01"), out);
+		
+		assertRecords(0, out.toString());
+	}
+	
+	@Test
+	public void testWindows() {
+		Iterator<int[]> windows = QuickbaseTableDump.windows(Integer.MAX_VALUE - 15, Integer.MAX_VALUE, new RangeController(10, 10));
+		assertArrayEquals(new int[]{ Integer.MAX_VALUE - 15, Integer.MAX_VALUE - 5 }, windows.next());
+		assertArrayEquals(new int[]{ Integer.MAX_VALUE - 5, Integer.MAX_VALUE }, windows.next());
+		assertFalse("The windows should end at the highest record id", windows.hasNext());
+		
+		windows = QuickbaseTableDump.windows(1, 15, new RangeController(10, 10));
+		assertArrayEquals(new int[]{ 1, 11 }, windows.next());
+		assertArrayEquals(new int[]{ 11, 16 }, windows.next());
+		assertFalse(windows.hasNext());
+	}
+	
+	@Test
+	public void testApplication() throws IOException {
+		standIn.addTable("bqtable01", new SyntheticTable(100, 3));
+		standIn.addTable("bqtable02", new SyntheticTable(200, 2));
+		
+		QuickbaseTableDump.QuickbaseClient client = client(QuickbaseStandIn.APPLICATION);
+		Map<String,String> tables = client.newRequest("API_GetSchema").send().getTablesInApplicationSchema();
+		assertEquals(2, tables.size());
+		
+		File outputDir = Files.createTempDirectory("quickbase-application-").toFile();
+		try {
+			ApplicationDump.run(client, tables, "table_bqtable02", outputDir, 2);
+			assertFalse(new File(outputDir, "table_bqtable01.xml").exists());
+			assertRecords(200, read(new File(outputDir, "table_bqtable02.xml")));
+			
+			ApplicationDump.run(client, tables, null, outputDir, 2);
+			assertRecords(100, read(new File(outputDir, "table_bqtable01.xml")));
+			
+		} finally {
+			for (File file : outputDir.listFiles()) {
+				file.delete();
+			}
+			outputDir.delete();
+		}
+	}
+	
+	private QuickbaseTableDump.QuickbaseClient client(String table) throws IOException {
+		return new QuickbaseTableDump.QuickbaseClient("apptoken", standIn.getDomain(), table, "username", "password");
+	}
+	
+	private static void assertRecords(int records, String dump) throws IOException {
+		try (DumpReader reader = new DumpReader(new StringReader(dump))) {
+			int expectedRid = 1;
+			DumpReader.Record record;
+			while ((record = reader.next()) != null) {
+				assertEquals(expectedRid++, record.rid);
+			}
+			assertEquals(records + 1, expectedRid);
+		}
+	}
+	
+	private static String read(File file) throws IOException {
+		try (InputStreamReader reader = new InputStreamReader(new FileInputStream(file), "UTF-8")) {
+			StringWriter out = new StringWriter();
+			char[] buffer = new char[8192];
+			int read;
+			while ((read = reader.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+			return out.toString();
+		}
+	}
+	
+}
@@ -0,0 +1,106 @@
+package no.nlb.quickbase.dump;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class IterateRecords {
+	
+	private QuickbaseStandIn standIn;
+	private SyntheticTable table;
+	private QuickbaseTableDump.QuickbaseClient client;
+	
+	@Before
+	public void startServer() throws IOException {
+		table = new SyntheticTable(10000, 3);
+		standIn = new QuickbaseStandIn().addTable("bqtable01", table);
+		client = new QuickbaseTableDump.QuickbaseClient("apptoken", standIn.getDomain(), "bqtable01", "username", "password");
+	}
+	
+	@After
+	public void stopServer() {
+		standIn.close();
+	}
+	
+	@Test
+	public void testRecords() throws IOException {
+		TableDump dump = TableDump.builder(client).fields("3,Field 7").pageSize(1000).maxPageSize(1000).concurrency(3).build();
+		assertEquals(Integer.valueOf(1), dump.getStartRecordId());
+		assertEquals(Integer.valueOf(10000), dump.getEndRecordId());
+		assertEquals("Field 7", dump.getFields().get("7").get("label"));
+		
+		int rid = 0;
+		try (TableDump.Records records = dump.records()) {
+			while (records.hasNext()) {
+				QuickbaseRecord record = records.next();
+				rid++;
+				assertEquals("" + rid, record.getRid());
+				assertEquals(table.value(rid, "7"), record.getValues().get("7"));
+				assertNull("Only the selected fields should be included", record.getValues().get("6"));
+			}
+		}
+		assertEquals(10000, rid);
+		assertEquals("Two requests for the record id bounds, and one per page", 12, standIn.getRequestCount("API_DoQuery"));
+	}
+	
+	@Test
+	public void testBackpressure() throws IOException, InterruptedException {
+		TableDump dump = TableDump.builder(client).pageSize(100).maxPageSize(100).concurrency(2).build();
+		int bounds = standIn.getRequestCount("API_DoQuery");
+		try (TableDump.Records records = dump.records()) {
+			assertTrue(records.hasNext());
+			records.next();
+			
+			// the reader has taken one page, so no more than twice the concurrency can be fetched ahead of it
+			Thread.sleep(500);
+			assertEquals(1 + 2 * 2, standIn.getRequestCount("API_DoQuery") - bounds);
+			for (int i = 0; i < 99; i++) {
+				records.next();
+			}
+			Thread.sleep(200);
+			assertEquals(1 + 2 * 2, standIn.getRequestCount("API_DoQuery") - bounds);
+			records.next();
+			Thread.sleep(200);
+			assertEquals("Taking the next page should make room for one more", 2 + 2 * 2, standIn.getRequestCount("API_DoQuery") - bounds);
+		}
+	}
+	
+	@Test
+	public void testErrors() throws IOException {
+		try {
+			TableDump.builder(client).fields("Field 99").build();
+			fail("Unknown fields should not be accepted");
+		} catch (IllegalArgumentException e) {
+			assertEquals("Unknown field: 'Field 99'", e.getMessage());
+		}
+		
+		try {
+			TableDump.builder(client.forTable(QuickbaseStandIn.APPLICATION)).build();
+			fail("An application is not a table");
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("refers to an application"));
+		}
+		
+		TableDump dump = TableDump.builder(client).build();
+		standIn.removeTable("bqtable01");
+		try (TableDump.Records records = dump.records()) {
+			records.hasNext();
+			fail("Errors from Quickbase should be thrown");
+		} catch (UncheckedIOException e) {
+			assertEquals("32", ((QuickbaseException)e.getCause()).getErrcode());
+		}
+		
+		try {
+			TableDump.builder(client).build();
+			fail("Errors from Quickbase should be thrown");
+		} catch (QuickbaseException e) {
+			assertEquals("32", e.getErrcode());
+		}
+	}
+	
+}
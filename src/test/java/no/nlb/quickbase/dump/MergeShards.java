@@ -0,0 +1,114 @@
+package no.nlb.quickbase.dump;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MergeShards {
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	@Test
+	public void testRange() {
+		assertArrayEquals(new int[]{ 1, 3 }, ShardedDump.range(1, 10, 1, 3));
+		assertArrayEquals(new int[]{ 4, 6 }, ShardedDump.range(1, 10, 2, 3));
+		assertArrayEquals(new int[]{ 7, 10 }, ShardedDump.range(1, 10, 3, 3));
+		
+		// more shards than record ids
+		assertArrayEquals("An empty shard", new int[]{ 5, 4 }, ShardedDump.range(5, 6, 1, 4));
+		assertArrayEquals(new int[]{ 5, 5 }, ShardedDump.range(5, 6, 2, 4));
+		assertArrayEquals(new int[]{ 6, 6 }, ShardedDump.range(5, 6, 4, 4));
+		
+		assertArrayEquals(new int[]{ 2, 4 }, ShardedDump.parseShard("2/4"));
+		for (String invalid : new String[]{ "0/4", "5/4", "2", "2/0", "a/b" }) {
+			try {
+				ShardedDump.parseShard(invalid);
+				fail(invalid + " is not a valid shard");
+			} catch (IllegalArgumentException e) {
+			}
+		}
+	}
+	
+	@Test
+	public void testShards() throws IOException {
+		try (QuickbaseStandIn standIn = new QuickbaseStandIn()) {
+			SyntheticTable table = new SyntheticTable(new int[]{ 1, 2, 3, 500, 501, 502, 1999, 2000, 2100, 2101, 2102, 5000 }, 3);
+			standIn.addTable("bqtable01", table);
+			QuickbaseTableDump.QuickbaseClient client = new QuickbaseTableDump.QuickbaseClient("apptoken", standIn.getDomain(), "bqtable01", "username", "password");
+			
+			StringWriter full = new StringWriter();
+			TableDump.builder(client).pageSize(1000).build().write(full);
+			
+			List<Reader> shards = new ArrayList<Reader>();
+			for (int i = 4; i >= 1; i--) {
+				StringWriter shard = new StringWriter();
+				TableDump.builder(client).pageSize(1000).shard(i, 4).build().write(shard);
+				shards.add(new StringReader(shard.toString()));
+				assertFalse("The shards should not overlap", i == 4 && shard.toString().contains("rid=\"2102\""));
+			}
+			
+			StringWriter merged = new StringWriter();
+			assertEquals(12, ShardedDump.merge(shards, merged));
+			assertEquals(full.toString(), merged.toString());
+		}
+	}
+	
+	@Test
+	public void testMerge() throws IOException {
+		SyntheticTable table = new SyntheticTable(20, 3);
+		String first = QuickbaseTableDump.combineResponses(Collections.singletonList(new QuickbaseTableDump.QuickbaseResponse(table.doQueryResponse(Arrays.asList(1, 4, 5, 9), null))));
+		String second = QuickbaseTableDump.combineResponses(Collections.singletonList(new QuickbaseTableDump.QuickbaseResponse(table.doQueryResponse(Arrays.asList(2, 3, 9, 12), null).replace("112149.bhsv\">Ola Nordmann", "112150.abcd\">Kari Nordmann"))));
+		
+		StringWriter merged = new StringWriter();
+		long records = ShardedDump.merge(Arrays.asList((Reader)new StringReader(first), new StringReader(CombinedResponseWriter.EMPTY_RESPONSE), new StringReader(second)), merged);
+		assertEquals("Record 9 is in both shards, but should only be written once", 7, records);
+		
+		DumpReader reader = new DumpReader(new StringReader(merged.toString()));
+		assertEquals("The users should be the union of the users in the shards", 2, reader.getUsers().size());
+		assertEquals("Kari Nordmann", reader.getUsers().get("112150.abcd"));
+		List<Integer> rids = new ArrayList<Integer>();
+		DumpReader.Record record;
+		while ((record = reader.next()) != null) {
+			rids.add(record.rid);
+		}
+		assertEquals(Arrays.asList(1, 2, 3, 4, 5, 9, 12), rids);
+		
+		StringWriter empty = new StringWriter();
+		assertEquals(0, ShardedDump.merge(Collections.singletonList((Reader)new StringReader(CombinedResponseWriter.EMPTY_RESPONSE)), empty));
+		assertEquals(CombinedResponseWriter.EMPTY_RESPONSE, empty.toString());
+	}
+	
+	@Test
+	public void testFiles() throws IOException {
+		SyntheticTable table = new SyntheticTable(200, 3);
+		File first = folder.newFile("shard-1.xml");
+		File second = folder.newFile("shard-2.xml.gz");
+		Files.write(first.toPath(), QuickbaseTableDump.combineResponses(Collections.singletonList(new QuickbaseTableDump.QuickbaseResponse(table.doQueryResponse(1, 101)))).getBytes("UTF-8"));
+		try (Writer out = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(second)), "UTF-8")) {
+			out.write(QuickbaseTableDump.combineResponses(Collections.singletonList(new QuickbaseTableDump.QuickbaseResponse(table.doQueryResponse(101, 201)))));
+		}
+		
+		StringWriter merged = new StringWriter();
+		assertEquals(200, ShardedDump.mergeFiles(Arrays.asList(second, first), merged));
+		assertEquals(QuickbaseTableDump.combineResponses(Collections.singletonList(new QuickbaseTableDump.QuickbaseResponse(table.doQueryResponse(1, 201)))), merged.toString());
+	}
+	
+}
@@ -0,0 +1,72 @@
+package no.nlb.quickbase.dump;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares writing a 50000 record table (ten pages) as combined XML with writing it as CSV and
+ * JSON Lines. The output is discarded. Run with "-prof gc" to see the allocation rates; the heap
+ * needed is one page for all the formats, since none of them keep the records in memory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OutputFormatBenchmark {
+    
+    @Param({"xml", "csv", "jsonl"})
+    public String format;
+    
+    @Param({"30"})
+    public int fields;
+    
+    private List<String> pages = new ArrayList<String>();
+    private Map<String,Map<String,String>> schema;
+    
+    @Setup
+    public void setup() {
+        SyntheticTable table = new SyntheticTable(50000, fields);
+        for (int from = 1; from <= table.getRecords(); from += 5000) {
+            pages.add(table.doQueryResponse(from, from + 5000));
+        }
+        schema = new QuickbaseTableDump.QuickbaseResponse(table.schemaResponse()).getFields();
+    }
+    
+    @Benchmark
+    public long write() throws IOException {
+        CountingWriter out = new CountingWriter();
+        if ("xml".equals(format)) {
+            try (CombinedResponseWriter writer = new CombinedResponseWriter(out)) {
+                for (String page : pages) {
+                    writer.add(new QuickbaseTableDump.QuickbaseResponse(page));
+                }
+                writer.finish();
+            }
+        } else {
+            try (RecordWriter writer = RecordWriter.create(format, out, schema)) {
+                for (String page : pages) {
+                    writer.add(new QuickbaseTableDump.QuickbaseResponse(page));
+                }
+                writer.finish();
+            }
+        }
+        return out.count;
+    }
+}
@@ -0,0 +1,77 @@
+package no.nlb.quickbase.dump;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class ParseResponse {
+
+	@Test
+	public void testResults() {
+		QuickbaseTableDump.QuickbaseResponse response = new QuickbaseTableDump.QuickbaseResponse("<?xml version=\"1.0\" ?>\n<qdbapi>\n<action>API_Authenticate</action>\n<errcode>0</errcode>\n<ticket>abc&amp;def</ticket>\n<complex><a/></complex>\n<empty/>\n</qdbapi>\n");
+		
+		assertEquals("API_Authenticate", response.get("action"));
+		assertEquals("0", response.get("errcode"));
+		assertEquals("abc&def", response.get("ticket"));
+		assertNull("Elements with complex content should be ignored", response.get("complex"));
+		assertNull("Empty elements should be ignored", response.get("empty"));
+	}
+	
+	@Test
+	public void testRecords() {
+		SyntheticTable table = new SyntheticTable(10, 2);
+		QuickbaseTableDump.QuickbaseResponse response = new QuickbaseTableDump.QuickbaseResponse(table.doQueryResponse(3, 6));
+		
+		Map<String,Map<String,String>> records = response.getRecords();
+		assertEquals(3, records.size());
+		assertEquals("4", records.get("4").get("3"));
+		assertEquals("Value 4/1 & some text", records.get("4").get("7"));
+		assertEquals("1500000000004", records.get("4").get("update_id"));
+		
+		Iterator<QuickbaseRecord> iterator = response.records();
+		for (String rid : new String[]{ "3", "4", "5" }) {
+			assertTrue(iterator.hasNext());
+			assertEquals(rid, iterator.next().getRid());
+		}
+		assertFalse(iterator.hasNext());
+	}
+	
+	@Test
+	public void testFields() {
+		SyntheticTable table = new SyntheticTable(10, 2);
+		QuickbaseTableDump.QuickbaseResponse response = new QuickbaseTableDump.QuickbaseResponse(table.schemaResponse());
+		
+		Map<String,Map<String,String>> fields = response.getFields();
+		assertEquals(4, fields.size());
+		assertEquals("Record ID#", fields.get("3").get("label"));
+		assertEquals("int32", fields.get("3").get("base_type"));
+		assertEquals("", fields.get("6").get("role"));
+		assertEquals("3", response.getRecordIdId());
+		assertNull(response.getTablesInApplicationSchema());
+	}
+	
+	@Test
+	public void testControlCharacters() throws IOException {
+		String value = "a\u0000b\tc\u001Fd\u0085e\u0086f\u009Fg\uD83D\uDE00h\u0001\u0002";
+		String expected = "ab\tcd\u0085efg\uD83D\uDE00h";
+		
+		assertEquals(expected, QuickbaseTableDump.QuickbaseRequest.removeControlCharacters(value));
+		
+		StringBuilder filtered = new StringBuilder();
+		try (Reader reader = new ControlCharacterFilterReader(new StringReader(value))) {
+			char[] buffer = new char[3];
+			int read;
+			while ((read = reader.read(buffer)) != -1) {
+				filtered.append(buffer, 0, read);
+			}
+		}
+		assertEquals(expected, filtered.toString());
+	}
+
+}
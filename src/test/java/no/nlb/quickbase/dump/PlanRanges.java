@@ -0,0 +1,126 @@
+package no.nlb.quickbase.dump;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PlanRanges {
+	
+	private QuickbaseStandIn standIn;
+	
+	@Before
+	public void startServer() throws IOException {
+		standIn = new QuickbaseStandIn();
+	}
+	
+	@After
+	public void stopServer() {
+		standIn.close();
+	}
+	
+	@Test
+	public void testSparse() throws IOException {
+		SyntheticTable table = new SyntheticTable(sparseRecordIds(), 2);
+		standIn.addTable("bqtable01", table);
+		
+		List<RangePlanner.Range> ranges = new RangePlanner(client("bqtable01"), "3", null, 500, 2).plan(1, 2000499);
+		assertCovers(1, 2000500, ranges);
+		for (RangePlanner.Range range : ranges) {
+			int records = table.getRecordIds(range.from, range.to).size();
+			assertTrue("No range should hold more than the target: " + records, records <= 500);
+			if (!range.estimated) {
+				assertEquals(records, range.records);
+			}
+		}
+		// 3500 records can't be done in fewer than 7 requests; fixed windows of 500 ids would need 4001
+		assertTrue("Too many ranges: " + ranges.size(), ranges.size() <= 10);
+		assertEquals(0, standIn.getRequestCount("API_DoQuery"));
+	}
+	
+	@Test
+	public void testDense() throws IOException {
+		standIn.addTable("bqtable01", new SyntheticTable(10000, 2));
+		
+		RangePlanner planner = new RangePlanner(client("bqtable01"), "3", null, 1000, 2);
+		List<RangePlanner.Range> ranges = planner.plan(1, 10000);
+		assertCovers(1, 10001, ranges);
+		assertEquals("Dense tables should be split into windows without counting them", 1, planner.getCountRequests());
+		assertEquals(10, ranges.size());
+	}
+	
+	@Test
+	public void testDump() throws IOException {
+		SyntheticTable table = new SyntheticTable(sparseRecordIds(), 2);
+		standIn.addTable("bqtable01", table);
+		QuickbaseTableDump.QuickbaseClient client = client("bqtable01");
+		
+		List<RangePlanner.Range> ranges = new RangePlanner(client, "3", null, 500, 2).plan(1, 2000499);
+		StringWriter out = new StringWriter();
+		try (CombinedResponseWriter combined = new CombinedResponseWriter(out)) {
+			QuickbaseTableDump.getPages(client, "3", ranges.stream().map(range -> new int[]{ range.from, range.to }).iterator(), 2000499, null, "a", new RangeController(500, 500), combined);
+			combined.finish();
+		}
+		
+		assertEquals("The dump should be the same as a single response with all records",
+				QuickbaseTableDump.combineResponses(Collections.singletonList(new QuickbaseTableDump.QuickbaseResponse(table.doQueryResponse(1, 2000500)))),
+				out.toString());
+		assertEquals("There should be one request per range", ranges.size(), standIn.getRequestCount("API_DoQuery"));
+	}
+	
+	@Test
+	public void testExplain() throws IOException {
+		standIn.addTable("bqtable01", new SyntheticTable(sparseRecordIds(), 2));
+		
+		RangePlanner planner = new RangePlanner(client("bqtable01"), "3", null, 500, 2);
+		List<RangePlanner.Range> ranges = planner.plan(1, 2000499);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		RangePlanner.explain(ranges, new PrintStream(bytes, true, "UTF-8"));
+		String explained = bytes.toString("UTF-8");
+		
+		assertTrue(explained, explained.startsWith("[1," + ranges.get(0).to + ")\t"));
+		assertTrue(explained, explained.contains("Records: 3500\n") || explained.contains("Records: ~"));
+		assertTrue(explained, explained.endsWith("Estimated API_DoQuery requests: " + ranges.size() + System.lineSeparator()));
+	}
+	
+	/**
+	 * @return 1000 dense records at the start, 2000 records with every tenth record id in the middle, and 500 dense records at the end.
+	 */
+	private static int[] sparseRecordIds() {
+		int[] rids = new int[3500];
+		int i = 0;
+		for (int rid = 1; rid <= 1000; rid++) {
+			rids[i++] = rid;
+		}
+		for (int rid = 400000; rid < 420000; rid += 10) {
+			rids[i++] = rid;
+		}
+		for (int rid = 2000000; rid < 2000500; rid++) {
+			rids[i++] = rid;
+		}
+		return rids;
+	}
+	
+	private static void assertCovers(int from, int to, List<RangePlanner.Range> ranges) {
+		int next = from;
+		for (RangePlanner.Range range : ranges) {
+			assertEquals("The ranges should not have gaps", next, range.from);
+			assertTrue(range.to > range.from);
+			next = range.to;
+		}
+		assertEquals(to, next);
+	}
+	
+	private QuickbaseTableDump.QuickbaseClient client(String table) throws IOException {
+		return new QuickbaseTableDump.QuickbaseClient("apptoken", standIn.getDomain(), table, "username", "password");
+	}
+	
+}
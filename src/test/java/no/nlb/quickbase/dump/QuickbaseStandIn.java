@@ -0,0 +1,454 @@
+package no.nlb.quickbase.dump;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local stand-in for the Quickbase XML API, serving synthetic tables, for use in tests and benchmarks.
+ *
+ * It understands API_Authenticate, API_GetSchema, API_DoQuery and API_DoQueryCount, with queries made
+ * of conditions joined by AND (only GT, GTE, LT, LTE, EX and OAF are supported), the sortorder and num
+ * options, slist (a single field) and clist. The tables can be grouped in an application, which has
+ * its own API_GetSchema. The files in file attachment fields are served at /up/dbid/a/rrid/efid/v0,
+ * to clients with the ticket.
+ *
+ * To test how the client handles a slow or overloaded server, the stand-in can add latency to each
+ * request, return errcode 75 when a response is larger than a given size, return errcode 77 (or an
+ * HTTP status like 429 or 503) when more than a given number of requests are received per second,
+ * and fail a given number of requests or downloads with HTTP 500.
+ */
+public class QuickbaseStandIn implements Closeable {
+    
+    public static final String APPLICATION = "bqapplica";
+    
+    private static final Pattern CONDITION = Pattern.compile("\\{'([0-9]+)'\\.([A-Z]+)\\.'([^']*)'\\}");
+    private static final Pattern FILE_PATH = Pattern.compile("/up/([^/]+)/a/r([0-9]+)/e([0-9]+)/v0");
+    
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final Map<String,SyntheticTable> tables = Collections.synchronizedMap(new LinkedHashMap<String,SyntheticTable>());
+    
+    private volatile String ticket = "standin-ticket";
+    private volatile int latency = 0;
+    private volatile int maxPayload = Integer.MAX_VALUE;
+    private volatile int requestsPerSecond = 0;
+    private volatile int throttleStatus = 0;
+    private final AtomicInteger failures = new AtomicInteger();
+    private final AtomicInteger downloadFailures = new AtomicInteger();
+    
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger concurrentRequests = new AtomicInteger();
+    private final AtomicInteger maxConcurrentRequests = new AtomicInteger();
+    private final Map<String,AtomicInteger> actions = Collections.synchronizedMap(new HashMap<String,AtomicInteger>());
+    private final Map<String,AtomicInteger> errors = Collections.synchronizedMap(new HashMap<String,AtomicInteger>());
+    private long currentSecond = 0;
+    private int requestsThisSecond = 0;
+    
+    public QuickbaseStandIn() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/db/", this::handle);
+        server.createContext("/up/", this::handleFile);
+        server.setExecutor(executor);
+        server.start();
+    }
+    
+    /**
+     * Serve a synthetic table with the given table id. The table is part of the application.
+     */
+    public QuickbaseStandIn addTable(String dbid, SyntheticTable table) {
+        tables.put(dbid, table);
+        return this;
+    }
+    
+    /**
+     * Stop serving the table, so that requests for it get errcode 32 (no such database).
+     */
+    public QuickbaseStandIn removeTable(String dbid) {
+        tables.remove(dbid);
+        return this;
+    }
+    
+    /**
+     * Hand out this ticket from now on, and reject the tickets handed out before with errcode 4.
+     */
+    public QuickbaseStandIn setTicket(String ticket) {
+        this.ticket = ticket;
+        return this;
+    }
+    
+    /**
+     * Wait this many milliseconds before responding to each request.
+     */
+    public QuickbaseStandIn setLatency(int millis) {
+        this.latency = millis;
+        return this;
+    }
+    
+    /**
+     * Return errcode 75 (report too large) instead of API_DoQuery responses that are larger than this many characters.
+     */
+    public QuickbaseStandIn setMaxPayload(int characters) {
+        this.maxPayload = characters;
+        return this;
+    }
+    
+    /**
+     * Return errcode 77 (request limit exceeded) when more than this many requests are received in the same second. 0 means no limit.
+     */
+    public QuickbaseStandIn setRequestsPerSecond(int requestsPerSecond) {
+        this.requestsPerSecond = requestsPerSecond;
+        return this;
+    }
+    
+    /**
+     * Respond to requests over the limit set with setRequestsPerSecond with this HTTP status and a Retry-After header, instead of errcode 77.
+     */
+    public QuickbaseStandIn setThrottleStatus(int status) {
+        this.throttleStatus = status;
+        return this;
+    }
+    
+    /**
+     * Fail the next requests with HTTP 500.
+     */
+    public QuickbaseStandIn setFailures(int requests) {
+        this.failures.set(requests);
+        return this;
+    }
+    
+    /**
+     * Fail the next file downloads with HTTP 500.
+     */
+    public QuickbaseStandIn setDownloadFailures(int downloads) {
+        this.downloadFailures.set(downloads);
+        return this;
+    }
+    
+    /**
+     * @return The base URL of the server, to be used as the domain of a QuickbaseClient.
+     */
+    public String getDomain() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+    
+    public int getRequestCount() {
+        return requests.get();
+    }
+    
+    /**
+     * @return The number of requests with the given action, like API_DoQuery.
+     */
+    public int getRequestCount(String action) {
+        AtomicInteger count = actions.get(action);
+        return count == null ? 0 : count.get();
+    }
+    
+    public int getMaxConcurrentRequests() {
+        return maxConcurrentRequests.get();
+    }
+    
+    /**
+     * @return The number of responses with the given errcode.
+     */
+    public int getErrorCount(String errcode) {
+        AtomicInteger count = errors.get(errcode);
+        return count == null ? 0 : count.get();
+    }
+    
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+    
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        int concurrent = concurrentRequests.incrementAndGet();
+        maxConcurrentRequests.accumulateAndGet(concurrent, Math::max);
+        try {
+            Map<String,String> parameters;
+            try (InputStream body = exchange.getRequestBody()) {
+                parameters = parseRequest(body);
+            }
+            if (latency > 0) {
+                Thread.sleep(latency);
+            }
+            
+            String path = exchange.getRequestURI().getPath();
+            String dbid = path.substring(path.lastIndexOf('/') + 1);
+            String action = exchange.getRequestHeaders().getFirst("QUICKBASE-ACTION");
+            actions.computeIfAbsent(action, a -> new AtomicInteger()).incrementAndGet();
+            
+            String response;
+            boolean throttled = throttled();
+            if (failures.getAndUpdate(f -> Math.max(0, f - 1)) > 0) {
+                errors.computeIfAbsent("HTTP 500", e -> new AtomicInteger()).incrementAndGet();
+                exchange.sendResponseHeaders(500, -1);
+                return;
+                
+            } else if (throttled && throttleStatus > 0) {
+                errors.computeIfAbsent("HTTP " + throttleStatus, e -> new AtomicInteger()).incrementAndGet();
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                exchange.sendResponseHeaders(throttleStatus, -1);
+                return;
+                
+            } else if (throttled) {
+                response = error(action, "77", "Request limit exceeded");
+            } else {
+                response = respond(dbid, action, parameters);
+            }
+            send(exchange, response);
+            
+        } catch (InterruptedException | XMLStreamException e) {
+            exchange.sendResponseHeaders(500, -1);
+            
+        } finally {
+            concurrentRequests.decrementAndGet();
+            exchange.close();
+        }
+    }
+    
+    private void handleFile(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        actions.computeIfAbsent("download", a -> new AtomicInteger()).incrementAndGet();
+        int concurrent = concurrentRequests.incrementAndGet();
+        maxConcurrentRequests.accumulateAndGet(concurrent, Math::max);
+        try {
+            if (latency > 0) {
+                Thread.sleep(latency);
+            }
+            Matcher path = FILE_PATH.matcher(exchange.getRequestURI().getPath());
+            String query = exchange.getRequestURI().getQuery();
+            SyntheticTable table = path.matches() ? tables.get(path.group(1)) : null;
+            byte[] content = table == null ? null : table.fileContent(Integer.parseInt(path.group(2)), path.group(3));
+            if (downloadFailures.getAndUpdate(f -> Math.max(0, f - 1)) > 0) {
+                errors.computeIfAbsent("HTTP 500", e -> new AtomicInteger()).incrementAndGet();
+                exchange.sendResponseHeaders(500, -1);
+                
+            } else if (query == null || !query.equals("ticket=" + ticket)) {
+                exchange.sendResponseHeaders(403, -1);
+                
+            } else if (content == null) {
+                exchange.sendResponseHeaders(404, -1);
+                
+            } else {
+                exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+                exchange.sendResponseHeaders(200, content.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(content);
+                }
+            }
+            
+        } catch (InterruptedException e) {
+            exchange.sendResponseHeaders(500, -1);
+            
+        } finally {
+            concurrentRequests.decrementAndGet();
+            exchange.close();
+        }
+    }
+    
+    private synchronized boolean throttled() {
+        if (requestsPerSecond <= 0) {
+            return false;
+        }
+        long second = System.currentTimeMillis() / 1000;
+        if (second != currentSecond) {
+            currentSecond = second;
+            requestsThisSecond = 0;
+        }
+        return ++requestsThisSecond > requestsPerSecond;
+    }
+    
+    private String respond(String dbid, String action, Map<String,String> parameters) {
+        if ("API_Authenticate".equals(action)) {
+            return "<?xml version=\"1.0\" ?>\n<qdbapi>\n<action>API_Authenticate</action>\n<errcode>0</errcode>\n<errtext>No error</errtext>\n<ticket>" + ticket + "</ticket>\n<userid>112149.bhsv</userid>\n</qdbapi>\n";
+        }
+        if (!ticket.equals(parameters.get("ticket"))) {
+            return error(action, "4", "User not authorized");
+        }
+        
+        if ("API_GetSchema".equals(action) && APPLICATION.equals(dbid)) {
+            StringBuilder response = new StringBuilder();
+            response.append("<?xml version=\"1.0\" ?>\n<qdbapi>\n<action>API_GetSchema</action>\n<errcode>0</errcode>\n<errtext>No error</errtext>\n");
+            response.append("<table>\n<name>Stand-in</name>\n<chdbids>\n");
+            synchronized (tables) {
+                for (String tableId : tables.keySet()) {
+                    response.append("<chdbid name=\"_dbid_table_" + tableId + "\">" + tableId + "</chdbid>\n");
+                }
+            }
+            response.append("</chdbids>\n</table>\n</qdbapi>\n");
+            return response.toString();
+        }
+        
+        SyntheticTable table = tables.get(dbid);
+        if (table == null) {
+            return error(action, "32", "No such database");
+        }
+        
+        if ("API_GetSchema".equals(action)) {
+            return table.schemaResponse();
+            
+        } else if ("API_DoQueryCount".equals(action)) {
+            int count = query(table, parameters).size();
+            return "<?xml version=\"1.0\" ?>\n<qdbapi>\n<action>API_DoQueryCount</action>\n<errcode>0</errcode>\n<errtext>No error</errtext>\n<numMatches>" + count + "</numMatches>\n</qdbapi>\n";
+            
+        } else if ("API_DoQuery".equals(action)) {
+            String clist = parameters.get("clist");
+            List<String> fieldIds = clist == null || "".equals(clist) || "a".equals(clist) ? null : Arrays.asList(clist.split("\\."));
+            String response = table.doQueryResponse(query(table, parameters), fieldIds);
+            if (response.length() > maxPayload) {
+                return error(action, "75", "Report too large");
+            }
+            return response;
+            
+        } else {
+            return error(action, "3", "Unknown action");
+        }
+    }
+    
+    /**
+     * @return The record ids that match the query, sorted and limited as given by the options.
+     */
+    private static List<Integer> query(SyntheticTable table, Map<String,String> parameters) {
+        String query = parameters.get("query");
+        List<String[]> conditions = new ArrayList<String[]>();
+        Matcher matcher = CONDITION.matcher(query == null ? "" : query);
+        while (matcher.find()) {
+            conditions.add(new String[]{ matcher.group(1), matcher.group(2), matcher.group(3) });
+        }
+        
+        // narrow down the record ids using the conditions on the record id field first
+        long from = Long.MIN_VALUE;
+        long to = Long.MAX_VALUE - 1;
+        for (String[] condition : conditions) {
+            if ("3".equals(condition[0]) && condition[2].matches("-?[0-9]+")) {
+                long value = Long.parseLong(condition[2]);
+                switch (condition[1]) {
+                case "GT": from = Math.max(from, value + 1); break;
+                case "GTE": from = Math.max(from, value); break;
+                case "LT": to = Math.min(to, value - 1); break;
+                case "LTE": to = Math.min(to, value); break;
+                case "EX": from = Math.max(from, value); to = Math.min(to, value); break;
+                }
+            }
+        }
+        
+        List<Integer> rids = new ArrayList<Integer>();
+        for (int rid : table.getRecordIds(from, to + 1)) {
+            if (matches(table, rid, conditions)) {
+                rids.add(rid);
+            }
+        }
+        
+        String slist = parameters.get("slist");
+        if (slist != null && !"".equals(slist) && !"3".equals(slist)) {
+            rids.sort((a, b) -> compare(table.value(a, slist), table.value(b, slist)));
+        }
+        
+        String options = parameters.get("options");
+        if (options != null) {
+            for (String option : options.split("\\.")) {
+                if ("sortorder-D".equals(option)) {
+                    Collections.reverse(rids);
+                } else if (option.matches("num-[0-9]+")) {
+                    int num = Integer.parseInt(option.substring("num-".length()));
+                    rids = new ArrayList<Integer>(rids.subList(0, Math.min(num, rids.size())));
+                }
+            }
+        }
+        return rids;
+    }
+    
+    private static boolean matches(SyntheticTable table, int rid, List<String[]> conditions) {
+        for (String[] condition : conditions) {
+            int comparison = compare(table.value(rid, condition[0]), condition[2]);
+            boolean match;
+            switch (condition[1]) {
+            case "GT": match = comparison > 0; break;
+            case "GTE": case "OAF": match = comparison >= 0; break;
+            case "LT": match = comparison < 0; break;
+            case "LTE": match = comparison <= 0; break;
+            case "EX": match = comparison == 0; break;
+            default: match = false;
+            }
+            if (!match) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private static int compare(String value, String other) {
+        return value.matches("-?[0-9]+") && other.matches("-?[0-9]+")
+                ? Long.compare(Long.parseLong(value), Long.parseLong(other))
+                : value.compareTo(other);
+    }
+    
+    private String error(String action, String errcode, String errtext) {
+        errors.computeIfAbsent(errcode, e -> new AtomicInteger()).incrementAndGet();
+        return "<?xml version=\"1.0\" ?>\n<qdbapi>\n<action>" + action + "</action>\n<errcode>" + errcode + "</errcode>\n<errtext>" + errtext + "</errtext>\n</qdbapi>\n";
+    }
+    
+    private static Map<String,String> parseRequest(InputStream body) throws IOException, XMLStreamException {
+        byte[] bytes = readAll(body);
+        Map<String,String> parameters = new HashMap<String,String>();
+        XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(new StringReader(new String(bytes, "iso-8859-1")));
+        reader.nextTag(); // <qdbapi>
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            String name = reader.getLocalName();
+            parameters.put(name, reader.getElementText());
+        }
+        reader.close();
+        return parameters;
+    }
+    
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+    
+    private static void send(HttpExchange exchange, String response) throws IOException {
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        boolean gzip = acceptEncoding != null && acceptEncoding.contains("gzip");
+        exchange.getResponseHeaders().set("Content-Type", "application/xml; charset=iso-8859-1");
+        if (gzip) {
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        exchange.sendResponseHeaders(200, 0);
+        try (OutputStream out = gzip ? new GZIPOutputStream(exchange.getResponseBody()) : exchange.getResponseBody()) {
+            out.write(response.getBytes("iso-8859-1"));
+        }
+    }
+}
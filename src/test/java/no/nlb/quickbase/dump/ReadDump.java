@@ -0,0 +1,54 @@
+package no.nlb.quickbase.dump;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ReadDump {
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		SyntheticTable table = new SyntheticTable(20, 3);
+		List<QuickbaseTableDump.QuickbaseResponse> responses = new ArrayList<QuickbaseTableDump.QuickbaseResponse>();
+		responses.add(new QuickbaseTableDump.QuickbaseResponse(table.doQueryResponse(1, 8)));
+		responses.add(new QuickbaseTableDump.QuickbaseResponse(table.doQueryResponse(8, 21)));
+		String dump = QuickbaseTableDump.combineResponses(responses);
+		
+		StringWriter copy = new StringWriter();
+		try (DumpReader reader = new DumpReader(new StringReader(dump));
+		     CombinedResponseWriter writer = new CombinedResponseWriter(copy)) {
+			assertTrue(reader.hasUsers());
+			assertEquals("Ola Nordmann", reader.getUsers().get("112149.bhsv"));
+			
+			writer.start(reader.getHead(), reader.hasUsers());
+			for (String id : reader.getUsers().keySet()) {
+				writer.addUser(id, reader.getUsers().get(id));
+			}
+			int expectedRid = 1;
+			DumpReader.Record record;
+			while ((record = reader.next()) != null) {
+				assertEquals(expectedRid++, record.rid);
+				writer.addRecords(record.xml);
+			}
+			assertEquals(21, expectedRid);
+			writer.finish();
+		}
+		
+		assertEquals("Reading and writing a dump should not change it", dump, copy.toString());
+	}
+	
+	@Test
+	public void testEmpty() throws IOException {
+		try (DumpReader reader = new DumpReader(new StringReader(CombinedResponseWriter.EMPTY_RESPONSE))) {
+			assertNull(reader.getHead());
+			assertNull(reader.next());
+		}
+	}
+
+}
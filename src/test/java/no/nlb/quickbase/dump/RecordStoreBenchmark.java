@@ -0,0 +1,114 @@
+package no.nlb.quickbase.dump;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares keeping a 50000 record table (ten pages) in memory as the maps from getRecords with
+ * keeping it in a RecordStore, and then reading one column of every record. Half of the text
+ * fields are choice fields with a few distinct values.
+ *
+ * The benchmark measures the time; main prints the heap retained by each of them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RecordStoreBenchmark {
+    
+    @Param({"maps", "store"})
+    public String representation;
+    
+    private List<String> pages = new ArrayList<String>();
+    private Map<String,Map<String,String>> schema;
+    
+    @Setup
+    public void setup() {
+        SyntheticTable table = new SyntheticTable(50000, 10).setChoiceFields(10);
+        for (int from = 1; from <= table.getRecords(); from += 5000) {
+            pages.add(table.doQueryResponse(from, from + 5000));
+        }
+        schema = new QuickbaseTableDump.QuickbaseResponse(table.schemaResponse()).getFields();
+    }
+    
+    @Benchmark
+    public long load() throws IOException {
+        return read(build());
+    }
+    
+    private Object build() throws IOException {
+        if ("maps".equals(representation)) {
+            Map<String,Map<String,String>> records = new HashMap<String,Map<String,String>>();
+            for (String page : pages) {
+                records.putAll(new QuickbaseTableDump.QuickbaseResponse(page).getRecords());
+            }
+            return records;
+        } else {
+            RecordStore store = new RecordStore(schema);
+            for (String page : pages) {
+                store.add(new QuickbaseTableDump.QuickbaseResponse(page));
+            }
+            store.trimToSize();
+            return store;
+        }
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static long read(Object records) {
+        long length = 0;
+        if (records instanceof RecordStore) {
+            RecordStore store = (RecordStore)records;
+            int column = store.getColumnIndex("16");
+            RecordStore.Cursor cursor = store.cursor();
+            while (cursor.next()) {
+                length += cursor.getString(column).length();
+            }
+        } else {
+            for (Map<String,String> record : ((Map<String,Map<String,String>>)records).values()) {
+                length += record.get("16").length();
+            }
+        }
+        return length;
+    }
+    
+    /**
+     * Print the heap retained by each representation.
+     */
+    public static void main(String[] args) throws IOException {
+        for (String representation : new String[]{ "maps", "store" }) {
+            RecordStoreBenchmark benchmark = new RecordStoreBenchmark();
+            benchmark.representation = representation;
+            benchmark.setup();
+            long before = usedHeap();
+            Object records = benchmark.build();
+            long after = usedHeap();
+            System.out.println(representation + ": " + (after - before) / (1024 * 1024) + " MB (" + read(records) + ")");
+        }
+    }
+    
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,113 @@
+package no.nlb.quickbase.dump;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RefetchChangedRanges {
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	@Test
+	public void test() throws IOException {
+		try (QuickbaseStandIn standIn = new QuickbaseStandIn()) {
+			SyntheticTable table = new SyntheticTable(1000, 2);
+			standIn.addTable("bqtable01", table);
+			QuickbaseTableDump.QuickbaseClient client = new QuickbaseTableDump.QuickbaseClient("apptoken", standIn.getDomain(), "bqtable01", "username", "password");
+			File dumpFile = new File(folder.getRoot(), "dump.xml");
+			
+			// no previous dump, so everything is fetched
+			TableDump.builder(client).pageSize(50).build().writeChecksummed(dumpFile, null);
+			assertEquals(full(client), read(dumpFile));
+			assertTrue(new File(dumpFile.getPath() + ".checksums").isFile());
+			
+			// nothing has changed, so only the root is compared
+			TableDump dump = TableDump.builder(client).pageSize(50).build();
+			int requests = standIn.getRequestCount("API_DoQuery");
+			dump.writeChecksummed(dumpFile, null);
+			assertEquals("The highest record id and the fingerprint of the root", 2, standIn.getRequestCount("API_DoQuery") - requests);
+			assertEquals(full(client), read(dumpFile));
+			
+			table.edit(123).deleteRecord(700).addRecords(30);
+			dump = TableDump.builder(client).pageSize(50).build();
+			requests = standIn.getRequestCount("API_DoQuery");
+			dump.writeChecksummed(dumpFile, null);
+			int pages = standIn.getRequestCount("API_DoQuery") - requests;
+			assertTrue("Only the ranges that have changed should be fetched, with a few requests per level: " + pages, pages < 25);
+			assertEquals(full(client), read(dumpFile));
+		}
+	}
+	
+	@Test
+	public void testCheckField() throws IOException {
+		try (QuickbaseStandIn standIn = new QuickbaseStandIn()) {
+			SyntheticTable table = new SyntheticTable(300, 2);
+			standIn.addTable("bqtable01", table);
+			QuickbaseTableDump.QuickbaseClient client = new QuickbaseTableDump.QuickbaseClient("apptoken", standIn.getDomain(), "bqtable01", "username", "password");
+			File dumpFile = new File(folder.getRoot(), "dump.xml");
+			
+			// the check field is not one of the fields in the dump, so the fingerprints have to be requested
+			TableDump.builder(client).fields("3,Field 6").pageSize(100).build().writeChecksummed(dumpFile, "Date Modified");
+			table.edit(10).edit(280);
+			TableDump.builder(client).fields("3,Field 6").pageSize(100).build().writeChecksummed(dumpFile, "Date Modified");
+			
+			StringWriter expected = new StringWriter();
+			TableDump.builder(client).fields("3,Field 6").build().write(expected);
+			assertEquals(expected.toString(), read(dumpFile));
+			assertTrue(read(dumpFile).contains("Value 280/0 &amp; some text (edit 2)"));
+			
+			try {
+				TableDump.builder(client).pageSize(50).build().writeChecksummed(dumpFile, "3,6");
+				fail("The check field must be a single field");
+			} catch (IllegalArgumentException e) {
+			}
+		}
+	}
+	
+	@Test
+	public void testModifiedDump() throws IOException {
+		try (QuickbaseStandIn standIn = new QuickbaseStandIn()) {
+			standIn.addTable("bqtable01", new SyntheticTable(200, 2));
+			QuickbaseTableDump.QuickbaseClient client = new QuickbaseTableDump.QuickbaseClient("apptoken", standIn.getDomain(), "bqtable01", "username", "password");
+			File dumpFile = new File(folder.getRoot(), "dump.xml");
+			TableDump.builder(client).pageSize(50).build().writeChecksummed(dumpFile, null);
+			
+			// a dump that does not match its checksums is made again from scratch
+			Files.write(dumpFile.toPath(), read(dumpFile).replace("Value 42/1", "Value 42/X").getBytes(StandardCharsets.UTF_8));
+			TableDump.builder(client).pageSize(50).build().writeChecksummed(dumpFile, null);
+			assertEquals(full(client), read(dumpFile));
+		}
+	}
+	
+	@Test
+	public void testChecksums() throws IOException {
+		ChecksummedDump.Fingerprint a = new ChecksummedDump.Fingerprint(3, "1500000009000");
+		ChecksummedDump.Fingerprint b = new ChecksummedDump.Fingerprint(2, "900");
+		assertEquals("Timestamps are compared as numbers", new ChecksummedDump.Fingerprint(5, "1500000009000"), b.plus(a));
+		assertEquals(new ChecksummedDump.Fingerprint(3, "1500000009000"), a.plus(new ChecksummedDump.Fingerprint(0, null)));
+		
+		File checksumsFile = folder.newFile();
+		Files.write(checksumsFile.toPath(), "not checksums\n".getBytes(StandardCharsets.UTF_8));
+		assertNull(ChecksummedDump.readChecksums(checksumsFile));
+	}
+	
+	private static String full(QuickbaseTableDump.QuickbaseClient client) throws IOException {
+		StringWriter full = new StringWriter();
+		TableDump.builder(client).build().write(full);
+		return full.toString();
+	}
+	
+	private static String read(File file) throws IOException {
+		return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+	}
+	
+}
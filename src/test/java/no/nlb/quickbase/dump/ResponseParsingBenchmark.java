@@ -0,0 +1,107 @@
+package no.nlb.quickbase.dump;
+
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+/**
+ * Compares getting the records from a 5000 record page by walking a DOM (as QuickbaseResponse used to do)
+ * with the streaming parser. Run with "-prof gc" to see the allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResponseParsingBenchmark {
+    
+    @Param({"30"})
+    public int fields;
+    
+    private String responseString;
+    
+    @Setup
+    public void setup() {
+        responseString = new SyntheticTable(5000, fields).doQueryResponse(1, 5001);
+    }
+    
+    @Benchmark
+    public Map<String,Map<String,String>> domGetRecords() throws Exception {
+        Document xml = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new InputSource(new StringReader(responseString)));
+        
+        Map<String,Map<String,String>> records = new HashMap<String,Map<String,String>>();
+        NodeList recordElements = xml.getElementsByTagName("record");
+        for (int i = 0; i < recordElements.getLength(); i++) {
+            Element recordElement = (Element)recordElements.item(i);
+            Map<String,String> recordValues = new HashMap<String,String>();
+            NodeList recordChildNodes = recordElement.getChildNodes();
+            for (int j = 0; j < recordChildNodes.getLength(); j++) {
+                Node recordChildNode = recordChildNodes.item(j);
+                if (recordChildNode.getNodeType() == Node.ELEMENT_NODE) {
+                    String name = recordChildNode.getNodeName();
+                    if ("f".equals(name)) {
+                        name = ((Element)recordChildNode).getAttribute("id");
+                    }
+                    String value = null;
+                    NodeList childNodes = recordChildNode.getChildNodes();
+                    for (int k = 0; k < childNodes.getLength(); k++) {
+                        Node childNode = childNodes.item(k);
+                        if (childNode.getNodeType() == Node.ELEMENT_NODE) {
+                            value = null;
+                            break;
+                        }
+                        if (childNode.getNodeType() == Node.TEXT_NODE) {
+                            value = childNode.getNodeValue();
+                        }
+                    }
+                    if (value != null) {
+                        recordValues.put(name, value);
+                    }
+                }
+            }
+            records.put(recordElement.getAttribute("rid"), recordValues);
+        }
+        return records;
+    }
+    
+    @Benchmark
+    public Map<String,Map<String,String>> staxGetRecords() {
+        return new QuickbaseTableDump.QuickbaseResponse(responseString).getRecords();
+    }
+    
+    @Benchmark
+    public void staxIterateRecords(Blackhole blackhole) {
+        Iterator<QuickbaseRecord> records = new QuickbaseTableDump.QuickbaseResponse(responseString).records();
+        while (records.hasNext()) {
+            blackhole.consume(records.next());
+        }
+    }
+    
+    @Benchmark
+    public String staxGet() {
+        return new QuickbaseTableDump.QuickbaseResponse(responseString).get("errcode");
+    }
+}
@@ -0,0 +1,104 @@
+package no.nlb.quickbase.dump;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ResumeDump {
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	@Test
+	public void test() throws IOException {
+		SyntheticTable table = new SyntheticTable(30, 2);
+		File workDir = folder.newFolder();
+		
+		SpooledDump spooled = new SpooledDump(workDir, "table", "3");
+		spooled.addRange(1, 11, responses(table, 1, 11));
+		spooled.addRange(21, 31, responses(table, 21, 31));
+		
+		// a new run should only have to fetch the range in between
+		spooled = new SpooledDump(workDir, "table", "3");
+		List<int[]> missing = spooled.getMissingRanges(1, 30);
+		assertEquals(1, missing.size());
+		assertArrayEquals(new int[]{ 11, 21 }, missing.get(0));
+		spooled.addRange(11, 21, responses(table, 11, 21));
+		assertEquals(0, spooled.getMissingRanges(1, 30).size());
+		
+		StringWriter combined = new StringWriter();
+		spooled.combine(combined);
+		
+		List<QuickbaseTableDump.QuickbaseResponse> all = new ArrayList<QuickbaseTableDump.QuickbaseResponse>();
+		all.addAll(responses(table, 1, 11));
+		all.addAll(responses(table, 11, 21));
+		all.addAll(responses(table, 21, 31));
+		assertEquals("The spooled ranges should combine like the responses themselves", QuickbaseTableDump.combineResponses(all), combined.toString());
+		
+		spooled.clear();
+		assertEquals(0, workDir.list().length);
+	}
+	
+	@Test
+	public void testSplice() throws IOException {
+		SyntheticTable table = new SyntheticTable(30, 2);
+		File workDir = folder.newFolder();
+		SpooledDump spooled = new SpooledDump(workDir, "table", "3");
+		spooled.addRange(1, 11, responses(table, 1, 11));
+		spooled.addRange(11, 21, new ArrayList<QuickbaseTableDump.QuickbaseResponse>());
+		spooled.addRange(21, 31, responses(table, 21, 31));
+		
+		StringWriter combined = new StringWriter();
+		spooled.combine(combined);
+		
+		// the records are copied as bytes, also after resuming
+		ByteArrayOutputStream spliced = new ByteArrayOutputStream();
+		new SpooledDump(workDir, "table", "3").splice(spliced);
+		assertEquals(combined.toString(), new String(spliced.toByteArray(), StandardCharsets.UTF_8));
+		
+		File file = folder.newFile();
+		try (FileOutputStream out = new FileOutputStream(file)) {
+			spooled.splice(out);
+		}
+		assertEquals(combined.toString(), new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+	}
+	
+	@Test
+	public void testWriteStream() throws IOException {
+		try (QuickbaseStandIn standIn = new QuickbaseStandIn()) {
+			standIn.addTable("bqtable01", new SyntheticTable(3000, 3));
+			QuickbaseTableDump.QuickbaseClient client = new QuickbaseTableDump.QuickbaseClient("apptoken", standIn.getDomain(), "bqtable01", "username", "password");
+			StringWriter expected = new StringWriter();
+			TableDump.builder(client).build().write(expected);
+			
+			ByteArrayOutputStream spliced = new ByteArrayOutputStream();
+			TableDump.builder(client).pageSize(1000).workDir(folder.newFolder()).build().write(spliced);
+			assertEquals(expected.toString(), new String(spliced.toByteArray(), StandardCharsets.UTF_8));
+		}
+	}
+	
+	@Test(expected = IOException.class)
+	public void testOtherTable() throws IOException {
+		File workDir = folder.newFolder();
+		new SpooledDump(workDir, "table", "3");
+		new SpooledDump(workDir, "another", "3");
+	}
+	
+	private static List<QuickbaseTableDump.QuickbaseResponse> responses(SyntheticTable table, int from, int to) {
+		return Arrays.asList(new QuickbaseTableDump.QuickbaseResponse(table.doQueryResponse(from, to)));
+	}
+	
+}
@@ -0,0 +1,75 @@
+package no.nlb.quickbase.dump;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+public class ReuseConnections {
+	
+	private HttpServer server;
+	private List<Integer> clientPorts = new ArrayList<Integer>();
+	private List<Boolean> gzipped = new ArrayList<Boolean>();
+	
+	@Before
+	public void startServer() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/db/", this::handle);
+		server.start();
+	}
+	
+	@After
+	public void stopServer() {
+		server.stop(0);
+	}
+	
+	private synchronized void handle(HttpExchange exchange) throws IOException {
+		try (InputStream body = exchange.getRequestBody()) {
+			while (body.read() != -1);
+		}
+		clientPorts.add(exchange.getRemoteAddress().getPort());
+		
+		String action = exchange.getRequestHeaders().getFirst("QUICKBASE-ACTION");
+		String response = "<?xml version=\"1.0\" ?>\n<qdbapi>\n<action>" + action + "</action>\n<errcode>0</errcode>\n<ticket>ticket</ticket>\n</qdbapi>\n";
+		
+		String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+		boolean gzip = acceptEncoding != null && acceptEncoding.contains("gzip");
+		gzipped.add(gzip);
+		exchange.getResponseHeaders().set("Content-Type", "application/xml; charset=iso-8859-1");
+		if (gzip) {
+			exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+		}
+		exchange.sendResponseHeaders(200, 0);
+		try (OutputStream out = gzip ? new GZIPOutputStream(exchange.getResponseBody()) : exchange.getResponseBody()) {
+			out.write(response.getBytes("iso-8859-1"));
+		}
+	}
+	
+	@Test
+	public void test() throws IOException {
+		String domain = "http://localhost:" + server.getAddress().getPort();
+		QuickbaseTableDump.QuickbaseClient client = new QuickbaseTableDump.QuickbaseClient("apptoken", domain, "table", "username", "password");
+		for (int i = 0; i < 5; i++) {
+			QuickbaseTableDump.QuickbaseResponse response = client.newRequest("API_DoQuery").send();
+			assertEquals("API_DoQuery", response.get("action"));
+		}
+		
+		assertEquals("All requests should have been received", 6, clientPorts.size());
+		assertEquals("All requests should use the same connection", 1, new HashSet<Integer>(clientPorts).size());
+		assertFalse("All responses should be compressed", gzipped.contains(false));
+	}
+	
+}
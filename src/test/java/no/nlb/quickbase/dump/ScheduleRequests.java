@@ -0,0 +1,150 @@
+package no.nlb.quickbase.dump;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class ScheduleRequests {
+	
+	private static final QuickbaseTableDump.QuickbaseResponse OK = new QuickbaseTableDump.QuickbaseResponse("<?xml version=\"1.0\" ?>\n<qdbapi>\n<action>API_DoQuery</action>\n<errcode>0</errcode>\n</qdbapi>\n");
+	private static final QuickbaseTableDump.QuickbaseResponse THROTTLED = new QuickbaseTableDump.QuickbaseResponse("<?xml version=\"1.0\" ?>\n<qdbapi>\n<action>API_DoQuery</action>\n<errcode>77</errcode>\n<errtext>Request limit exceeded</errtext>\n</qdbapi>\n");
+	
+	@Test
+	public void testRateLimit() throws IOException {
+		RequestScheduler scheduler = new RequestScheduler(4, 20, 0, 10, new Metrics(0));
+		long start = System.nanoTime();
+		for (int i = 0; i < 30; i++) {
+			scheduler.send("API_DoQuery", () -> OK);
+		}
+		long millis = (System.nanoTime() - start) / 1000000;
+		assertTrue("30 requests at 20 per second (with a burst of 20) should take at least 0.5 seconds, took " + millis + " ms", millis >= 450);
+	}
+	
+	@Test
+	public void testThrottled() throws IOException {
+		RequestScheduler scheduler = new RequestScheduler(1, 100, 5, 10, new Metrics(0));
+		AtomicInteger attempts = new AtomicInteger();
+		QuickbaseTableDump.QuickbaseResponse response = scheduler.send("API_DoQuery", () -> attempts.incrementAndGet() <= 2 ? THROTTLED : OK);
+		
+		assertSame(OK, response);
+		assertEquals(3, attempts.get());
+		assertTrue("The rate limit should be lowered when throttled", scheduler.getRate() < 100);
+	}
+	
+	@Test
+	public void testRetryAfter() throws IOException {
+		RequestScheduler scheduler = new RequestScheduler(1, 0, 5, 1, new Metrics(0));
+		AtomicInteger attempts = new AtomicInteger();
+		long start = System.nanoTime();
+		scheduler.send("API_DoQuery", () -> {
+			if (attempts.incrementAndGet() == 1) {
+				throw new RequestScheduler.RetryableException("HTTP 429", true, 300);
+			}
+			return OK;
+		});
+		assertTrue("Retry-After should be respected", System.nanoTime() - start >= 300000000L);
+	}
+	
+	@Test
+	public void testGiveUp() {
+		RequestScheduler scheduler = new RequestScheduler(1, 0, 3, 1, new Metrics(0));
+		AtomicInteger attempts = new AtomicInteger();
+		try {
+			scheduler.send("API_DoQuery", () -> {
+				attempts.incrementAndGet();
+				throw new IOException("Connection reset");
+			});
+			fail("The request should fail");
+			
+		} catch (IOException e) {
+			assertEquals("Connection reset", e.getMessage());
+		}
+		assertEquals("The request should be sent once, then retried three times", 4, attempts.get());
+	}
+	
+	@Test
+	public void testNotIdempotent() {
+		RequestScheduler scheduler = new RequestScheduler(1, 0, 3, 1, new Metrics(0));
+		AtomicInteger attempts = new AtomicInteger();
+		try {
+			scheduler.send("API_Authenticate", () -> {
+				attempts.incrementAndGet();
+				throw new IOException("Connection reset");
+			});
+			fail("The request should fail");
+			
+		} catch (IOException e) {
+			assertEquals(1, attempts.get());
+		}
+	}
+	
+	@Test
+	public void testInterrupted() throws Exception {
+		RequestScheduler scheduler = new RequestScheduler(1, 0, 0, 1, new Metrics(0));
+		CountDownLatch sending = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		Thread first = new Thread(() -> {
+			try {
+				scheduler.send("API_DoQuery", () -> {
+					sending.countDown();
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						throw new InterruptedIOException();
+					}
+					return OK;
+				});
+			} catch (Exception e) {
+			}
+		});
+		first.start();
+		sending.await();
+		
+		// the second request waits for the slot of the first one, until it is interrupted
+		AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		Thread second = new Thread(() -> {
+			try {
+				scheduler.send("API_DoQuery", () -> OK);
+			} catch (Exception e) {
+				failure.set(e);
+			}
+		});
+		second.start();
+		Thread.sleep(100);
+		second.interrupt();
+		second.join(5000);
+		assertFalse("The waiting request should stop when interrupted", second.isAlive());
+		assertTrue(failure.get() instanceof InterruptedIOException);
+		
+		// the interrupted request must not hold on to a slot
+		release.countDown();
+		first.join();
+		assertSame(OK, scheduler.send("API_DoQuery", () -> OK));
+	}
+	
+	@Test
+	public void testDump() throws IOException {
+		try (QuickbaseStandIn standIn = new QuickbaseStandIn()) {
+			SyntheticTable table = new SyntheticTable(2000, 3);
+			standIn.addTable("bqtable01", table);
+			QuickbaseTableDump.QuickbaseClient client = new QuickbaseTableDump.QuickbaseClient("apptoken", standIn.getDomain(), "bqtable01", "username", "password");
+			
+			standIn.setFailures(1).setRequestsPerSecond(2).setThrottleStatus(503);
+			StringWriter out = new StringWriter();
+			QuickbaseTableDump.dump(client, out);
+			
+			assertEquals(1, standIn.getErrorCount("HTTP 500"));
+			assertTrue("Some requests should be throttled", standIn.getErrorCount("HTTP 503") > 0);
+			assertEquals(QuickbaseTableDump.combineResponses(Collections.singletonList(new QuickbaseTableDump.QuickbaseResponse(table.doQueryResponse(1, 2001)))), out.toString());
+		}
+	}
+	
+}
@@ -0,0 +1,106 @@
+package no.nlb.quickbase.dump;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SelectFields {
+	
+	private QuickbaseStandIn standIn;
+	
+	@Before
+	public void startServer() throws IOException {
+		standIn = new QuickbaseStandIn();
+	}
+	
+	@After
+	public void stopServer() {
+		standIn.close();
+	}
+	
+	@Test
+	public void testClist() throws IOException {
+		Map<String,Map<String,String>> fields = new QuickbaseTableDump.QuickbaseResponse(new SyntheticTable(1, 3).schemaResponse()).getFields();
+		
+		assertEquals("a", QuickbaseTableDump.clist(fields, null));
+		assertEquals("a", QuickbaseTableDump.clist(fields, " "));
+		assertEquals("3.7", QuickbaseTableDump.clist(fields, "3,7"));
+		assertEquals("Labels and ids can be mixed, and duplicates are removed", "3.2.8", QuickbaseTableDump.clist(fields, "Record ID#, Date Modified,3,Field 8"));
+		
+		try {
+			QuickbaseTableDump.clist(fields, "3,Field 9");
+			fail("Unknown fields should not be accepted");
+		} catch (IllegalArgumentException e) {
+			assertEquals("Unknown field: 'Field 9'", e.getMessage());
+		}
+		
+		fields.get("7").put("label", "Field 6");
+		try {
+			QuickbaseTableDump.clist(fields, "Field 6");
+			fail("Labels used by more than one field should not be accepted");
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("More than one field is labeled 'Field 6'"));
+		}
+	}
+	
+	@Test
+	public void testCheckQuery() throws IOException {
+		Map<String,Map<String,String>> fields = new QuickbaseTableDump.QuickbaseResponse(new SyntheticTable(1, 3).schemaResponse()).getFields();
+		
+		QuickbaseTableDump.checkQuery(fields, null);
+		QuickbaseTableDump.checkQuery(fields, "{'6'.CT.'x'}OR{7.EX.'y'}AND{'Some label'.EX.'z'}");
+		try {
+			QuickbaseTableDump.checkQuery(fields, "{'6'.CT.'x'}OR{'12'.EX.'y'}");
+			fail("Queries on unknown fields should not be accepted");
+		} catch (IllegalArgumentException e) {
+			assertEquals("Unknown field in query: 12", e.getMessage());
+		}
+	}
+	
+	@Test
+	public void testDump() throws IOException {
+		SyntheticTable table = new SyntheticTable(1000, 10);
+		standIn.addTable("bqtable01", table).setMaxPayload(20000);
+		QuickbaseTableDump.QuickbaseClient client = new QuickbaseTableDump.QuickbaseClient("apptoken", standIn.getDomain(), "bqtable01", "username", "password");
+		
+		// records 500 and up
+		String filter = "{'2'.GTE.'1500000500000'}";
+		StringWriter out = new StringWriter();
+		TableDump.builder(client).fields("3,7").query(filter).build().write(out);
+		
+		assertTrue("Some responses should be too large", standIn.getErrorCount("75") > 0);
+		try (DumpReader reader = new DumpReader(new StringReader(out.toString()))) {
+			int expectedRid = 500;
+			DumpReader.Record record;
+			while ((record = reader.next()) != null) {
+				assertEquals(expectedRid, record.rid);
+				assertTrue(record.xml, record.xml.contains("<f id=\"7\">" + table.value(expectedRid, "7").replace("&", "&amp;") + "</f>"));
+				assertFalse("Only the selected fields should be included, also in the responses that were split: " + record.xml, record.xml.contains("<f id=\"6\">"));
+				expectedRid++;
+			}
+			assertEquals(1001, expectedRid);
+		}
+	}
+	
+	@Test
+	public void testRecordWriter() throws IOException {
+		SyntheticTable table = new SyntheticTable(2, 3);
+		Map<String,Map<String,String>> fields = new QuickbaseTableDump.QuickbaseResponse(table.schemaResponse()).getFields();
+		String clist = QuickbaseTableDump.clist(fields, "Field 7,3");
+		
+		StringWriter out = new StringWriter();
+		try (RecordWriter writer = RecordWriter.create("csv", out, QuickbaseTableDump.selectFields(fields, clist))) {
+			writer.add(new QuickbaseTableDump.QuickbaseResponse(table.doQueryResponse(1, 3)));
+			writer.finish();
+		}
+		assertEquals("Record ID#,Field 7\r\n1,Value 1/1 & some text\r\n2,Value 2/1 & some text\r\n", out.toString());
+	}
+	
+}
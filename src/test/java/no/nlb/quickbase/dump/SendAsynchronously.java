@@ -0,0 +1,125 @@
+package no.nlb.quickbase.dump;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class SendAsynchronously {
+	
+	private static final QuickbaseTableDump.QuickbaseResponse OK = new QuickbaseTableDump.QuickbaseResponse("<?xml version=\"1.0\" ?>\n<qdbapi>\n<action>API_DoQuery</action>\n<errcode>0</errcode>\n</qdbapi>\n");
+	private static final QuickbaseTableDump.QuickbaseResponse THROTTLED = new QuickbaseTableDump.QuickbaseResponse("<?xml version=\"1.0\" ?>\n<qdbapi>\n<action>API_DoQuery</action>\n<errcode>77</errcode>\n<errtext>Request limit exceeded</errtext>\n</qdbapi>\n");
+	
+	@Test
+	public void testConcurrency() throws IOException, InterruptedException {
+		RequestScheduler scheduler = new RequestScheduler(3, 0, 5, 1, new Metrics(0));
+		// the retry is sent from the scheduler's thread
+		List<CompletableFuture<QuickbaseTableDump.QuickbaseResponse>> sent = Collections.synchronizedList(new ArrayList<CompletableFuture<QuickbaseTableDump.QuickbaseResponse>>());
+		List<CompletableFuture<QuickbaseTableDump.QuickbaseResponse>> responses = new ArrayList<CompletableFuture<QuickbaseTableDump.QuickbaseResponse>>();
+		for (int i = 0; i < 10; i++) {
+			responses.add(scheduler.sendAsync("API_DoQuery", () -> {
+				CompletableFuture<QuickbaseTableDump.QuickbaseResponse> response = new CompletableFuture<QuickbaseTableDump.QuickbaseResponse>();
+				sent.add(response);
+				return response;
+			}));
+		}
+		assertEquals("Only three requests should be sent at the same time", 3, sent.size());
+		
+		sent.get(0).complete(OK);
+		assertEquals("A finished request should make room for the next", 4, sent.size());
+		sent.get(1).complete(THROTTLED);
+		assertEquals(5, sent.size());
+		for (int i = 2; i < 11; i++) {
+			for (int wait = 0; sent.size() <= i && wait < 500; wait++) {
+				Thread.sleep(10);
+			}
+			sent.get(i).complete(OK);
+		}
+		
+		for (CompletableFuture<QuickbaseTableDump.QuickbaseResponse> response : responses) {
+			assertSame(OK, QuickbaseTableDump.join(response));
+		}
+		assertEquals("The throttled request should be retried", 11, sent.size());
+	}
+	
+	@Test
+	public void testGiveUp() {
+		RequestScheduler scheduler = new RequestScheduler(1, 0, 3, 1, new Metrics(0));
+		AtomicInteger attempts = new AtomicInteger();
+		try {
+			QuickbaseTableDump.join(scheduler.sendAsync("API_DoQuery", () -> {
+				attempts.incrementAndGet();
+				CompletableFuture<QuickbaseTableDump.QuickbaseResponse> response = new CompletableFuture<QuickbaseTableDump.QuickbaseResponse>();
+				response.completeExceptionally(new IOException("Connection reset"));
+				return response;
+			}));
+			fail("The request should fail");
+			
+		} catch (IOException e) {
+			assertEquals("Connection reset", e.getMessage());
+		}
+		assertEquals("The request should be sent once, then retried three times", 4, attempts.get());
+	}
+	
+	@Test
+	public void testDump() throws IOException {
+		try (QuickbaseStandIn standIn = new QuickbaseStandIn()) {
+			SyntheticTable table = new SyntheticTable(5000, 3);
+			standIn.addTable("bqtable01", table).setLatency(300);
+			QuickbaseTableDump.QuickbaseClient client = new QuickbaseTableDump.QuickbaseClient("apptoken", standIn.getDomain(), "bqtable01", "username", "password", null, "async", 40);
+			try {
+				StringWriter out = new StringWriter();
+				TableDump.builder(client).pageSize(50).maxPageSize(50).concurrency(40).build().write(out);
+				
+				assertEquals(QuickbaseTableDump.combineResponses(Collections.singletonList(new QuickbaseTableDump.QuickbaseResponse(table.doQueryResponse(1, 5001)))), out.toString());
+				assertTrue("Many requests should be sent at the same time, was " + standIn.getMaxConcurrentRequests(), standIn.getMaxConcurrentRequests() > 10);
+				assertTrue("No more than the concurrency should be sent at the same time, was " + standIn.getMaxConcurrentRequests(), standIn.getMaxConcurrentRequests() <= 40);
+				
+			} finally {
+				client.close();
+			}
+		}
+	}
+	
+	@Test
+	public void testTooLargeAndFailures() throws IOException {
+		try (QuickbaseStandIn standIn = new QuickbaseStandIn()) {
+			SyntheticTable table = new SyntheticTable(2000, 3);
+			standIn.addTable("bqtable01", table);
+			QuickbaseTableDump.QuickbaseClient client = new QuickbaseTableDump.QuickbaseClient("apptoken", standIn.getDomain(), "bqtable01", "username", "password", null, "async", 4);
+			try {
+				standIn.setMaxPayload(20000).setFailures(1);
+				StringWriter out = new StringWriter();
+				TableDump.builder(client).pageSize(1000).concurrency(4).build().write(out);
+				
+				assertEquals(1, standIn.getErrorCount("HTTP 500"));
+				assertTrue("Some responses should be too large", standIn.getErrorCount("75") > 0);
+				assertEquals(QuickbaseTableDump.combineResponses(Collections.singletonList(new QuickbaseTableDump.QuickbaseResponse(table.doQueryResponse(1, 2001)))), out.toString());
+				
+				standIn.removeTable("bqtable01");
+				try {
+					QuickbaseTableDump.getRange(client, "3", 1, 1000, null, "a", new RangeController(1000, 1000));
+					fail("Errors from Quickbase should be thrown");
+				} catch (QuickbaseException e) {
+					assertEquals("32", e.getErrcode());
+				}
+				
+			} finally {
+				client.close();
+			}
+		}
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknownTransport() throws IOException {
+		new QuickbaseTableDump.QuickbaseClient("apptoken", "localhost", "bqtable01", "username", "password", null, "nio", 1);
+	}
+	
+}
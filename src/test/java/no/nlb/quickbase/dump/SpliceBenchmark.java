@@ -0,0 +1,73 @@
+package no.nlb.quickbase.dump;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Combining ten spooled 5000 record pages into a dump file: decoding the records and writing them
+ * again, or splicing them from the spooled files.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = { "-Xmx256m" })
+public class SpliceBenchmark {
+    
+    private File workDir;
+    private File output;
+    private SpooledDump spooled;
+    
+    @Setup
+    public void setup() throws IOException {
+        workDir = Files.createTempDirectory("splice-benchmark-").toFile();
+        output = new File(workDir, "dump.xml");
+        spooled = new SpooledDump(new File(workDir, "spool"), "table", "3");
+        SyntheticTable table = new SyntheticTable(50000, 30);
+        for (int from = 1; from <= table.getRecords(); from += 5000) {
+            spooled.addRange(from, from + 5000, Arrays.asList(new QuickbaseTableDump.QuickbaseResponse(table.doQueryResponse(from, from + 5000))));
+        }
+    }
+    
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.walk(workDir.toPath()).sorted(Comparator.reverseOrder()).map(path -> path.toFile()).forEach(File::delete);
+    }
+    
+    @Benchmark
+    public long combine() throws IOException {
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output), "UTF-8"))) {
+            spooled.combine(out);
+        }
+        return output.length();
+    }
+    
+    @Benchmark
+    public long splice() throws IOException {
+        try (FileOutputStream out = new FileOutputStream(output)) {
+            spooled.splice(out);
+        }
+        return output.length();
+    }
+}
@@ -0,0 +1,137 @@
+package no.nlb.quickbase.dump;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class StoreRecords {
+	
+	private static final String SCHEMA = "<?xml version=\"1.0\" ?>\n<qdbapi>\n<action>API_GetSchema</action>\n<errcode>0</errcode>\n<table>\n<fields>\n"
+			+ "<field id=\"3\" field_type=\"recordid\" base_type=\"int32\" role=\"recordid\"><label>Record ID#</label></field>\n"
+			+ "<field id=\"6\" field_type=\"text\" base_type=\"text\"><label>Status</label></field>\n"
+			+ "<field id=\"7\" field_type=\"date\" base_type=\"int64\"><label>Published</label></field>\n"
+			+ "<field id=\"8\" field_type=\"float\" base_type=\"float\"><label>Price</label></field>\n"
+			+ "<field id=\"9\" field_type=\"text\" base_type=\"text\"><label>Title</label></field>\n"
+			+ "<field id=\"10\" field_type=\"checkbox\" base_type=\"bool\"><label>Done</label></field>\n"
+			+ "</fields>\n</table>\n</qdbapi>\n";
+	
+	@Test
+	public void testResponse() throws IOException {
+		SyntheticTable table = new SyntheticTable(3000, 2);
+		RecordStore store = new RecordStore(new QuickbaseTableDump.QuickbaseResponse(table.schemaResponse()).getFields());
+		store.add(new QuickbaseTableDump.QuickbaseResponse(table.doQueryResponse(1, 2001)));
+		store.add(new QuickbaseTableDump.QuickbaseResponse(table.doQueryResponse(2001, 3001)));
+		store.trimToSize();
+		assertEquals(3000, store.size());
+		
+		RecordStore.Cursor cursor = store.cursor();
+		int rid = 0;
+		while (cursor.next()) {
+			rid++;
+			assertEquals(rid, cursor.getRid());
+			for (String fieldId : table.getFieldIds()) {
+				assertEquals(table.value(rid, fieldId), cursor.getString(store.getColumnIndex(fieldId)));
+			}
+			assertEquals(1500000000000L + rid * 1000L, cursor.getLong(store.getColumnIndex("2")));
+		}
+		assertEquals(3000, rid);
+		assertFalse(cursor.next());
+	}
+	
+	@Test
+	public void testValues() throws IOException {
+		RecordStore store = new RecordStore(new QuickbaseTableDump.QuickbaseResponse(SCHEMA).getFields());
+		String[] statuses = { "Open", "Closed", "Waiting" };
+		for (int rid = 1; rid <= 5000; rid++) {
+			Map<String,String> values = new HashMap<String,String>();
+			values.put("3", "" + rid);
+			values.put("6", rid % 7 == 0 ? "" : statuses[rid % 3]);
+			values.put("7", rid % 5 == 0 ? "" : "" + (1500000000000L + rid));
+			// whole numbers first, then decimals, then something that is not a number
+			values.put("8", rid < 2000 ? "" + rid : rid < 4000 ? rid + ".5" : rid == 4000 ? "n/a" : "" + rid);
+			// the same few values at first, then a new value in every record
+			values.put("9", rid <= 1000 ? "Title " + (rid % 10) : "Title " + rid);
+			values.put("10", rid % 2 == 0 ? "1" : "0");
+			store.add(rid, values);
+		}
+		store.trimToSize();
+		
+		RecordStore.Cursor cursor = store.cursor();
+		for (int rid = 1; rid <= 5000; rid++) {
+			assertTrue(cursor.next());
+			assertEquals(rid, cursor.getRid());
+			assertEquals(rid, cursor.getLong(0));
+			assertEquals(rid % 7 == 0 ? null : statuses[rid % 3], cursor.getString(1));
+			assertEquals(rid % 7 == 0, cursor.isNull(1));
+			if (rid % 5 == 0) {
+				assertTrue(cursor.isNull(2));
+				assertNull(cursor.getString(2));
+			} else {
+				assertEquals(1500000000000L + rid, cursor.getLong(2));
+			}
+			assertEquals(rid < 2000 ? "" + rid : rid < 4000 ? rid + ".5" : rid == 4000 ? "n/a" : "" + rid, cursor.getString(3));
+			if (rid != 4000) {
+				assertEquals(rid < 2000 || rid > 4000 ? rid : rid + 0.5, cursor.getDouble(3), 0);
+			}
+			assertEquals(rid <= 1000 ? "Title " + (rid % 10) : "Title " + rid, cursor.getString(4));
+			assertEquals(rid % 2 == 0 ? "1" : "0", cursor.getString(5));
+		}
+		assertFalse(cursor.next());
+	}
+	
+	@Test
+	public void testLargeWholeNumbers() {
+		RecordStore store = new RecordStore(new QuickbaseTableDump.QuickbaseResponse(SCHEMA).getFields());
+		// a whole number that a double can not hold exactly, then a decimal
+		String[] numbers = { "1", "9007199254740993", "2.5" };
+		for (int rid = 1; rid <= numbers.length; rid++) {
+			Map<String,String> values = new HashMap<String,String>();
+			values.put("8", numbers[rid - 1]);
+			store.add(rid, values);
+		}
+		RecordStore.Cursor cursor = store.cursor();
+		for (String number : numbers) {
+			assertTrue(cursor.next());
+			assertEquals(number, cursor.getString(3));
+		}
+		assertFalse(cursor.next());
+	}
+	
+	@Test
+	public void testWideCodes() {
+		RecordStore store = new RecordStore(new QuickbaseTableDump.QuickbaseResponse(SCHEMA).getFields());
+		// a new value every third record; more than fit in two bytes
+		for (int rid = 1; rid <= 210000; rid++) {
+			Map<String,String> values = new HashMap<String,String>();
+			values.put("6", "Status " + (rid / 3));
+			store.add(rid, values);
+		}
+		RecordStore.Cursor cursor = store.cursor();
+		for (int rid = 1; rid <= 210000; rid++) {
+			cursor.next();
+			assertEquals("Status " + (rid / 3), cursor.getString(1));
+			assertTrue(cursor.isNull(2));
+		}
+	}
+	
+	@Test
+	public void testSize() throws IOException {
+		RecordStore store = new RecordStore(new QuickbaseTableDump.QuickbaseResponse(SCHEMA).getFields());
+		for (int rid = 1; rid <= 100000; rid++) {
+			Map<String,String> values = new HashMap<String,String>();
+			values.put("3", "" + rid);
+			values.put("6", rid % 2 == 0 ? "Open" : "Closed");
+			values.put("7", "" + (1500000000000L + rid));
+			values.put("10", "1");
+			store.add(rid, values);
+		}
+		store.trimToSize();
+		// 4 bytes for the record id, 8 for each of the number columns (also the empty one) and 1 for each text code
+		assertTrue("" + store.estimateBytes(), store.estimateBytes() < 100000 * 32);
+	}
+	
+}
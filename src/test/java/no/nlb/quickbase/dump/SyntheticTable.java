@@ -0,0 +1,245 @@
+package no.nlb.quickbase.dump;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Generates Quickbase XML API responses for a synthetic table, for use in tests and benchmarks.
+ * 
+ * Record ids run from 1 to the number of records, unless other record ids are given. Field 2 is
+ * the Date Modified timestamp, field 3 is the record id, and the other fields contain text. The
+ * text is different in every record, except in the choice fields (if any), which come after the
+ * text fields and have one of a few values, like a status field. The file attachment fields (if
+ * any) come last. Every fifth record has no attachments, and the others have a file that is the
+ * same in every twentieth record, until the record is edited.
+ */
+public class SyntheticTable {
+    
+    private static final String[] CHOICES = { "Open", "In progress", "Waiting for reply", "Closed", "Cancelled" };
+    
+    private int[] recordIds;
+    private final int fields;
+    private int choiceFields = 0;
+    private int fileFields = 0;
+    private final Map<Integer,Integer> edits = new HashMap<Integer,Integer>();
+    private int editCount = 0;
+    
+    public SyntheticTable(int records, int fields) {
+        this.recordIds = new int[records];
+        for (int i = 0; i < records; i++) {
+            recordIds[i] = i + 1;
+        }
+        this.fields = fields;
+    }
+    
+    /**
+     * @param recordIds the ids of the records in the table, for instance with gaps where records have been deleted
+     */
+    public SyntheticTable(int[] recordIds, int fields) {
+        this.recordIds = recordIds.clone();
+        Arrays.sort(this.recordIds);
+        this.fields = fields;
+    }
+    
+    /**
+     * Add fields that have one of a few values, after the other fields.
+     */
+    public SyntheticTable setChoiceFields(int choiceFields) {
+        this.choiceFields = choiceFields;
+        return this;
+    }
+    
+    /**
+     * Add file attachment fields, after the other fields.
+     */
+    public SyntheticTable setFileFields(int fileFields) {
+        this.fileFields = fileFields;
+        return this;
+    }
+    
+    /**
+     * Edit a record: its Date Modified becomes later than that of any other record, and its text changes.
+     */
+    public synchronized SyntheticTable edit(int rid) {
+        edits.put(rid, ++editCount);
+        return this;
+    }
+    
+    /**
+     * Add records with ids after the highest record id, like Quickbase does.
+     */
+    public synchronized SyntheticTable addRecords(int records) {
+        int[] added = Arrays.copyOf(recordIds, recordIds.length + records);
+        for (int i = recordIds.length; i < added.length; i++) {
+            added[i] = i == 0 ? 1 : added[i - 1] + 1;
+        }
+        recordIds = added;
+        return this;
+    }
+    
+    public synchronized SyntheticTable deleteRecord(int rid) {
+        recordIds = Arrays.stream(recordIds).filter(id -> id != rid).toArray();
+        return this;
+    }
+    
+    public int getRecords() {
+        return recordIds.length;
+    }
+    
+    /**
+     * @return The ids of the records in the range [from,to), in ascending order.
+     */
+    public synchronized List<Integer> getRecordIds(long from, long to) {
+        List<Integer> rids = new ArrayList<Integer>();
+        int i = Arrays.binarySearch(recordIds, (int)Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, from)));
+        for (i = i < 0 ? -i - 1 : i; i < recordIds.length && recordIds[i] < to; i++) {
+            rids.add(recordIds[i]);
+        }
+        return rids;
+    }
+    
+    public int getFields() {
+        return fields;
+    }
+    
+    /**
+     * @return A API_DoQuery response with all records with ids in the range [from,to).
+     */
+    public String doQueryResponse(int from, int to) {
+        return doQueryResponse(getRecordIds(from, to), null);
+    }
+    
+    /**
+     * @param rids the records to include, in the order they should appear
+     * @param fieldIds the fields to include, or null for all fields
+     * @return A API_DoQuery response with the given records.
+     */
+    public String doQueryResponse(List<Integer> rids, List<String> fieldIds) {
+        StringBuilder response = new StringBuilder();
+        response.append("<?xml version=\"1.0\" ?>\n");
+        response.append("<qdbapi>\n");
+        response.append("   <action>API_DoQuery</action>\n");
+        response.append("   <errcode>0</errcode>\n");
+        response.append("   <errtext>No error</errtext>\n");
+        response.append("   <table>\n");
+        response.append("      <original>\n");
+        response.append("         <table_id>bqxyzabcd</table_id>\n");
+        response.append("      </original>\n");
+        response.append("      <lusers>\n");
+        response.append("         <luser id=\"112149.bhsv\">Ola Nordmann</luser>\n");
+        response.append("      </lusers>\n");
+        response.append("      <records>\n");
+        for (int rid : rids) {
+            appendRecord(response, rid, fieldIds == null ? getFieldIds() : fieldIds);
+        }
+        response.append("      </records>\n");
+        response.append("   </table>\n");
+        response.append("</qdbapi>\n");
+        return response.toString();
+    }
+    
+    /**
+     * @return A API_GetSchema response for the table.
+     */
+    public String schemaResponse() {
+        StringBuilder response = new StringBuilder();
+        response.append("<?xml version=\"1.0\" ?>\n");
+        response.append("<qdbapi>\n");
+        response.append("   <action>API_GetSchema</action>\n");
+        response.append("   <errcode>0</errcode>\n");
+        response.append("   <errtext>No error</errtext>\n");
+        response.append("   <table>\n");
+        response.append("      <name>Synthetic</name>\n");
+        response.append("      <fields>\n");
+        response.append("         <field id=\"2\" field_type=\"timestamp\" base_type=\"int64\" role=\"modified\">\n");
+        response.append("            <label>Date Modified</label>\n");
+        response.append("         </field>\n");
+        response.append("         <field id=\"3\" field_type=\"recordid\" base_type=\"int32\" role=\"recordid\">\n");
+        response.append("            <label>Record ID#</label>\n");
+        response.append("         </field>\n");
+        for (int field = 0; field < fields; field++) {
+            response.append("         <field id=\"" + (field + 6) + "\" field_type=\"text\" base_type=\"text\">\n");
+            response.append("            <label>Field " + (field + 6) + "</label>\n");
+            response.append("         </field>\n");
+        }
+        for (int field = fields; field < fields + choiceFields; field++) {
+            response.append("         <field id=\"" + (field + 6) + "\" field_type=\"text\" base_type=\"text\">\n");
+            response.append("            <label>Choice " + (field + 6) + "</label>\n");
+            response.append("         </field>\n");
+        }
+        for (int field = fields + choiceFields; field < fields + choiceFields + fileFields; field++) {
+            response.append("         <field id=\"" + (field + 6) + "\" field_type=\"file\" base_type=\"text\">\n");
+            response.append("            <label>File " + (field + 6) + "</label>\n");
+            response.append("         </field>\n");
+        }
+        response.append("      </fields>\n");
+        response.append("   </table>\n");
+        response.append("</qdbapi>\n");
+        return response.toString();
+    }
+    
+    /**
+     * @return The ids of all the fields, in schema order.
+     */
+    public List<String> getFieldIds() {
+        List<String> fieldIds = new ArrayList<String>();
+        fieldIds.add("2");
+        fieldIds.add("3");
+        for (int field = 0; field < fields + choiceFields + fileFields; field++) {
+            fieldIds.add("" + (field + 6));
+        }
+        return fieldIds;
+    }
+    
+    /**
+     * @return The value of a field in a record, as it appears in the structured API_DoQuery format (unescaped).
+     */
+    public synchronized String value(int rid, String fieldId) {
+        Integer edit = edits.get(rid);
+        if ("2".equals(fieldId)) {
+            return "" + (edit == null ? 1500000000000L + rid * 1000L : 1600000000000L + edit * 1000L);
+        } else if ("3".equals(fieldId)) {
+            return "" + rid;
+        } else if (Integer.parseInt(fieldId) - 6 >= fields + choiceFields) {
+            return rid % 5 == 0 ? "" : "attachment-" + rid + "-" + fieldId + ".txt";
+        } else if (Integer.parseInt(fieldId) - 6 >= fields) {
+            return CHOICES[(rid + Integer.parseInt(fieldId)) % CHOICES.length];
+        } else {
+            return "Value " + rid + "/" + (Integer.parseInt(fieldId) - 6) + " & some text" + (edit == null ? "" : " (edit " + edit + ")");
+        }
+    }
+    
+    /**
+     * @return The content of the file in a file attachment field, or null if there is none.
+     */
+    public synchronized byte[] fileContent(int rid, String fieldId) {
+        if (!isFileField(fieldId) || "".equals(value(rid, fieldId)) || Arrays.binarySearch(recordIds, rid) < 0) {
+            return null;
+        }
+        Integer edit = edits.get(rid);
+        String line = "Attachment " + (rid % 20) + " in field " + fieldId + (edit == null ? "" : " of record " + rid + " (edit " + edit + ")") + "\n";
+        StringBuilder content = new StringBuilder();
+        while (content.length() < 20000) {
+            content.append(line);
+        }
+        return content.toString().getBytes(StandardCharsets.UTF_8);
+    }
+    
+    public boolean isFileField(String fieldId) {
+        int field = Integer.parseInt(fieldId) - 6;
+        return field >= fields + choiceFields && field < fields + choiceFields + fileFields;
+    }
+    
+    private void appendRecord(StringBuilder response, int rid, List<String> fieldIds) {
+        response.append("         <record rid=\"" + rid + "\">\n");
+        for (String fieldId : fieldIds) {
+            response.append("            <f id=\"" + fieldId + "\">" + value(rid, fieldId).replace("&", "&amp;") + "</f>\n");
+        }
+        response.append("            <update_id>" + (1500000000000L + rid) + "</update_id>\n");
+        response.append("         </record>\n");
+    }
+}
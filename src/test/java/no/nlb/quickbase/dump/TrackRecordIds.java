@@ -0,0 +1,79 @@
+package no.nlb.quickbase.dump;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TrackRecordIds {
+	
+	@Test
+	public void test() {
+		RecordIdSet ids = new RecordIdSet();
+		assertTrue(ids.add(5));
+		assertTrue(ids.add(3));
+		assertTrue(ids.add(4));
+		assertFalse("Already in the set", ids.add(5));
+		assertTrue(ids.add(70000));
+		assertTrue(ids.contains(4));
+		assertFalse(ids.contains(6));
+		assertFalse(ids.contains(4 + 65536));
+		assertEquals(4, ids.size());
+		assertEquals("[3,6), [70000,70001)", RecordIdSet.toString(ids.ranges()));
+		
+		// more ids than fit in an array
+		ids.addRange(60000, 70000);
+		for (int id = 100000; id < 110000; id += 2) {
+			ids.add(id);
+		}
+		assertTrue(ids.contains(65535));
+		assertTrue(ids.contains(65536));
+		assertTrue(ids.contains(100002));
+		assertFalse(ids.contains(100003));
+		assertEquals(4 + 10000 + 5000, ids.size());
+		List<int[]> ranges = ids.ranges();
+		assertEquals("[3,6), [60000,70001), [100000,100001)", RecordIdSet.toString(ranges.subList(0, 3)));
+		assertEquals(2 + 5000, ranges.size());
+		
+		try {
+			ids.add(-1);
+			fail("Record ids can not be negative");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+	
+	@Test
+	public void testMemory() {
+		RecordIdSet ids = new RecordIdSet();
+		for (int id = 1; id <= 20000000; id++) {
+			// every tenth id has been deleted
+			if (id % 10 != 0) {
+				ids.add(id);
+			}
+		}
+		assertEquals(18000000, ids.size());
+		assertTrue("About one bit per id: " + ids.bytes(), ids.bytes() < 20000000 / 8 + 65536);
+		
+		ids = new RecordIdSet();
+		ids.addRange(0, 20000000);
+		assertTrue("Full chunks take no space: " + ids.bytes(), ids.bytes() < 65536);
+		assertEquals("[0,20000000)", RecordIdSet.toString(ids.ranges()));
+	}
+	
+	@Test
+	public void testDroppedRanges() throws IOException {
+		try (QuickbaseStandIn standIn = new QuickbaseStandIn()) {
+			// no response with a record in it is small enough
+			standIn.addTable("bqtable01", new SyntheticTable(10, 2)).setMaxPayload(500);
+			QuickbaseTableDump.QuickbaseClient client = new QuickbaseTableDump.QuickbaseClient("apptoken", standIn.getDomain(), "bqtable01", "username", "password");
+			RangeController rangeController = new RangeController(4, 4);
+			assertTrue(QuickbaseTableDump.getRange(client, "3", 1, 5, null, "a", rangeController).isEmpty());
+			assertTrue(QuickbaseTableDump.getRange(client, "3", 8, 11, null, "a", rangeController).isEmpty());
+			assertEquals("[1,5), [8,11)", RecordIdSet.toString(rangeController.takeDroppedRanges()));
+			assertTrue("Only reported once", rangeController.takeDroppedRanges().isEmpty());
+		}
+	}
+	
+}
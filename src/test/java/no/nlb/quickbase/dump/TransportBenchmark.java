@@ -0,0 +1,65 @@
+package no.nlb.quickbase.dump;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A full dump of a 20000 record table from the local stand-in server, in pages of 100 records,
+ * with the blocking and the async transport, and many requests at the same time. Every request
+ * takes 200 ms, like a distant server would. The peak number of threads is printed after each
+ * trial; the stand-in's own threads are included, and are the same for both transports.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class TransportBenchmark {
+    
+    @Param({"blocking", "async"})
+    public String transport;
+    
+    @Param({"16", "128"})
+    public int concurrency;
+    
+    private QuickbaseStandIn standIn;
+    private QuickbaseTableDump.QuickbaseClient client;
+    
+    @Setup
+    public void setup() throws IOException {
+        standIn = new QuickbaseStandIn().addTable("bqtable01", new SyntheticTable(20000, 30)).setLatency(200);
+        client = new QuickbaseTableDump.QuickbaseClient("apptoken", standIn.getDomain(), "bqtable01", "username", "password", null, transport, concurrency);
+        ManagementFactory.getThreadMXBean().resetPeakThreadCount();
+    }
+    
+    @TearDown
+    public void tearDown() throws IOException {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        System.out.println("Peak threads: " + threads.getPeakThreadCount());
+        client.close();
+        standIn.close();
+    }
+    
+    @Benchmark
+    public long dump() throws IOException {
+        CountingWriter out = new CountingWriter();
+        TableDump.builder(client).pageSize(100).maxPageSize(100).concurrency(concurrency).build().write(out);
+        return out.count;
+    }
+}
@@ -0,0 +1,73 @@
+package no.nlb.quickbase.dump;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+public class WriteRecords {
+	
+	private static final String SCHEMA = "<?xml version=\"1.0\" ?>\n<qdbapi>\n<action>API_GetSchema</action>\n<errcode>0</errcode>\n<table>\n<fields>\n"
+			+ "<field id=\"10\" field_type=\"checkbox\" base_type=\"bool\"><label>Done</label></field>\n"
+			+ "<field id=\"3\" field_type=\"recordid\" base_type=\"int32\" role=\"recordid\"><label>Record ID#</label></field>\n"
+			+ "<field id=\"6\" field_type=\"text\" base_type=\"text\"><label>Title, \"short\"</label></field>\n"
+			+ "<field id=\"7\" field_type=\"date\" base_type=\"int64\"><label>Published</label></field>\n"
+			+ "<field id=\"8\" field_type=\"timestamp\" base_type=\"int64\"><label>Changed</label></field>\n"
+			+ "<field id=\"9\" field_type=\"float\" base_type=\"float\"><label>Price</label></field>\n"
+			+ "</fields>\n</table>\n</qdbapi>\n";
+	
+	private static final String RECORDS = "<?xml version=\"1.0\" ?>\n<qdbapi>\n<action>API_DoQuery</action>\n<errcode>0</errcode>\n<table>\n<records>\n"
+			+ "<record rid=\"1\"><f id=\"3\">1</f><f id=\"6\">Hello, \"world\"\nagain</f><f id=\"7\">1500000000000</f><f id=\"8\">1500000000123</f><f id=\"9\">12.5</f><f id=\"10\">1</f></record>\n"
+			+ "<record rid=\"2\"><f id=\"3\">2</f><f id=\"6\">Plain\\text</f><f id=\"7\"></f><f id=\"8\"></f><f id=\"9\"></f><f id=\"10\">0</f></record>\n"
+			+ "</records>\n</table>\n</qdbapi>\n";
+	
+	@Test
+	public void testCsv() throws IOException {
+		String csv = write("csv", RECORDS);
+		assertEquals("Record ID#,\"Title, \"\"short\"\"\",Published,Changed,Price,Done\r\n"
+				+ "1,\"Hello, \"\"world\"\"\nagain\",2017-07-14,2017-07-14T02:40:00.123Z,12.5,true\r\n"
+				+ "2,Plain\\text,,,,false\r\n", csv);
+	}
+	
+	@Test
+	public void testJsonLines() throws IOException {
+		String json = write("jsonl", RECORDS);
+		assertEquals("{\"Record ID#\":1,\"Title, \\\"short\\\"\":\"Hello, \\\"world\\\"\\nagain\",\"Published\":\"2017-07-14\",\"Changed\":\"2017-07-14T02:40:00.123Z\",\"Price\":12.5,\"Done\":true}\n"
+				+ "{\"Record ID#\":2,\"Title, \\\"short\\\"\":\"Plain\\\\text\",\"Published\":null,\"Changed\":null,\"Price\":null,\"Done\":false}\n", json);
+	}
+	
+	@Test
+	public void testEmpty() throws IOException {
+		assertEquals("Record ID#,\"Title, \"\"short\"\"\",Published,Changed,Price,Done\r\n", write("csv", null));
+		assertEquals("", write("jsonl", null));
+	}
+	
+	@Test
+	public void testSyntheticTable() throws IOException {
+		SyntheticTable table = new SyntheticTable(10, 2);
+		StringWriter out = new StringWriter();
+		try (RecordWriter writer = RecordWriter.create("jsonl", out, new QuickbaseTableDump.QuickbaseResponse(table.schemaResponse()).getFields())) {
+			writer.add(new QuickbaseTableDump.QuickbaseResponse(table.doQueryResponse(1, 6)));
+			writer.add(new QuickbaseTableDump.QuickbaseResponse(table.doQueryResponse(6, 11)));
+			writer.finish();
+			assertEquals(10, writer.getRecordCount());
+		}
+		String[] lines = out.toString().split("\n");
+		assertEquals(10, lines.length);
+		assertEquals("{\"Date Modified\":\"2017-07-14T02:40:04Z\",\"Record ID#\":4,\"Field 6\":\"Value 4/0 & some text\",\"Field 7\":\"Value 4/1 & some text\"}", lines[3]);
+	}
+	
+	private static String write(String format, String records) throws IOException {
+		StringWriter out = new StringWriter();
+		try (RecordWriter writer = RecordWriter.create(format, out, new QuickbaseTableDump.QuickbaseResponse(SCHEMA).getFields())) {
+			if (records != null) {
+				writer.add(new QuickbaseTableDump.QuickbaseResponse(records));
+			}
+			writer.finish();
+		}
+		return out.toString();
+	}
+	
+}